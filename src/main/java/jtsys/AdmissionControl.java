@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client side admission control, smooths bursts of requests to the
+ * gateway using lock free token buckets per merchant terminal plus a
+ * global bucket shared by all terminals.
+ *
+ * Buckets use the generic cell rate algorithm, the state of each bucket is
+ * a single theoretical arrival time updated by compare and set. A request
+ * reserves a slot in both buckets then waits until its slot, or is
+ * rejected if the slot is beyond the maximum wait.
+ *
+ * Terminal buckets idle for IDLE_NANOS are full and are evicted, they are
+ * created again on the terminal's next request. Rejections counted for an
+ * evicted terminal are dropped from getRejected(Merchant).
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AdmissionControl {
+
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final double terminalRate;
+    private final int terminalBurst;
+    private final long maxWait;
+    private final TokenBucket global;
+    private final ConcurrentHashMap<String,ConcurrentHashMap<String,TokenBucket>> terminals =
+        new ConcurrentHashMap<>();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger maxWaiting = new AtomicInteger();
+    private final AtomicLong nextEvict = new AtomicLong(System.nanoTime()+IDLE_NANOS);
+
+    /**
+     * Create admission control
+     *
+     * @param terminalRate requests per second allowed per merchant terminal
+     * @param terminalBurst requests allowed at once per merchant terminal
+     * @param globalRate requests per second allowed for all terminals
+     * @param globalBurst requests allowed at once for all terminals
+     * @param maxWait longest a request may wait to be admitted, 0 to
+     *                reject immediately when no token is available
+     * @param unit TimeUnit of maxWait
+     */
+    public AdmissionControl(double terminalRate,
+                            int terminalBurst,
+                            double globalRate,
+                            int globalBurst,
+                            long maxWait,
+                            TimeUnit unit) {
+        if(terminalRate<=0 || globalRate<=0 || terminalBurst<1 || globalBurst<1 || maxWait<0)
+            throw new IllegalArgumentException("Rates must be > 0, bursts >= 1 and maxWait >= 0");
+        this.terminalRate = terminalRate;
+        this.terminalBurst = terminalBurst;
+        this.maxWait = unit.toNanos(maxWait);
+        this.global = new TokenBucket(globalRate,globalBurst);
+    }
+
+    /**
+     * Admit a request for a merchant terminal, waiting up to the configured
+     * maximum wait
+     *
+     * @param merchant Merchant account the request is for
+     * @throws AdmissionException if the request cannot be admitted in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void admit(Merchant merchant) throws AdmissionException,
+                                                InterruptedException {
+        admit(merchant,maxWait);
+    }
+
+    /**
+     * Admit a request only if a token is available now
+     *
+     * @param merchant Merchant account the request is for
+     * @return boolean true if admitted, false if rejected
+     */
+    public boolean tryAdmit(Merchant merchant) {
+        try {
+            admit(merchant,0);
+            return(true);
+        } catch(AdmissionException | InterruptedException e) {
+            if(e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            return(false);
+        }
+    }
+
+    /**
+     * Give back a token admitted for a request that was not sent, such as
+     * an earlier batch of a Multiple Batch transmission when a later batch
+     * is rejected
+     *
+     * @param merchant Merchant account the request was admitted for
+     */
+    void refund(Merchant merchant) {
+        bucket(merchant).refund();
+        global.refund();
+        admitted.decrement();
+    }
+
+    private void admit(Merchant merchant, long maxWait) throws AdmissionException,
+                                                               InterruptedException {
+        TokenBucket terminal = bucket(merchant);
+        long now = System.nanoTime();
+        long w1 = terminal.reserve(now,maxWait);
+        if(w1<0) {
+            reject(terminal);
+            throw new AdmissionException("Terminal "+merchant.getTerminal()+
+                                         " of merchant "+merchant.getId()+
+                                         " over rate limit");
+        }
+        long w2 = global.reserve(now,maxWait);
+        if(w2<0) {
+            terminal.refund();
+            reject(global);
+            throw new AdmissionException("Global rate limit exceeded");
+        }
+        long wait = Math.max(w1,w2);
+        if(wait>0) {
+            delayed.increment();
+            waitNanos.add(wait);
+            int w = waiting.incrementAndGet();
+            maxWaiting.accumulateAndGet(w,Math::max);
+            try {
+                long deadline = now+wait;
+                long left;
+                while((left = deadline-System.nanoTime())>0) {
+                    LockSupport.parkNanos(this,left);
+                    if(Thread.interrupted()) {
+                        terminal.refund();
+                        global.refund();
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        admitted.increment();
+    }
+
+    private void reject(TokenBucket bucket) {
+        bucket.rejected.increment();
+        rejected.increment();
+    }
+
+    private TokenBucket bucket(Merchant merchant) {
+        long next = nextEvict.get();
+        long now = System.nanoTime();
+        if(now-next>=0 && nextEvict.compareAndSet(next,now+IDLE_NANOS))
+            evict(now);
+        ConcurrentHashMap<String,TokenBucket> m = terminals.get(merchant.getId());
+        if(m==null)
+            m = terminals.computeIfAbsent(merchant.getId(),k -> new ConcurrentHashMap<>());
+        TokenBucket b = m.get(merchant.getTerminal());
+        if(b==null)
+            b = m.computeIfAbsent(merchant.getTerminal(),
+                                  k -> new TokenBucket(terminalRate,terminalBurst));
+        return(b);
+    }
+
+    /**
+     * Remove terminal buckets with no reservations for IDLE_NANOS
+     */
+    private void evict(long now) {
+        for(String id : terminals.keySet()) {
+            ConcurrentHashMap<String,TokenBucket> m = terminals.get(id);
+            if(m==null)
+                continue;
+            m.values().removeIf(b -> b.tat.get()-(now-IDLE_NANOS)<0);
+            terminals.computeIfPresent(id,(k,v) -> v.isEmpty() ? null : v);
+        }
+    }
+
+    /**
+     * @return long number of requests admitted
+     */
+    public long getAdmitted() {
+        return(admitted.sum());
+    }
+
+    /**
+     * @return long number of requests rejected
+     */
+    public long getRejected() {
+        return(rejected.sum());
+    }
+
+    /**
+     * @param merchant Merchant terminal to get rejections for
+     * @return long number of requests rejected for a merchant terminal,
+     *              0 if the terminal has no bucket
+     */
+    public long getRejected(Merchant merchant) {
+        ConcurrentHashMap<String,TokenBucket> m = terminals.get(merchant.getId());
+        TokenBucket b = m==null ? null : m.get(merchant.getTerminal());
+        return(b==null ? 0 : b.rejected.sum());
+    }
+
+    /**
+     * @return long number of global rate limit rejections
+     */
+    public long getGlobalRejected() {
+        return(global.rejected.sum());
+    }
+
+    /**
+     * @return long number of requests that had to wait to be admitted
+     */
+    public long getDelayed() {
+        return(delayed.sum());
+    }
+
+    /**
+     * @return long total time requests were delayed in nanoseconds
+     */
+    public long getWaitNanos() {
+        return(waitNanos.sum());
+    }
+
+    /**
+     * @return int requests currently waiting to be admitted
+     */
+    public int getQueueDepth() {
+        return(waiting.get());
+    }
+
+    /**
+     * @return int most requests waiting at the same time
+     */
+    public int getMaxQueueDepth() {
+        return(maxWaiting.get());
+    }
+
+    /**
+     * Lock free token bucket, generic cell rate algorithm
+     */
+    private static final class TokenBucket {
+
+        private final long interval;                        // nanos per token
+        private final long tolerance;                       // burst allowance
+        private final AtomicLong tat;                       // theoretical arrival time
+        private final LongAdder rejected = new LongAdder();
+
+        private TokenBucket(double rate, int burst) {
+            this.interval = Math.max(1,(long)(TimeUnit.SECONDS.toNanos(1)/rate));
+            this.tolerance = interval*(burst-1);
+            this.tat = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Reserve the next token
+         *
+         * @return long nanos to wait for the token, -1 if over maxWait
+         */
+        private long reserve(long now, long maxWait) {
+            for(;;) {
+                long t = tat.get();
+                long wait = t-tolerance-now;
+                if(wait>maxWait)
+                    return(-1);
+                long next = (t-now>0 ? t : now)+interval;
+                if(tat.compareAndSet(t,next))
+                    return(Math.max(0,wait));
+            }
+        }
+
+        private void refund() {
+            tat.addAndGet(-interval);
+        }
+    }
+}
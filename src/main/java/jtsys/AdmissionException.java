@@ -0,0 +1,22 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * Thrown when a request is not admitted by AdmissionControl, the request
+ * was never sent to the gateway
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AdmissionException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public AdmissionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * Amounts in cents (minor units) and the fixed width numeric fields they
+ * are sent in
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public final class Amounts {
+
+    /**
+     * Largest amount in a 12 digit amount field
+     */
+    public static final long MAX_AMOUNT = 999999999999L;
+
+    /**
+     * Largest total in a 16 digit batch total field
+     */
+    public static final long MAX_TOTAL = 9999999999999999L;
+
+    private Amounts() {}
+
+    /**
+     * Convert an amount string to cents, digits without a decimal point
+     * are cents as the gateway field is sent, with a decimal point exactly
+     * two decimal places are required, "1.5" is not accepted
+     *
+     * @param amount amount string such as 100 or 1.00
+     * @return long amount in cents, -1 if not a valid amount or larger than
+     *              MAX_AMOUNT
+     */
+    public static long cents(CharSequence amount) {
+        if(amount==null)
+            return(-1);
+        int length = amount.length();
+        int dot = -1;
+        for(int i=0;i<length;i++)
+            if(amount.charAt(i)=='.') {
+                dot = i;
+                break;
+            }
+        int whole = dot<0 ? length : dot;
+        if(whole<1 || (dot>=0 && dot!=length-3))
+            return(-1);
+        long c = 0;
+        for(int i=0;i<length;i++) {
+            if(i==dot)
+                continue;
+            char ch = amount.charAt(i);
+            if(ch<'0' || ch>'9')
+                return(-1);
+            c = c*10+ch-'0';
+            if(c>MAX_AMOUNT)
+                return(-1);
+        }
+        return(c);
+    }
+
+    /**
+     * Convert an amount string to cents
+     *
+     * @param amount amount string such as 100 or 1.00
+     * @return long amount in cents
+     * @throws Exception if not a valid amount, see cents
+     */
+    public static long parse(String amount) throws Exception {
+        long c = cents(amount);
+        if(c<0)
+            throw new Exception("Invalid amount "+amount);
+        return(c);
+    }
+
+    /**
+     * Format cents as dollars and cents
+     *
+     * @param cents amount in cents
+     * @return String such as 1.00
+     */
+    public static String format(long cents) {
+        StringBuilder b = new StringBuilder();
+        if(cents<0) {
+            b.append('-');
+            cents = -cents;
+        }
+        b.append(cents/100).append('.');
+        zeroPad(b,cents%100,2);
+        return(b.toString());
+    }
+
+    /**
+     * Add an amount to a batch total
+     *
+     * @param total batch total in cents
+     * @param amount amount in cents
+     * @return long new total
+     * @throws ArithmeticException if the total no longer fits a 16 digit
+     *                             total field
+     */
+    public static long addTotal(long total, long amount) {
+        long t = Math.addExact(total,amount);
+        if(t>MAX_TOTAL || t<-MAX_TOTAL)
+            throw new ArithmeticException("Batch total exceeds 16 digits");
+        return(t);
+    }
+
+    /**
+     * Append a number right-justified and zero-filled
+     *
+     * @param b StringBuilder to append to
+     * @param v number to append, not negative
+     * @param width field width
+     * @throws ArithmeticException if the number does not fit the width
+     */
+    public static void zeroPad(StringBuilder b, long v, int width) {
+        if(v<0)
+            throw new ArithmeticException("Negative value "+v+" in numeric field");
+        int start = b.length();
+        for(int i=0;i<width;i++)
+            b.append('0');
+        for(int i=b.length()-1;v>0;i--) {
+            if(i<start) {
+                b.setLength(start);
+                throw new ArithmeticException("Value does not fit "+width+" digit field");
+            }
+            b.setCharAt(i,(char)('0'+v%10));
+            v /= 10;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window approval and decline counts by merchant, BIN, response
+ * code and AVS result, fed from auth and settle results.
+ *
+ * Memory is fixed when created, counters are primitive longs in a single
+ * array of time buckets. Each dimension tracks a fixed number of keys, a
+ * key's slot is given to a new key once the key has not been seen for a
+ * whole window, keys seen while every slot is in use are counted under
+ * OTHER. Recording is a hash lookup and an atomic add per dimension, old
+ * buckets are cleared under a per bucket lock when the window slides.
+ * Counts are approximate at bucket boundaries.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class ApprovalAnalytics {
+
+    /**
+     * Key used for keys beyond a dimension's capacity
+     */
+    public static final String OTHER = "*";
+
+    // Response codes counted as approved
+    private static final String[] APPROVED_CODES = {
+        "00",                                               // 00=Approved
+        "10",                                               // 10=Partial approval
+        "85"                                                // 85=No reason to decline
+    };
+
+    /**
+     * Dimensions counts are kept by
+     */
+    public enum Dimension {
+        MERCHANT,
+        BIN,
+        RESPONSE_CODE,
+        AVS;
+    }
+
+    /**
+     * Counters kept for every key
+     */
+    public enum Counter {
+        APPROVED,
+        DECLINED,
+        ERROR,
+        SETTLED,
+        REJECTED;
+    }
+
+    /**
+     * Called when a key crosses a decline rate threshold
+     */
+    public interface Listener {
+        void threshold(Dimension dimension, String key, long approved, long declined);
+    }
+
+    private static final int DIMENSIONS = Dimension.values().length;
+    private static final int COUNTERS = Counter.values().length;
+
+    private final int buckets;
+    private final long bucketMillis;
+    private final int keys;                                 // per dimension, plus OTHER
+    private final AtomicLongArray counts;
+    private final AtomicLongArray epochs;
+    private final Object[] locks;
+    private final Slots[] slots;
+    private final CopyOnWriteArrayList<Threshold> thresholds = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param buckets number of buckets in the window
+     * @param bucketMillis width of each bucket in milliseconds
+     * @param keys most keys tracked per dimension
+     */
+    public ApprovalAnalytics(int buckets, long bucketMillis, int keys) {
+        if(buckets<1 || bucketMillis<1 || keys<1)
+            throw new IllegalArgumentException("buckets, bucketMillis and keys must be >= 1");
+        this.buckets = buckets;
+        this.bucketMillis = bucketMillis;
+        this.keys = keys+1;
+        long size = (long)buckets*DIMENSIONS*this.keys*COUNTERS;
+        if(size>Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many buckets and keys");
+        counts = new AtomicLongArray((int)size);
+        epochs = new AtomicLongArray(buckets);
+        for(int i=0;i<buckets;i++)
+            epochs.set(i,-1);
+        locks = new Object[buckets];
+        for(int i=0;i<buckets;i++)
+            locks[i] = new Object();
+        slots = new Slots[DIMENSIONS];
+        for(int d=0;d<DIMENSIONS;d++)
+            slots[d] = new Slots(keys);
+    }
+
+    /**
+     * Record an authorization result
+     *
+     * @param merchant Merchant account used
+     * @param cardNumber Credit card number, only the BIN is kept
+     * @param result LinkedHashMap returned by Tsys.auth
+     */
+    public void recordAuth(Merchant merchant,
+                           String cardNumber,
+                           Map<String,String> result) {
+        String code = result.get(AuthResponseKeys.Response_Code.key());
+        Counter c;
+        if(code==null)
+            c = Counter.ERROR;
+        else
+            c = approved(code) ? Counter.APPROVED : Counter.DECLINED;
+        long epoch = System.currentTimeMillis()/bucketMillis;
+        int b = bucket(epoch);
+        add(b,epoch,Dimension.MERCHANT,merchant.getId(),c);
+        if(cardNumber!=null && cardNumber.length()>=6)
+            add(b,epoch,Dimension.BIN,cardNumber.substring(0,6),c);
+        if(code!=null)
+            add(b,epoch,Dimension.RESPONSE_CODE,code,c);
+        String avs = result.get(AuthResponseKeys.AVS_Result_Code.key());
+        if(avs!=null)
+            add(b,epoch,Dimension.AVS,avs,c);
+    }
+
+    /**
+     * Record a settlement result
+     *
+     * @param merchant Merchant account settled
+     * @param result LinkedHashMap returned by Tsys.settle
+     */
+    public void recordSettle(Merchant merchant, Map<String,String> result) {
+        Counter c;
+        if(result.containsKey(SettleResponseKeys.Batch_Response_Text.key()) ||
+           result.containsKey("Batch Date"))
+            c = Counter.SETTLED;
+        else if(result.containsKey(SettleResponseErrorKeys.Error_Type.name().replace("_"," ")))
+            c = Counter.REJECTED;
+        else
+            c = Counter.ERROR;
+        long epoch = System.currentTimeMillis()/bucketMillis;
+        add(bucket(epoch),epoch,Dimension.MERCHANT,merchant.getId(),c);
+    }
+
+    /**
+     * Counts over the current window
+     *
+     * @return Map<Dimension,Map<String,long[]>> counts per key indexed by
+     *                                           Counter ordinal
+     */
+    public Map<Dimension,Map<String,long[]>> snapshot() {
+        long epoch = System.currentTimeMillis()/bucketMillis;
+        Map<Dimension,Map<String,long[]>> snapshot = new EnumMap<>(Dimension.class);
+        for(Dimension d : Dimension.values()) {
+            Map<String,long[]> m = new HashMap<>();
+            for(Map.Entry<String,Integer> e : slots[d.ordinal()].map.entrySet())
+                sum(m,e.getKey(),d.ordinal(),e.getValue(),epoch);
+            sum(m,OTHER,d.ordinal(),keys-1,epoch);
+            snapshot.put(d,m);
+        }
+        return(snapshot);
+    }
+
+    private void sum(Map<String,long[]> m,
+                     String name,
+                     int dimension,
+                     int slot,
+                     long epoch) {
+        long[] c = new long[COUNTERS];
+        boolean any = false;
+        for(int b=0;b<buckets;b++) {
+            long e = epochs.get(b);
+            if(e<0 || e<=epoch-buckets)
+                continue;
+            int base = index(b,dimension,slot);
+            for(int i=0;i<COUNTERS;i++) {
+                c[i] += counts.get(base+i);
+                any |= c[i]!=0;
+            }
+        }
+        if(any)
+            m.put(name,c);
+    }
+
+    /**
+     * Call a listener when a key's decline rate over the window exceeds a
+     * limit, checked by evaluate
+     *
+     * @param dimension Dimension to check
+     * @param minSamples least approvals plus declines before checking
+     * @param maxDeclineRate decline rate 0.0 - 1.0 above which to call
+     * @param listener Listener to call
+     */
+    public void addThreshold(Dimension dimension,
+                             long minSamples,
+                             double maxDeclineRate,
+                             Listener listener) {
+        thresholds.add(new Threshold(dimension,minSamples,maxDeclineRate,listener));
+    }
+
+    /**
+     * Check thresholds against the current window, to be called
+     * periodically off the auth path
+     */
+    public void evaluate() {
+        if(thresholds.isEmpty())
+            return;
+        Map<Dimension,Map<String,long[]>> s = snapshot();
+        for(Threshold t : thresholds)
+            for(Map.Entry<String,long[]> e : s.get(t.dimension).entrySet()) {
+                long approved = e.getValue()[Counter.APPROVED.ordinal()];
+                long declined = e.getValue()[Counter.DECLINED.ordinal()];
+                long total = approved+declined;
+                if(total>=t.minSamples && total>0 &&
+                   (double)declined/total>t.maxDeclineRate)
+                    t.listener.threshold(t.dimension,e.getKey(),approved,declined);
+            }
+    }
+
+    private static boolean approved(String code) {
+        for(String a : APPROVED_CODES)
+            if(a.equals(code))
+                return(true);
+        return(false);
+    }
+
+    private void add(int bucket, long epoch, Dimension d, String key, Counter c) {
+        counts.incrementAndGet(index(bucket,d.ordinal(),slot(d.ordinal(),key,epoch))+c.ordinal());
+    }
+
+    private int index(int bucket, int dimension, int slot) {
+        return(((bucket*DIMENSIONS+dimension)*keys+slot)*COUNTERS);
+    }
+
+    /**
+     * Slot of a key, assigning a free or expired slot to a new key, OTHER
+     * if every slot holds a key seen within the window
+     */
+    private int slot(int dimension, String key, long epoch) {
+        Slots s = slots[dimension];
+        Integer n = s.map.get(key);
+        if(n==null)
+            synchronized(s) {
+                n = s.map.get(key);
+                if(n==null) {
+                    if(s.used<keys-1)
+                        n = s.used++;
+                    else {
+                        n = reclaim(s,epoch);
+                        if(n<0)
+                            return(keys-1);
+                        s.map.remove(s.owners[n]);
+                    }
+                    s.owners[n] = key;
+                    s.lastUsed.set(n,epoch);
+                    s.map.put(key,n);
+                    return(n);
+                }
+            }
+        if(s.lastUsed.get(n)!=epoch)
+            s.lastUsed.set(n,epoch);
+        return(n);
+    }
+
+    /**
+     * Slot whose key was last seen before the window, its counts are all
+     * in expired buckets
+     *
+     * @return int slot or -1 if none has expired
+     */
+    private int reclaim(Slots s, long epoch) {
+        if(epoch<s.reclaimAt)
+            return(-1);
+        long oldest = Long.MAX_VALUE;
+        for(int i=0;i<keys-1;i++) {
+            long last = s.lastUsed.get(i);
+            if(last<=epoch-buckets)
+                return(i);
+            oldest = Math.min(oldest,last);
+        }
+        s.reclaimAt = oldest+buckets;
+        return(-1);
+    }
+
+    /**
+     * Bucket for a time, clearing it first if it holds an older window
+     */
+    private int bucket(long epoch) {
+        int b = (int)(epoch%buckets);
+        if(epochs.get(b)!=epoch)
+            synchronized(locks[b]) {
+                if(epochs.get(b)!=epoch) {
+                    int from = index(b,0,0);
+                    int to = index(b+1,0,0);
+                    for(int i=from;i<to;i++)
+                        counts.set(i,0);
+                    epochs.set(b,epoch);
+                }
+            }
+        return(b);
+    }
+
+    /**
+     * Keys of one dimension and the slots they are counted in
+     */
+    private static final class Slots {
+
+        private final ConcurrentHashMap<String,Integer> map = new ConcurrentHashMap<>();
+        private final String[] owners;                      // key of each slot
+        private final AtomicLongArray lastUsed;             // epoch each slot was last counted
+        private int used;                                   // slots ever assigned
+        private long reclaimAt;                             // epoch before which none expire
+
+        private Slots(int keys) {
+            owners = new String[keys];
+            lastUsed = new AtomicLongArray(keys);
+        }
+    }
+
+    private static final class Threshold {
+
+        private final Dimension dimension;
+        private final long minSamples;
+        private final double maxDeclineRate;
+        private final Listener listener;
+
+        private Threshold(Dimension dimension,
+                          long minSamples,
+                          double maxDeclineRate,
+                          Listener listener) {
+            this.dimension = dimension;
+            this.minSamples = minSamples;
+            this.maxDeclineRate = maxDeclineRate;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read only CharSequence view over 7 bit ASCII bytes, allows regex and
+ * other decoders to run directly on a byte buffer without first copying
+ * it into a String
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+final class AsciiSequence implements CharSequence {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    AsciiSequence(byte[] bytes, int offset, int length) {
+        if(offset<0 || length<0 || offset+length>bytes.length)
+            throw new IndexOutOfBoundsException("offset "+offset+
+                                                " length "+length+
+                                                " size "+bytes.length);
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index<0 || index>=length)
+            throw new IndexOutOfBoundsException("index "+index+" length "+length);
+        return((char)(bytes[offset+index] & 0x7f));
+    }
+
+    @Override
+    public int length() {
+        return(length);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if(start<0 || end>length || start>end)
+            throw new IndexOutOfBoundsException("start "+start+" end "+end+" length "+length);
+        return(new AsciiSequence(bytes,offset+start,end-start));
+    }
+
+    @Override
+    public String toString() {
+        return(new String(bytes,offset,length,StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how many authorizations to send per Multiple Transaction
+ * message from a latency target. Batches grow by a quarter while messages
+ * complete under target and shrink in proportion to the overshoot when
+ * they do not.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AuthBatchSizer {
+
+    private final long target;
+    private final int max;
+    private volatile int size;
+
+    /**
+     * @param target latency target per message
+     * @param unit TimeUnit of target
+     * @param initial first batch size
+     * @param max largest batch size
+     */
+    public AuthBatchSizer(long target,
+                          TimeUnit unit,
+                          int initial,
+                          int max) {
+        if(target<=0 || initial<1 || max<initial)
+            throw new IllegalArgumentException("target > 0 and 1 <= initial <= max required");
+        this.target = unit.toNanos(target);
+        this.max = max;
+        this.size = initial;
+    }
+
+    /**
+     * @return int number of authorizations to put in the next message
+     */
+    public int batchSize() {
+        return(size);
+    }
+
+    /**
+     * Record the latency of a message
+     *
+     * @param batch number of authorizations in the message
+     * @param nanos time taken to send and receive the message
+     */
+    public synchronized void observe(int batch, long nanos) {
+        if(nanos<=target) {
+            if(batch>=size)
+                size = Math.min(max,size+Math.max(1,size/4));
+        } else
+            size = Math.max(1,(int)Math.min(size,(double)batch*target/nanos));
+    }
+}
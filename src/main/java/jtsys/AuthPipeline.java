@@ -0,0 +1,418 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipelined authorization, requests pass through encode, transmit and
+ * decode stages on their own threads connected by bounded lock-free ring
+ * buffers. Validation, encoding and parity run on encode threads, network
+ * I/O on transmit threads and parity removal, parsing and analytics on
+ * decode threads, so CPU work does not hold I/O threads. Cards declined
+ * locally by a HardDeclineCache skip transmit and decode.
+ *
+ * The amount is converted to cents once, on the encode thread, and
+ * carried to decode.
+ *
+ * Each stage drains what is queued in batches. An idle stage thread
+ * yields, then parks briefly, then sleeps until a request is queued for
+ * it. When a stage's queue is full the stage before it waits, back to
+ * submit, which waits or with trySubmit returns false. Results are
+ * returned through a Callback called on a decode thread, decode failures
+ * are passed to Callback.failed.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AuthPipeline implements AutoCloseable {
+
+    private static final int BATCH = 64;
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long SLEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int YIELDS = 16;                   // idle rounds before parking
+    private static final int PARKS = 16;                    // idle parks before sleeping
+    private static final long CLOSE_SECONDS = 60;           // close waiting for requests in flight
+
+    /**
+     * Receives the outcome of a pipelined authorization
+     */
+    public interface Callback {
+
+        /**
+         * @param request AuthRequest submitted
+         * @param response LinkedHashMap<String,String> authorization or
+         *                 error response, if length is 2 there was an error
+         */
+        void completed(AuthRequest request, LinkedHashMap<String,String> response);
+
+        /**
+         * @param request AuthRequest submitted
+         * @param e Exception that stopped the request, ValidationException
+         *          if it failed local validation, a RuntimeException if
+         *          the response could not be decoded
+         */
+        void failed(AuthRequest request, Exception e);
+    }
+
+    private final Tsys tsys;
+    private final Stage encodeQueue;
+    private final Stage transmitQueue;
+    private final Stage decodeQueue;
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Object drained = new Object();            // notified at 0 in flight, thread exit
+    private int exited;                                     // stage threads ended, guarded by drained
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+
+    /**
+     * Pipeline with one encode thread and decode threads for half the
+     * available processors
+     *
+     * @param tsys Tsys used to encode, send and decode
+     * @param capacity queue capacity of each stage
+     * @param transmitters number of transmit threads, requests in flight
+     *                     to the gateway at once
+     */
+    public AuthPipeline(Tsys tsys, int capacity, int transmitters) {
+        this(tsys,
+             capacity,
+             1,
+             transmitters,
+             Math.max(1,Runtime.getRuntime().availableProcessors()/2));
+    }
+
+    /**
+     * @param tsys Tsys used to encode, send and decode
+     * @param capacity queue capacity of each stage
+     * @param encoders number of encode threads
+     * @param transmitters number of transmit threads, requests in flight
+     *                     to the gateway at once
+     * @param decoders number of decode threads
+     */
+    public AuthPipeline(Tsys tsys,
+                        int capacity,
+                        int encoders,
+                        int transmitters,
+                        int decoders) {
+        if(encoders<1 || transmitters<1 || decoders<1)
+            throw new IllegalArgumentException("Each stage needs at least 1 thread");
+        this.tsys = tsys;
+        encodeQueue = new Stage(capacity);
+        transmitQueue = new Stage(capacity);
+        decodeQueue = new Stage(capacity);
+        for(int i=0;i<encoders;i++)
+            start("jtsys-auth-encode-"+i,this::encode);
+        for(int i=0;i<transmitters;i++)
+            start("jtsys-auth-transmit-"+i,this::transmit);
+        for(int i=0;i<decoders;i++)
+            start("jtsys-auth-decode-"+i,this::decode);
+    }
+
+    /**
+     * Submit an authorization, waits while the pipeline is full
+     *
+     * @param merchant Merchant account to use
+     * @param request AuthRequest to authorize
+     * @param callback Callback to receive the result
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(Merchant merchant,
+                       AuthRequest request,
+                       Callback callback) throws InterruptedException {
+        Task t = task(merchant,request,callback);
+        while(!encodeQueue.offer(t)) {
+            if(Thread.interrupted()) {
+                done();
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Submit an authorization without waiting
+     *
+     * @param merchant Merchant account to use
+     * @param request AuthRequest to authorize
+     * @param callback Callback to receive the result
+     * @return boolean false if the pipeline is full and the request was
+     *                 not accepted
+     */
+    public boolean trySubmit(Merchant merchant,
+                             AuthRequest request,
+                             Callback callback) {
+        Task t = task(merchant,request,callback);
+        if(encodeQueue.offer(t))
+            return(true);
+        done();
+        return(false);
+    }
+
+    /**
+     * @return long requests submitted whose callback has not been called
+     */
+    public long inFlight() {
+        return(inFlight.get());
+    }
+
+    /**
+     * Stop accepting requests, wait up to CLOSE_SECONDS for requests in
+     * flight to complete and stop the stage threads
+     *
+     * @see #close(long,TimeUnit)
+     */
+    @Override
+    public void close() {
+        close(CLOSE_SECONDS,TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop accepting requests, wait for requests in flight to complete and
+     * stop the stage threads. Waiting ends at the timeout or when a stage
+     * thread has died, requests still in flight then never get a callback.
+     * If interrupted the stage threads are stopped without waiting.
+     *
+     * @param timeout longest time to wait
+     * @param unit TimeUnit of timeout
+     * @return boolean true if every request in flight completed
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        accepting = false;
+        long deadline = System.nanoTime()+unit.toNanos(timeout);
+        try {
+            synchronized(drained) {
+                long wait;
+                while(inFlight.get()>0 &&
+                      exited==0 &&
+                      (wait = deadline-System.nanoTime())>0)
+                    TimeUnit.NANOSECONDS.timedWait(drained,wait);
+            }
+            boolean completed = inFlight.get()==0;
+            running = false;
+            for(Thread t : threads) {
+                LockSupport.unpark(t);
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime());
+                if(wait>0)
+                    t.join(wait);
+            }
+            return(completed);
+        } catch(InterruptedException e) {
+            running = false;
+            for(Thread t : threads)
+                LockSupport.unpark(t);
+            Thread.currentThread().interrupt();
+            return(false);
+        }
+    }
+
+    /**
+     * A request is no longer in flight
+     */
+    private void done() {
+        if(inFlight.decrementAndGet()==0)
+            synchronized(drained) {
+                drained.notifyAll();
+            }
+    }
+
+    private Task task(Merchant merchant, AuthRequest request, Callback callback) {
+        if(!accepting)
+            throw new IllegalStateException("Pipeline is closed");
+        inFlight.incrementAndGet();
+        return(new Task(merchant,request,callback));
+    }
+
+    private void start(String name, Runnable stage) {
+        Thread t = new Thread(() -> {
+            try {
+                stage.run();
+            } finally {
+                synchronized(drained) {                     // close stops waiting on a dead stage
+                    exited++;
+                    drained.notifyAll();
+                }
+            }
+        },name);
+        t.setDaemon(true);
+        t.start();
+        threads.add(t);
+    }
+
+    private void encode() {
+        int idle = 0;
+        while(running) {
+            int n = 0;
+            Task t;
+            while(n<BATCH && (t = encodeQueue.poll()) != null) {
+                n++;
+                AuthRequest a = t.request;
+                try {
+                    t.declined = tsys.cachedDecline(t.merchant,a.getCardNumber(),a.getExpiration());
+                    if(t.declined!=null) {
+                        put(decodeQueue,t);
+                        continue;
+                    }
+                    t.amount = Amounts.cents(a.getAmount());
+                    t.encoded = tsys.encodeAuth(t.merchant,
+                                                a.getTransSequenceNumber(),
+                                                a.getCardNumber(),
+                                                a.getExpiration(),
+                                                a.getAddress(),
+                                                a.getZip(),
+                                                t.amount);
+                    t.wire = Tsys.getEvenParity(t.encoded);
+                    put(transmitQueue,t);
+                } catch(Exception e) {
+                    t.error = e;
+                    put(decodeQueue,t);
+                }
+            }
+            idle = n==0 ? encodeQueue.idle(idle) : 0;
+        }
+    }
+
+    private void transmit() {
+        int idle = 0;
+        while(running) {
+            int n = 0;
+            Task t;
+            while(n<BATCH && (t = transmitQueue.poll()) != null) {
+                n++;
+                try {
+                    t.response = tsys.transmitAuth(t.merchant,t.encoded,t.wire);
+                } catch(Exception e) {
+                    t.error = e;
+                }
+                t.wire = null;
+                put(decodeQueue,t);
+            }
+            idle = n==0 ? transmitQueue.idle(idle) : 0;
+        }
+    }
+
+    private void decode() {
+        int idle = 0;
+        while(running) {
+            int n = 0;
+            Task t;
+            while(n<BATCH && (t = decodeQueue.poll()) != null) {
+                n++;
+                try {
+                    LinkedHashMap<String,String> response = t.declined;
+                    if(response==null && t.error==null)
+                        try {
+                            response = tsys.decodeAuth(t.merchant,
+                                                       t.request.getTransSequenceNumber(),
+                                                       t.request.getCardNumber(),
+                                                       t.request.getExpiration(),
+                                                       t.amount,
+                                                       t.response);
+                        } catch(RuntimeException e) {
+                            t.error = e;
+                        }
+                    t.response = null;
+                    if(t.error==null)
+                        t.callback.completed(t.request,response);
+                    else
+                        t.callback.failed(t.request,t.error);
+                } catch(RuntimeException e) {
+                    Logger.getLogger(AuthPipeline.class.getName()).log(Level.SEVERE,
+                        "Auth pipeline callback failed",e);
+                } finally {
+                    done();
+                }
+            }
+            idle = n==0 ? decodeQueue.idle(idle) : 0;
+        }
+    }
+
+    /**
+     * Hand a task to the next stage, waiting while it is full
+     */
+    private static void put(Stage queue, Task t) {
+        while(!queue.offer(t))
+            LockSupport.parkNanos(IDLE_NANOS);
+    }
+
+    /**
+     * Queue of a stage and the stage threads sleeping on it, offering a
+     * task wakes one sleeping thread
+     */
+    private final class Stage {
+
+        private final RingBuffer<Task> queue;
+        private final ConcurrentLinkedQueue<Thread> sleepers = new ConcurrentLinkedQueue<>();
+
+        private Stage(int capacity) {
+            queue = new RingBuffer<>(capacity);
+        }
+
+        private boolean offer(Task t) {
+            if(!queue.offer(t))
+                return(false);
+            Thread s = sleepers.poll();
+            if(s!=null)
+                LockSupport.unpark(s);
+            return(true);
+        }
+
+        private Task poll() {
+            return(queue.poll());
+        }
+
+        /**
+         * Wait for work, yields then parks briefly then sleeps until woken
+         * by offer or close
+         *
+         * @param rounds idle rounds so far
+         * @return int idle rounds including this one
+         */
+        private int idle(int rounds) {
+            if(rounds<YIELDS)
+                Thread.yield();
+            else if(rounds<YIELDS+PARKS)
+                LockSupport.parkNanos(this,IDLE_NANOS);
+            else {
+                Thread self = Thread.currentThread();
+                sleepers.add(self);
+                if(queue.size()==0 && running)             // offered before sleepers.add
+                    LockSupport.parkNanos(this,SLEEP_NANOS);
+                sleepers.remove(self);
+                return(rounds);
+            }
+            return(rounds+1);
+        }
+    }
+
+    private static final class Task {
+
+        private final Merchant merchant;
+        private final AuthRequest request;
+        private final Callback callback;
+        private long amount;                                // cents, -1 if invalid
+        private String encoded;
+        private byte[] wire;
+        private ResponseBuffer response;
+        private LinkedHashMap<String,String> declined;
+        private Exception error;
+
+        private Task(Merchant merchant, AuthRequest request, Callback callback) {
+            this.merchant = merchant;
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+}
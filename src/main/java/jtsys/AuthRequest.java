@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * Single credit card authorization, used to send many authorizations in
+ * one Multiple Transaction message
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AuthRequest {
+
+    private final String transSequenceNumber;
+    private final String cardNumber;
+    private final String expiration;
+    private final String address;
+    private final String zip;
+    private final String amount;
+
+    /**
+     * @param transSequenceNumber Tran Sequence Number, unique within a message
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration
+     * @param address Credit card holder address
+     * @param zip Credit card holder zip code
+     * @param amount Amount of charge to be authorized
+     */
+    public AuthRequest(String transSequenceNumber,
+                       String cardNumber,
+                       String expiration,
+                       String address,
+                       String zip,
+                       String amount) {
+        this.transSequenceNumber = transSequenceNumber;
+        this.cardNumber = cardNumber;
+        this.expiration = expiration;
+        this.address = address;
+        this.zip = zip;
+        this.amount = amount;
+    }
+
+    public String getTransSequenceNumber() {
+        return transSequenceNumber;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public String getExpiration() {
+        return expiration;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getZip() {
+        return zip;
+    }
+
+    public String getAmount() {
+        return amount;
+    }
+}
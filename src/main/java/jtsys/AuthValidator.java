@@ -0,0 +1,373 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Local validation of requests before they are encoded and sent, so bad
+ * card numbers, expired cards, malformed amounts and merchant profiles
+ * fail without a gateway round trip.
+ *
+ * Card checks do not allocate when valid. Merchant fields are checked once
+ * per merchant, the result is cached on the Merchant until a field changes.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AuthValidator {
+
+    private static final ValidationReason[] VALID = {};
+
+    // Merchant fields only sent in settlement requests
+    private static final EnumSet<ValidationReason> SETTLE_ONLY = EnumSet.of(
+        ValidationReason.MERCHANT_AGENT,
+        ValidationReason.MERCHANT_CHAIN,
+        ValidationReason.MERCHANT_V
+    );
+
+    private final Clock clock;
+    private volatile BinRangeIndex bins;
+    private volatile boolean rejectZeroAmount;
+
+    public AuthValidator() {
+        this(Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param clock Clock used to check card expiration
+     */
+    public AuthValidator(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Set the BIN range index used to reject unsupported cards
+     *
+     * @param bins BinRangeIndex to check cards against, null to disable
+     */
+    public void setBinIndex(BinRangeIndex bins) {
+        this.bins = bins;
+    }
+
+    /**
+     * Reject zero amount authorizations, by default they are allowed as
+     * they are used to verify a card without charging it
+     *
+     * @param rejectZeroAmount true to reject zero amounts, default false
+     */
+    public void setRejectZeroAmount(boolean rejectZeroAmount) {
+        this.rejectZeroAmount = rejectZeroAmount;
+    }
+
+    /**
+     * Validate an authorization request
+     *
+     * @param merchant Merchant account to use
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration MMYY
+     * @param amount Amount of charge to be authorized
+     * @return List<ValidationReason> reasons the request is invalid, empty
+     *                                if valid
+     */
+    public List<ValidationReason> validate(Merchant merchant,
+                                           String transSequenceNumber,
+                                           String cardNumber,
+                                           String expiration,
+                                           String amount) {
+        return(validate(merchant,
+                        transSequenceNumber,
+                        cardNumber,
+                        expiration,
+                        amount(Amounts.cents(amount))));
+    }
+
+    /**
+     * Validate an authorization request
+     *
+     * @param merchant Merchant account to use
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration MMYY
+     * @param amount Amount of charge to be authorized in cents
+     * @return List<ValidationReason> reasons the request is invalid, empty
+     *                                if valid
+     */
+    public List<ValidationReason> validate(Merchant merchant,
+                                           String transSequenceNumber,
+                                           String cardNumber,
+                                           String expiration,
+                                           long amount) {
+        return(validate(merchant,
+                        transSequenceNumber,
+                        cardNumber,
+                        expiration,
+                        amount(amount)));
+    }
+
+    private List<ValidationReason> validate(Merchant merchant,
+                                            String transSequenceNumber,
+                                            String cardNumber,
+                                            String expiration,
+                                            ValidationReason amount) {
+        List<ValidationReason> reasons = null;
+        for(ValidationReason r : merchant(merchant))
+            if(!SETTLE_ONLY.contains(r))
+                reasons = add(reasons,r);
+        if(!digits(transSequenceNumber,4,4))
+            reasons = add(reasons,ValidationReason.TRANS_SEQUENCE_NUMBER);
+        ValidationReason r = card(cardNumber);
+        if(r!=null)
+            reasons = add(reasons,r);
+        r = expiration(expiration);
+        if(r!=null)
+            reasons = add(reasons,r);
+        if(amount!=null)
+            reasons = add(reasons,amount);
+        if(reasons==null)
+            return(Collections.emptyList());
+        return(reasons);
+    }
+
+    /**
+     * Validate an authorization request
+     *
+     * @param merchant Merchant account to use
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration MMYY
+     * @param amount Amount of charge to be authorized
+     * @throws ValidationException if the request is invalid
+     */
+    public void check(Merchant merchant,
+                      String transSequenceNumber,
+                      String cardNumber,
+                      String expiration,
+                      String amount) throws ValidationException {
+        List<ValidationReason> reasons = validate(merchant,
+                                                  transSequenceNumber,
+                                                  cardNumber,
+                                                  expiration,
+                                                  amount);
+        if(!reasons.isEmpty())
+            throw new ValidationException(reasons);
+    }
+
+    /**
+     * Validate an authorization request
+     *
+     * @param merchant Merchant account to use
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration MMYY
+     * @param amount Amount of charge to be authorized in cents
+     * @throws ValidationException if the request is invalid
+     */
+    public void check(Merchant merchant,
+                      String transSequenceNumber,
+                      String cardNumber,
+                      String expiration,
+                      long amount) throws ValidationException {
+        List<ValidationReason> reasons = validate(merchant,
+                                                  transSequenceNumber,
+                                                  cardNumber,
+                                                  expiration,
+                                                  amount);
+        if(!reasons.isEmpty())
+            throw new ValidationException(reasons);
+    }
+
+    /**
+     * Validate every merchant field used in settlement requests
+     *
+     * @param merchant Merchant account to use
+     * @throws ValidationException if any merchant field is invalid
+     */
+    public void checkSettle(Merchant merchant) throws ValidationException {
+        checkSettle(merchant,null);
+    }
+
+    /**
+     * Validate every merchant field used in settlement requests and that
+     * the card is supported, before it is added to a batch
+     *
+     * @param merchant Merchant account to use
+     * @param cardNumber Credit card number, null to skip the card check
+     * @throws ValidationException if any merchant field is invalid or the
+     *                             card is not supported
+     */
+    public void checkSettle(Merchant merchant,
+                            String cardNumber) throws ValidationException {
+        ValidationReason[] reasons = merchant(merchant);
+        boolean unsupported = cardNumber!=null && !supported(cardNumber);
+        if(reasons.length>0 || unsupported) {
+            List<ValidationReason> l = new ArrayList<>(reasons.length+1);
+            Collections.addAll(l,reasons);
+            if(unsupported)
+                l.add(ValidationReason.CARD_NOT_SUPPORTED);
+            throw new ValidationException(l);
+        }
+    }
+
+    /**
+     * Validate every merchant field used in settlement requests and that
+     * every card sent in a store's batch is supported
+     *
+     * @param store PendingTransactionStore to be settled
+     * @throws ValidationException if any merchant field is invalid or a
+     *                             card is not supported
+     */
+    public void checkSettle(PendingTransactionStore store) throws ValidationException {
+        BinRangeIndex b = bins;
+        String unsupported = null;
+        if(b!=null)
+            synchronized(store) {
+                int n = store.size();
+                for(int i=0;i<n && unsupported==null;i++) {
+                    String card = store.getCardNumber(i);
+                    if(!store.isOmitted(i) && !b.isSupported(card))
+                        unsupported = card;
+                }
+            }
+        checkSettle(store.getMerchant(),unsupported);
+    }
+
+    /**
+     * Merchant field validation, cached on the merchant
+     *
+     * @param merchant Merchant account to check
+     * @return ValidationReason[] reasons merchant fields are invalid, empty
+     *                            if valid
+     */
+    ValidationReason[] merchant(Merchant merchant) {
+        ValidationReason[] reasons = merchant.getValidated();
+        if(reasons==null) {
+            reasons = validateMerchant(merchant);
+            merchant.setValidated(reasons);
+        }
+        return(reasons);
+    }
+
+    private static ValidationReason[] validateMerchant(Merchant m) {
+        List<ValidationReason> reasons = null;
+        if(!digits(m.getBin(),6,6))
+            reasons = add(reasons,ValidationReason.MERCHANT_BIN);
+        if(!digits(m.getId(),12,12))
+            reasons = add(reasons,ValidationReason.MERCHANT_ID);
+        if(!digits(m.getStore(),4,4))
+            reasons = add(reasons,ValidationReason.MERCHANT_STORE);
+        if(!digits(m.getTerminal(),4,4))
+            reasons = add(reasons,ValidationReason.MERCHANT_TERMINAL);
+        if(!digits(m.getAgent(),6,6))
+            reasons = add(reasons,ValidationReason.MERCHANT_AGENT);
+        if(!digits(m.getChain(),6,6))
+            reasons = add(reasons,ValidationReason.MERCHANT_CHAIN);
+        if(!digits(m.getMcc(),4,4))
+            reasons = add(reasons,ValidationReason.MERCHANT_MCC);
+        if(!digits(m.getV(),8,8))
+            reasons = add(reasons,ValidationReason.MERCHANT_V);
+        if(m.getIndustryCode()<=' ' || m.getIndustryCode()>'~')
+            reasons = add(reasons,ValidationReason.MERCHANT_INDUSTRY_CODE);
+        if(m.getZip()==null || m.getZip().length()<5 || m.getZip().length()>9)
+            reasons = add(reasons,ValidationReason.MERCHANT_ZIP);
+        if(m.getName()==null || m.getName().trim().isEmpty())
+            reasons = add(reasons,ValidationReason.MERCHANT_NAME);
+        if(m.getCity()==null || m.getCity().trim().isEmpty())
+            reasons = add(reasons,ValidationReason.MERCHANT_CITY);
+        if(m.getState()==null || m.getState().length()!=2)
+            reasons = add(reasons,ValidationReason.MERCHANT_STATE);
+        if(reasons==null)
+            return(VALID);
+        return(reasons.toArray(new ValidationReason[reasons.size()]));
+    }
+
+    private ValidationReason card(String cardNumber) {
+        if(!digits(cardNumber,13,19))
+            return(ValidationReason.CARD_NUMBER_FORMAT);
+        if(!luhn(cardNumber))
+            return(ValidationReason.CARD_NUMBER_CHECK_DIGIT);
+        if(!supported(cardNumber))
+            return(ValidationReason.CARD_NOT_SUPPORTED);
+        return(null);
+    }
+
+    private boolean supported(String cardNumber) {
+        BinRangeIndex b = bins;
+        return(b==null || b.isSupported(cardNumber));
+    }
+
+    private ValidationReason expiration(String expiration) {
+        if(!digits(expiration,4,4))
+            return(ValidationReason.EXPIRATION_FORMAT);
+        int month = (expiration.charAt(0)-'0')*10+expiration.charAt(1)-'0';
+        int year = 2000+(expiration.charAt(2)-'0')*10+expiration.charAt(3)-'0';
+        if(month<1 || month>12)
+            return(ValidationReason.EXPIRATION_FORMAT);
+        LocalDate today = LocalDate.now(clock);
+        // Valid through the last day of the expiration month
+        if(year*12+month<today.getYear()*12+today.getMonthValue())
+            return(ValidationReason.CARD_EXPIRED);
+        return(null);
+    }
+
+    /**
+     * @param cents amount in cents, -1 if not a valid amount string
+     */
+    private ValidationReason amount(long cents) {
+        if(cents<0 || cents>Amounts.MAX_AMOUNT)
+            return(ValidationReason.AMOUNT_FORMAT);
+        if(cents==0 && rejectZeroAmount)
+            return(ValidationReason.AMOUNT_ZERO);
+        return(null);
+    }
+
+    /**
+     * Luhn (mod 10) check digit, walks the digits without allocating
+     *
+     * @param number CharSequence of digits
+     * @return boolean true if the check digit is valid
+     */
+    public static boolean luhn(CharSequence number) {
+        int sum = 0;
+        boolean dbl = false;
+        for(int i=number.length()-1;i>=0;i--) {
+            int d = number.charAt(i)-'0';
+            if(d<0 || d>9)
+                return(false);
+            if(dbl) {
+                d <<= 1;
+                if(d>9)
+                    d -= 9;
+            }
+            sum += d;
+            dbl = !dbl;
+        }
+        return(number.length()>0 && sum%10==0);
+    }
+
+    private static boolean digits(String s, int min, int max) {
+        if(s==null || s.length()<min || s.length()>max)
+            return(false);
+        for(int i=0;i<s.length();i++)
+            if(s.charAt(i)<'0' || s.charAt(i)>'9')
+                return(false);
+        return(true);
+    }
+
+    private static List<ValidationReason> add(List<ValidationReason> reasons,
+                                              ValidationReason r) {
+        if(reasons==null)
+            reasons = new ArrayList<>();
+        reasons.add(r);
+        return(reasons);
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settlement reconciliation, keeps running totals per batch as detail
+ * records are added and compares them with the Batch Record Count and
+ * Batch Net Deposit reported in the trailer response.
+ *
+ * Voided details count as batch records but not towards the net deposit.
+ * Batches are forgotten once reconciled so memory is bounded by the
+ * number of open batches, not the number of transactions.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class BatchReconciler {
+
+    // Header, Parameter and Trailer records in every batch
+    private static final int BATCH_OVERHEAD_RECORDS = 3;
+
+    /**
+     * Kinds of settlement discrepancies
+     */
+    public enum Kind {
+        RECORD_COUNT("Batch Record Count mismatch"),
+        NET_DEPOSIT("Batch Net Deposit mismatch"),
+        REJECTED("Batch rejected"),
+        NO_TOTALS("Settle response has no batch totals"),
+        UNKNOWN_BATCH("Settle response for unknown batch"),
+        NO_RESPONSE("Batch has no settle response");
+
+        private String value;
+
+        Kind(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return this.value;
+        }
+    }
+
+    /**
+     * Receives discrepancies as they are found
+     */
+    public interface Listener {
+        void discrepancy(Discrepancy d);
+    }
+
+    /**
+     * Difference between submitted batch totals and a settle response
+     */
+    public static final class Discrepancy {
+
+        private final Kind kind;
+        private final String merchantId;
+        private final String terminal;
+        private final String batchNumber;
+        private final long expectedCount;
+        private final long reportedCount;
+        private final long expectedNet;
+        private final long reportedNet;
+
+        private Discrepancy(Kind kind,
+                            String merchantId,
+                            String terminal,
+                            String batchNumber,
+                            long expectedCount,
+                            long reportedCount,
+                            long expectedNet,
+                            long reportedNet) {
+            this.kind = kind;
+            this.merchantId = merchantId;
+            this.terminal = terminal;
+            this.batchNumber = batchNumber;
+            this.expectedCount = expectedCount;
+            this.reportedCount = reportedCount;
+            this.expectedNet = expectedNet;
+            this.reportedNet = reportedNet;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getMerchantId() {
+            return merchantId;
+        }
+
+        public String getTerminal() {
+            return terminal;
+        }
+
+        public String getBatchNumber() {
+            return batchNumber;
+        }
+
+        public long getExpectedCount() {
+            return expectedCount;
+        }
+
+        public long getReportedCount() {
+            return reportedCount;
+        }
+
+        /**
+         * @return long expected net deposit in cents
+         */
+        public long getExpectedNet() {
+            return expectedNet;
+        }
+
+        /**
+         * @return long reported net deposit in cents, -1 if not reported
+         */
+        public long getReportedNet() {
+            return reportedNet;
+        }
+
+        @Override
+        public String toString() {
+            return(String.format("%s merchant %s terminal %s batch %s "
+                               + "records %d/%d net %d/%d",
+                                 kind.value(),
+                                 merchantId,
+                                 terminal,
+                                 batchNumber,
+                                 expectedCount,
+                                 reportedCount,
+                                 expectedNet,
+                                 reportedNet));
+        }
+    }
+
+    private static final class Totals {
+
+        private final String merchantId;
+        private final String terminal;
+        private final String batchNumber;
+        private final LongAdder details = new LongAdder();
+        private final LongAdder net = new LongAdder();
+
+        private Totals(String merchantId, String terminal, String batchNumber) {
+            this.merchantId = merchantId;
+            this.terminal = terminal;
+            this.batchNumber = batchNumber;
+        }
+    }
+
+    private final ConcurrentHashMap<String,Totals> batches = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add a detail record to a batch
+     *
+     * @param merchant Merchant account the batch belongs to
+     * @param batchNumber Merchant specific batch number
+     * @param amount Settlement amount in cents
+     * @param voided true if the detail is voided
+     */
+    public void add(Merchant merchant,
+                    String batchNumber,
+                    long amount,
+                    boolean voided) {
+        add(merchant.getId(),merchant.getTerminal(),batchNumber,amount,voided);
+    }
+
+    /**
+     * Add a detail record to a batch
+     *
+     * @param merchant Merchant account the batch belongs to
+     * @param batchNumber Merchant specific batch number
+     * @param amount Settlement amount, as passed to Tsys.settle and parsed
+     *               the same way by Amounts.parse, digits without a
+     *               decimal point are cents
+     * @param voided true if the detail is voided
+     * @throws Exception if amount is not a valid amount, as Tsys.settle
+     *                   would reject it
+     */
+    public void add(Merchant merchant,
+                    String batchNumber,
+                    String amount,
+                    boolean voided) throws Exception {
+        add(merchant,batchNumber,Amounts.parse(amount),voided);
+    }
+
+    private void add(String merchantId,
+                     String terminal,
+                     String batchNumber,
+                     long amount,
+                     boolean voided) {
+        String b = batchNumber(batchNumber);
+        Totals t = batches.computeIfAbsent(key(merchantId,terminal,b),
+                                           k -> new Totals(merchantId,terminal,b));
+        t.details.increment();
+        if(!voided)
+            t.net.add(amount);
+    }
+
+    /**
+     * Number of batches with details but no settle response yet
+     *
+     * @return int count of open batches
+     */
+    public int openBatches() {
+        return(batches.size());
+    }
+
+    /**
+     * Reconcile a batch against its settle response, the batch is closed
+     * whatever the outcome
+     *
+     * @param merchant Merchant account the batch belongs to
+     * @param batchNumber Merchant specific batch number
+     * @param response LinkedHashMap returned by Tsys.settle
+     * @return boolean true if the response matches the batch totals
+     */
+    public boolean reconcile(Merchant merchant,
+                             String batchNumber,
+                             Map<String,String> response) {
+        String count = response.get(SettleResponseKeys.Batch_Record_Count.key());
+        String net = response.get(SettleResponseKeys.Batch_Net_Deposit.key());
+        boolean rejected = response.containsKey(SettleResponseErrorKeys.Error_Type.name().replace("_"," "));
+        return(reconcile(merchant.getId(),
+                         merchant.getTerminal(),
+                         batchNumber,
+                         count==null ? -1 : Long.parseLong(count),
+                         net==null ? -1 : Long.parseLong(net),
+                         rejected));
+    }
+
+    /**
+     * Reconcile a batch from the totals it was sent with, for callers that
+     * do not add details as they go, such as Tsys.setReconciler
+     *
+     * @param merchant Merchant account the batch belongs to
+     * @param batchNumber Merchant specific batch number
+     * @param details number of detail records sent, voided included
+     * @param netDeposit Batch Net Deposit sent in cents, voided excluded
+     * @param response LinkedHashMap returned by Tsys.settle
+     * @return boolean true if the response matches the batch totals
+     */
+    public boolean reconcile(Merchant merchant,
+                             String batchNumber,
+                             long details,
+                             long netDeposit,
+                             Map<String,String> response) {
+        String b = batchNumber(batchNumber);
+        Totals t = batches.computeIfAbsent(key(merchant.getId(),merchant.getTerminal(),b),
+                                           k -> new Totals(merchant.getId(),merchant.getTerminal(),b));
+        t.details.add(details);
+        t.net.add(netDeposit);
+        return(reconcile(merchant,batchNumber,response));
+    }
+
+    private boolean reconcile(String merchantId,
+                              String terminal,
+                              String batchNumber,
+                              long count,
+                              long net,
+                              boolean rejected) {
+        String b = batchNumber(batchNumber);
+        Totals t = batches.remove(key(merchantId,terminal,b));
+        if(t==null) {
+            fire(new Discrepancy(Kind.UNKNOWN_BATCH,merchantId,terminal,b,0,count,0,net));
+            return(false);
+        }
+        long expectedCount = t.details.sum()+BATCH_OVERHEAD_RECORDS;
+        long expectedNet = t.net.sum();
+        Kind kind = null;
+        if(rejected)
+            kind = Kind.REJECTED;
+        else if(count<0 || net<0)
+            kind = Kind.NO_TOTALS;
+        else if(count!=expectedCount)
+            kind = Kind.RECORD_COUNT;
+        else if(net!=expectedNet)
+            kind = Kind.NET_DEPOSIT;
+        if(kind==null)
+            return(true);
+        fire(new Discrepancy(kind,merchantId,terminal,b,expectedCount,count,expectedNet,net));
+        return(false);
+    }
+
+    /**
+     * Report every open batch as having no response and close them
+     *
+     * @return int number of batches reported
+     */
+    public int closeOpenBatches() {
+        int n = 0;
+        Iterator<Map.Entry<String,Totals>> i = batches.entrySet().iterator();
+        while(i.hasNext()) {
+            Totals t = i.next().getValue();
+            i.remove();
+            fire(new Discrepancy(Kind.NO_RESPONSE,
+                                 t.merchantId,
+                                 t.terminal,
+                                 t.batchNumber,
+                                 t.details.sum()+BATCH_OVERHEAD_RECORDS,
+                                 -1,
+                                 t.net.sum(),
+                                 -1));
+            n++;
+        }
+        return(n);
+    }
+
+    /**
+     * Reconcile a day's journal in a single streaming pass
+     *
+     * One record per line, fields separated by |, amounts in cents
+     *
+     * D|merchantId|terminal|batchNumber|amount|voided(0/1)
+     * R|merchantId|terminal|batchNumber|Batch Record Count|Batch Net Deposit|Batch Response Code
+     *
+     * Batches are closed as their R record is read, batches still open at
+     * the end of the journal are reported with Kind.NO_RESPONSE.
+     *
+     * @param journal Reader positioned at the start of the journal
+     * @return long number of batches that reconciled
+     * @throws Exception if the journal cannot be read or has invalid lines
+     */
+    public long reconcile(Reader journal) throws Exception {
+        BufferedReader r = journal instanceof BufferedReader ?
+                           (BufferedReader)journal :
+                           new BufferedReader(journal);
+        long good = 0;
+        long n = 0;
+        String line;
+        try {
+            while((line = r.readLine()) != null) {
+                n++;
+                if(line.isEmpty() || line.charAt(0)=='#')
+                    continue;
+                String[] f = line.split("\\|",-1);
+                if(f[0].equals("D") && f.length==6)
+                    add(f[1],f[2],f[3],Long.parseLong(f[4]),f[5].equals("1"));
+                else if(f[0].equals("R") && f.length==7) {
+                    if(reconcile(f[1],
+                                 f[2],
+                                 f[3],
+                                 Long.parseLong(f[4]),
+                                 Long.parseLong(f[5]),
+                                 f[6].equals("RB")))
+                        good++;
+                } else
+                    throw new Exception("Invalid journal record at line "+n+": "+line);
+            }
+        } catch(IOException e) {
+            throw new Exception("Unable to read journal at line "+n,e);
+        } catch(NumberFormatException e) {
+            throw new Exception("Invalid number in journal at line "+n,e);
+        }
+        closeOpenBatches();
+        return(good);
+    }
+
+    private void fire(Discrepancy d) {
+        for(Listener l : listeners)
+            l.discrepancy(d);
+    }
+
+    private static String batchNumber(String batchNumber) {
+        return(String.format("%3.3s",batchNumber).replace(" ","0"));
+    }
+
+    private static String key(String merchantId, String terminal, String batchNumber) {
+        return(merchantId+'/'+terminal+'/'+batchNumber);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Index of card number (PAN) prefix ranges to card brand, card type and
+ * whether the merchant accepts the card, loaded from a local table file.
+ *
+ * One range per line, fields separated by | in the following order,
+ * blank lines and lines starting with # are ignored
+ *
+ * low|high|brand|type|supported
+ *
+ * low and high are PAN prefixes of 1 - 9 digits, inclusive, brand is a
+ * CardBrands name, type a CardTypes name and supported Y or N. A range
+ * may lie inside a wider range, the narrowest range containing a PAN is
+ * used. Ranges that partially overlap are rejected.
+ *
+ * Ranges are flattened when loaded into sorted primitive arrays, 10 bytes
+ * per range, a lookup is a binary search over the first 9 digits of the
+ * PAN and does not allocate.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class BinRangeIndex {
+
+    private static final int DIGITS = 9;
+    private static final int FIELDS = 5;
+
+    private final int[] lows;
+    private final int[] highs;
+    private final short[] attributes;                       // brand<<8 | type<<1 | supported
+    private final boolean unknownSupported;
+
+    private BinRangeIndex(int[] lows,
+                          int[] highs,
+                          short[] attributes,
+                          boolean unknownSupported) {
+        this.lows = lows;
+        this.highs = highs;
+        this.attributes = attributes;
+        this.unknownSupported = unknownSupported;
+    }
+
+    /**
+     * Load a range table, cards in no range are supported
+     *
+     * @param file Path to range table file
+     * @return BinRangeIndex of the ranges in the file
+     * @throws Exception if the file cannot be read or has invalid lines
+     */
+    public static BinRangeIndex load(Path file) throws Exception {
+        return(load(file,true));
+    }
+
+    /**
+     * Load a range table
+     *
+     * @param file Path to range table file
+     * @param unknownSupported true if cards in no range are supported
+     * @return BinRangeIndex of the ranges in the file
+     * @throws Exception if the file cannot be read or has invalid lines
+     */
+    public static BinRangeIndex load(Path file,
+                                     boolean unknownSupported) throws Exception {
+        int[] lows = new int[1024];
+        int[] highs = new int[1024];
+        short[] attributes = new short[1024];
+        int size = 0;
+        int n = 0;
+        try (BufferedReader r = Files.newBufferedReader(file,StandardCharsets.UTF_8)) {
+            String line;
+            while((line = r.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] f = line.split("\\|",-1);
+                if(f.length!=FIELDS)
+                    throw new Exception(file+":"+n+" has "+f.length+" fields and should be "+FIELDS);
+                int low = prefix(f[0].trim(),'0');
+                int high = prefix(f[1].trim(),'9');
+                if(low<0 || high<0 || low>high)
+                    throw new Exception(file+":"+n+" invalid range "+f[0]+" - "+f[1]);
+                short a;
+                try {
+                    a = attribute(CardBrands.valueOf(f[2].trim()),
+                                  CardTypes.valueOf(f[3].trim()),
+                                  "Y".equals(f[4].trim()));
+                } catch(IllegalArgumentException e) {
+                    throw new Exception(file+":"+n+" unknown card brand or type "+f[2]+" "+f[3]);
+                }
+                if(size==lows.length) {
+                    lows = Arrays.copyOf(lows,size*2);
+                    highs = Arrays.copyOf(highs,size*2);
+                    attributes = Arrays.copyOf(attributes,size*2);
+                }
+                lows[size] = low;
+                highs[size] = high;
+                attributes[size] = a;
+                size++;
+            }
+        } catch(IOException e) {
+            throw new Exception("Unable to read BIN range table "+file,e);
+        }
+        return(flatten(lows,highs,attributes,size,unknownSupported));
+    }
+
+    /**
+     * Number of disjoint ranges after flattening nested ranges
+     *
+     * @return int number of ranges
+     */
+    public int size() {
+        return(lows.length);
+    }
+
+    /**
+     * @param pan Credit card number
+     * @return CardBrands brand of the card, null if in no range
+     */
+    public CardBrands brand(CharSequence pan) {
+        int a = find(pan);
+        return(a<0 ? null : CardBrands.values()[a>>8]);
+    }
+
+    /**
+     * @param pan Credit card number
+     * @return CardTypes type of the card, null if in no range
+     */
+    public CardTypes type(CharSequence pan) {
+        int a = find(pan);
+        return(a<0 ? null : CardTypes.values()[(a>>1) & 0x7f]);
+    }
+
+    /**
+     * @param pan Credit card number
+     * @return boolean true if the card is accepted, cards in no range are
+     *                 accepted if the index was loaded to accept them
+     */
+    public boolean isSupported(CharSequence pan) {
+        int a = find(pan);
+        return(a<0 ? unknownSupported : (a & 1)==1);
+    }
+
+    /**
+     * Attributes of the narrowest range containing a PAN
+     *
+     * @param pan Credit card number
+     * @return int packed attributes, -1 if in no range or not digits
+     */
+    int find(CharSequence pan) {
+        if(pan==null || pan.length()==0)
+            return(-1);
+        int key = 0;
+        for(int i=0;i<DIGITS;i++) {
+            int d = 0;
+            if(i<pan.length()) {
+                d = pan.charAt(i)-'0';
+                if(d<0 || d>9)
+                    return(-1);
+            }
+            key = key*10+d;
+        }
+        int lo = 0;
+        int hi = lows.length-1;
+        while(lo<=hi) {                                     // last range with low <= key
+            int mid = (lo+hi)>>>1;
+            if(lows[mid]<=key)
+                lo = mid+1;
+            else
+                hi = mid-1;
+        }
+        if(hi<0 || highs[hi]<key)
+            return(-1);
+        return(attributes[hi]);
+    }
+
+    private static short attribute(CardBrands brand, CardTypes type, boolean supported) {
+        return((short)(brand.ordinal()<<8 | type.ordinal()<<1 | (supported ? 1 : 0)));
+    }
+
+    /**
+     * Prefix padded to 9 digits
+     */
+    private static int prefix(String s, char pad) {
+        if(s.isEmpty() || s.length()>DIGITS)
+            return(-1);
+        int v = 0;
+        for(int i=0;i<DIGITS;i++) {
+            char c = i<s.length() ? s.charAt(i) : pad;
+            if(c<'0' || c>'9')
+                return(-1);
+            v = v*10+c-'0';
+        }
+        return(v);
+    }
+
+    /**
+     * Split nested ranges into disjoint ranges, the narrowest range wins
+     */
+    private static BinRangeIndex flatten(int[] lows,
+                                         int[] highs,
+                                         short[] attributes,
+                                         int size,
+                                         boolean unknownSupported) throws Exception {
+        // Sort by low ascending, then high descending so wider ranges come first
+        long[] order = new long[size];
+        for(int i=0;i<size;i++)
+            order[i] = (long)lows[i]<<32 | (0x7fffffffL-highs[i]);
+        Integer[] index = new Integer[size];
+        for(int i=0;i<size;i++)
+            index[i] = i;
+        Arrays.sort(index,(a,b) -> Long.compare(order[a],order[b]));
+        Segments out = new Segments(size);
+        int[] stack = new int[16];
+        int top = -1;
+        long cursor = 0;
+        for(int k=0;k<size;k++) {
+            int r = index[k];
+            while(top>=0 && highs[stack[top]]<lows[r]) {
+                int s = stack[top--];
+                cursor = out.add(cursor,highs[s],attributes[s]);
+            }
+            if(top>=0) {
+                int s = stack[top];
+                if(highs[r]>highs[s] || (lows[r]==lows[s] && highs[r]==highs[s]))
+                    throw new Exception("BIN range "+lows[r]+" - "+highs[r]+
+                                        " overlaps "+lows[s]+" - "+highs[s]);
+                if(cursor<lows[r])
+                    out.add(cursor,lows[r]-1,attributes[s]);
+            }
+            cursor = lows[r];
+            if(++top==stack.length)
+                stack = Arrays.copyOf(stack,stack.length*2);
+            stack[top] = r;
+        }
+        while(top>=0) {
+            int s = stack[top--];
+            cursor = out.add(cursor,highs[s],attributes[s]);
+        }
+        return(new BinRangeIndex(Arrays.copyOf(out.lows,out.size),
+                                 Arrays.copyOf(out.highs,out.size),
+                                 Arrays.copyOf(out.attributes,out.size),
+                                 unknownSupported));
+    }
+
+    private static final class Segments {
+
+        private int[] lows;
+        private int[] highs;
+        private short[] attributes;
+        private int size;
+
+        private Segments(int capacity) {
+            capacity = Math.max(capacity,16);
+            lows = new int[capacity];
+            highs = new int[capacity];
+            attributes = new short[capacity];
+        }
+
+        /**
+         * Add cursor - high unless empty, adjacent equal ranges are merged
+         *
+         * @return long next cursor
+         */
+        private long add(long cursor, int high, short attribute) {
+            if(cursor>high)
+                return(cursor);
+            if(size>0 && highs[size-1]+1==cursor && attributes[size-1]==attribute) {
+                highs[size-1] = high;
+                return((long)high+1);
+            }
+            if(size==lows.length) {
+                lows = Arrays.copyOf(lows,size*2);
+                highs = Arrays.copyOf(highs,size*2);
+                attributes = Arrays.copyOf(attributes,size*2);
+            }
+            lows[size] = (int)cursor;
+            highs[size] = high;
+            attributes[size] = attribute;
+            size++;
+            return((long)high+1);
+        }
+    }
+}
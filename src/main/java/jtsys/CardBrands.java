@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public enum CardBrands {
+
+    A("American Express"),
+    C("China UnionPay"),
+    D("Discover"),
+    I("Diners Club"),
+    J("JCB"),
+    M("Mastercard"),
+    O("Other"),
+    V("Visa");
+
+    private String value;
+
+    CardBrands(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return this.value;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public enum CardTypes {
+
+    C("Credit"),
+    D("Debit"),
+    P("Prepaid"),
+    U("Unknown");
+
+    private String value;
+
+    CardTypes(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return this.value;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a gateway transaction phase. Only the merchant
+ * and terminal identify a transaction, card numbers are never recorded.
+ * Fields are set and the event committed only when a recording wants it,
+ * so a disabled event costs a begin and a shouldCommit.
+ *
+ * Only loaded through GatewayEvents.begin when jdk.jfr is available. Must
+ * not reference its subclasses, JFR instruments this class as it loads.
+ * Fields are not private, JFR does not record private fields of an event
+ * superclass.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+@Category({"JTsys","Gateway"})
+@StackTrace(false)
+abstract class GatewayEvent extends Event {
+
+    @Label("Merchant")
+    String merchant;
+
+    @Label("Terminal")
+    String terminal;
+
+    @Label("MIME Type")
+    String mime;
+
+    @Label("Outcome")
+    @Description("Response Code, GB/QD/RB, error code or exception")
+    String outcome;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestSize;
+
+    @Label("Response Size")
+    @DataAmount
+    long responseSize;
+
+    @Label("Connection Reused")
+    boolean reused;
+
+    /**
+     * End the event and commit it if a recording wants it
+     *
+     * @param merchant Merchant account, null if not known
+     * @param mime Content-Type of the request
+     * @param outcome outcome code
+     * @param requestSize request bytes
+     * @param responseSize response bytes
+     * @param reused true if the connection was used for an earlier request
+     */
+    void record(Merchant merchant,
+                String mime,
+                String outcome,
+                long requestSize,
+                long responseSize,
+                boolean reused) {
+        end();
+        if(!shouldCommit())
+            return;
+        if(merchant!=null) {
+            this.merchant = merchant.getId();
+            this.terminal = merchant.getTerminal();
+        }
+        this.mime = mime;
+        this.outcome = outcome;
+        this.requestSize = requestSize;
+        this.responseSize = responseSize;
+        this.reused = reused;
+        commit();
+    }
+
+    @Name("jtsys.Auth")
+    @Label("Auth")
+    @Description("Authorization from encode through decode")
+    static final class Auth extends GatewayEvent {}
+
+    @Name("jtsys.Settle")
+    @Label("Settle")
+    @Description("Settlement from encode through decode")
+    static final class Settle extends GatewayEvent {}
+
+    @Name("jtsys.Encode")
+    @Label("Encode")
+    @Description("Building a request message")
+    static final class Encode extends GatewayEvent {}
+
+    @Name("jtsys.Connect")
+    @Label("Connect")
+    @Description("Connecting to the gateway and TLS handshake")
+    static final class Connect extends GatewayEvent {}
+
+    @Name("jtsys.Send")
+    @Label("Send")
+    @Description("Writing a request to the gateway")
+    static final class Send extends GatewayEvent {}
+
+    @Name("jtsys.Receive")
+    @Label("Receive")
+    @Description("Waiting for and reading a gateway response")
+    static final class Receive extends GatewayEvent {}
+
+    @Name("jtsys.Decode")
+    @Label("Decode")
+    @Description("Parsing a gateway response")
+    static final class Decode extends GatewayEvent {}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * Java Flight Recorder events for gateway transactions. Events are only
+ * created when the running JDK has the jdk.jfr API, JDK 11 and later or
+ * OpenJDK 8u262 and later, on other JDKs begin returns null and nothing
+ * else is loaded. Set -Djtsys.jfr=false to never create events.
+ *
+ * The event classes are in GatewayEvent, callers only hold GatewayEvent
+ * references so this class and its callers load without jdk.jfr, event
+ * classes are only referenced from Factory.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+final class GatewayEvents {
+
+    /**
+     * Gateway transaction phases recorded
+     */
+    enum Kind {
+        AUTH,
+        SETTLE,
+        ENCODE,
+        CONNECT,
+        SEND,
+        RECEIVE,
+        DECODE
+    }
+
+    static final String OK = "OK";
+
+    private static final boolean ENABLED = available();
+
+    private GatewayEvents() {}
+
+    /**
+     * Begin an event
+     *
+     * @param kind Kind of event
+     * @return GatewayEvent begun, null if JFR is not available
+     */
+    static GatewayEvent begin(Kind kind) {
+        return(ENABLED ? Factory.begin(kind) : null);
+    }
+
+    /**
+     * @param e Exception that ended a phase
+     * @return String outcome naming the exception
+     */
+    static String outcome(Exception e) {
+        return(e.getClass().getSimpleName());
+    }
+
+    /**
+     * Creates events, only loaded when jdk.jfr is available
+     */
+    private static final class Factory {
+
+        private static GatewayEvent begin(Kind kind) {
+            GatewayEvent e;
+            switch(kind) {
+                case AUTH: e = new GatewayEvent.Auth(); break;
+                case SETTLE: e = new GatewayEvent.Settle(); break;
+                case ENCODE: e = new GatewayEvent.Encode(); break;
+                case CONNECT: e = new GatewayEvent.Connect(); break;
+                case SEND: e = new GatewayEvent.Send(); break;
+                case RECEIVE: e = new GatewayEvent.Receive(); break;
+                default: e = new GatewayEvent.Decode(); break;
+            }
+            e.begin();
+            return(e);
+        }
+    }
+
+    private static boolean available() {
+        if(!Boolean.parseBoolean(System.getProperty("jtsys.jfr","true")))
+            return(false);
+        try {
+            Class.forName("jdk.jfr.Event");
+            return(true);
+        } catch(ClassNotFoundException | LinkageError e) {
+            return(false);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers cards the issuer hard declined, invalid account, expired,
+ * lost, stolen, pick up, so retries within a time window are declined
+ * locally instead of being sent to the gateway again. Soft declines such
+ * as insufficient funds are not remembered, an approval forgets the card.
+ *
+ * Cards are keyed by a SHA-256 hash of a random per cache salt, card
+ * number and expiration, card numbers are not kept. Declines specific to a
+ * merchant, not permitted, restricted, stop recurring, are also keyed by
+ * Merchant Number so other merchants may still send the card. The cache is
+ * bounded, expired entries are removed first when full, then arbitrary
+ * entries.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class HardDeclineCache {
+
+    /**
+     * Key added to a local decline response, value Y
+     */
+    public static final String LOCAL_DECLINE_KEY = "Local Decline";
+
+    /**
+     * Default hard decline Response Codes, pick up (04, 07), invalid
+     * account (14), no such issuer (15), lost (41), stolen (43), expired
+     * (54), not permitted (57), restricted (62), stop recurring (R0, R1,
+     * R3)
+     */
+    public static final Set<String> DEFAULT_HARD_CODES = new HashSet<>(Arrays.asList(
+        "04","07","14","15","41","43","54","57","62","R0","R1","R3"));
+
+    /**
+     * Default hard decline Response Codes remembered per merchant, not
+     * permitted (57), restricted (62), stop recurring (R0, R1, R3)
+     */
+    public static final Set<String> DEFAULT_MERCHANT_CODES = new HashSet<>(Arrays.asList(
+        "57","62","R0","R1","R3"));
+
+    private static final String APPROVED = "00";
+
+    private final int maxEntries;
+    private final long window;
+    private final Set<String> hardCodes;
+    private final Set<String> merchantCodes;
+    private final byte[] salt = new byte[32];
+    private final ConcurrentHashMap<Key,Decline> declines = new ConcurrentHashMap<>();
+    private final ThreadLocal<MessageDigest> digests;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * Cache of the default hard decline codes
+     *
+     * @param maxEntries most cards remembered
+     * @param window time a hard decline is remembered
+     * @param unit TimeUnit of window
+     */
+    public HardDeclineCache(int maxEntries, long window, TimeUnit unit) {
+        this(maxEntries,window,unit,DEFAULT_HARD_CODES);
+    }
+
+    /**
+     * Cache of the given hard decline codes, those in DEFAULT_MERCHANT_CODES
+     * are remembered per merchant
+     *
+     * @param maxEntries most cards remembered
+     * @param window time a hard decline is remembered
+     * @param unit TimeUnit of window
+     * @param hardCodes Response Codes treated as hard declines
+     */
+    public HardDeclineCache(int maxEntries,
+                            long window,
+                            TimeUnit unit,
+                            Collection<String> hardCodes) {
+        this(maxEntries,window,unit,hardCodes,DEFAULT_MERCHANT_CODES);
+    }
+
+    /**
+     * @param maxEntries most cards remembered
+     * @param window time a hard decline is remembered
+     * @param unit TimeUnit of window
+     * @param hardCodes Response Codes treated as hard declines
+     * @param merchantCodes hard decline Response Codes remembered only for
+     *                      the merchant declined
+     */
+    public HardDeclineCache(int maxEntries,
+                            long window,
+                            TimeUnit unit,
+                            Collection<String> hardCodes,
+                            Collection<String> merchantCodes) {
+        if(maxEntries<1)
+            throw new IllegalArgumentException("maxEntries must be >= 1");
+        this.maxEntries = maxEntries;
+        this.window = unit.toNanos(window);
+        this.hardCodes = new HashSet<>(hardCodes);
+        this.merchantCodes = new HashSet<>(merchantCodes);
+        new SecureRandom().nextBytes(salt);
+        try {
+            final MessageDigest d = MessageDigest.getInstance("SHA-256");
+            digests = ThreadLocal.withInitial(() -> {
+                try {
+                    return((MessageDigest)d.clone());
+                } catch(CloneNotSupportedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Local decline for a card hard declined within the window
+     *
+     * @param merchant Merchant sending the card
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration
+     * @return LinkedHashMap<String,String> auth response with the issuer's
+     *                                      Response Code and text plus
+     *                                      LOCAL_DECLINE_KEY, null if the
+     *                                      card may be sent
+     */
+    public LinkedHashMap<String,String> check(Merchant merchant,
+                                              String cardNumber,
+                                              String expiration) {
+        Key key = key(cardNumber,expiration);
+        Decline d = live(key);
+        if(d==null && !declines.isEmpty())
+            d = live(key.scoped(merchant.getId()));
+        if(d==null) {
+            misses.increment();
+            return(null);
+        }
+        hits.increment();
+        LinkedHashMap<String,String> map = new LinkedHashMap<>();
+        for(AuthResponseKeys k : AuthResponseKeys.values())
+            map.put(k.key(),"");
+        map.put(AuthResponseKeys.Response_Code.key(),d.code);
+        map.put(AuthResponseKeys.Auth_Response_Text.key(),d.text);
+        map.put(LOCAL_DECLINE_KEY,"Y");
+        return(map);
+    }
+
+    /**
+     * Remember a hard decline, forget the card for the merchant on
+     * approval, soft declines and error responses are ignored
+     *
+     * @param merchant Merchant that sent the card
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration
+     * @param response Map<String,String> auth response
+     */
+    public void record(Merchant merchant,
+                       String cardNumber,
+                       String expiration,
+                       Map<String,String> response) {
+        String code = response.get(AuthResponseKeys.Response_Code.key());
+        if(code==null || response.containsKey(LOCAL_DECLINE_KEY))
+            return;
+        if(APPROVED.equals(code)) {
+            if(!declines.isEmpty()) {
+                Key key = key(cardNumber,expiration);
+                declines.remove(key);
+                declines.remove(key.scoped(merchant.getId()));
+            }
+            return;
+        }
+        if(!hardCodes.contains(code))
+            return;
+        if(declines.size()>=maxEntries)
+            evict();
+        String text = response.get(AuthResponseKeys.Auth_Response_Text.key());
+        Key key = key(cardNumber,expiration);
+        declines.put(merchantCodes.contains(code) ? key.scoped(merchant.getId()) : key,
+                     new Decline(code,text==null ? "" : text,System.nanoTime()+window));
+        recorded.increment();
+    }
+
+    /**
+     * Forget a card for every merchant, such as after the card holder
+     * updates it
+     *
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration
+     * @return boolean true if the card was remembered
+     */
+    public boolean invalidate(String cardNumber, String expiration) {
+        Key key = key(cardNumber,expiration);
+        boolean removed = false;
+        for(Iterator<Key> i = declines.keySet().iterator(); i.hasNext();)
+            if(i.next().sameCard(key)) {
+                i.remove();
+                invalidated.increment();
+                removed = true;
+            }
+        return(removed);
+    }
+
+    /**
+     * Forget every card
+     */
+    public void invalidateAll() {
+        invalidated.add(declines.size());
+        declines.clear();
+    }
+
+    /**
+     * @return int number of cards remembered, including expired not yet
+     *             removed
+     */
+    public int size() {
+        return(declines.size());
+    }
+
+    /**
+     * @return long local declines returned
+     */
+    public long getHits() {
+        return(hits.sum());
+    }
+
+    /**
+     * @return long checks of cards not remembered
+     */
+    public long getMisses() {
+        return(misses.sum());
+    }
+
+    /**
+     * @return long hard declines recorded
+     */
+    public long getRecorded() {
+        return(recorded.sum());
+    }
+
+    /**
+     * @return long cards forgotten by invalidation
+     */
+    public long getInvalidated() {
+        return(invalidated.sum());
+    }
+
+    /**
+     * @return long cards forgotten to stay within maxEntries
+     */
+    public long getEvicted() {
+        return(evicted.sum());
+    }
+
+    /**
+     * Make room, removes expired entries then arbitrary entries
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        declines.values().removeIf(d -> d.expires-now<=0);
+        Iterator<Key> i = declines.keySet().iterator();
+        while(declines.size()>=maxEntries && i.hasNext()) {
+            i.next();
+            i.remove();
+            evicted.increment();
+        }
+    }
+
+    /**
+     * @return Decline not yet expired, null if none
+     */
+    private Decline live(Key key) {
+        Decline d = declines.get(key);
+        if(d!=null && d.expires-System.nanoTime()<=0) {
+            declines.remove(key,d);
+            d = null;
+        }
+        return(d);
+    }
+
+    /**
+     * @return Key of a card for any merchant
+     */
+    private Key key(String cardNumber, String expiration) {
+        MessageDigest d = digests.get();
+        d.reset();
+        d.update(salt);
+        d.update(String.valueOf(cardNumber).getBytes(StandardCharsets.US_ASCII));
+        d.update((byte)'|');
+        d.update(String.valueOf(expiration).getBytes(StandardCharsets.US_ASCII));
+        byte[] h = d.digest();
+        long high = 0;
+        long low = 0;
+        for(int i=0;i<8;i++) {
+            high = high<<8 | (h[i] & 0xff);
+            low = low<<8 | (h[i+8] & 0xff);
+        }
+        return(new Key(high,low,null));
+    }
+
+    /**
+     * First 128 bits of a card's salted hash, plus the Merchant Number of a
+     * merchant specific decline
+     */
+    private static final class Key {
+
+        private final long high;
+        private final long low;
+        private final String merchantId;
+
+        private Key(long high, long low, String merchantId) {
+            this.high = high;
+            this.low = low;
+            this.merchantId = merchantId;
+        }
+
+        /**
+         * @return Key of the same card for one merchant
+         */
+        private Key scoped(String merchantId) {
+            return(new Key(high,low,String.valueOf(merchantId)));
+        }
+
+        private boolean sameCard(Key k) {
+            return(high==k.high && low==k.low);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return(false);
+            Key k = (Key)o;
+            return(sameCard(k) &&
+                   (merchantId==null ? k.merchantId==null : merchantId.equals(k.merchantId)));
+        }
+
+        @Override
+        public int hashCode() {
+            return((int)(low ^ low>>>32) ^ (merchantId==null ? 0 : merchantId.hashCode()));
+        }
+    }
+
+    private static final class Decline {
+
+        private final String code;
+        private final String text;
+        private final long expires;
+
+        private Decline(String code, String text, long expires) {
+            this.code = code;
+            this.text = text;
+            this.expires = expires;
+        }
+    }
+}
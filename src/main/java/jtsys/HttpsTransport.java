@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Transport posting each request to the gateway over HTTPS. Connecting and
+ * each read wait at most the timeout, a stalled gateway fails the request
+ * with a SocketTimeoutException.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class HttpsTransport implements Transport {
+
+    private final static String TSYS_URL = "https://ssl1.tsysacquiring.net/scripts/gateway.dll?transact";
+    private final static long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final URL url;
+    private final int timeout;
+
+    /**
+     * Transport to the TSYS gateway, 30 second timeout
+     */
+    public HttpsTransport() {
+        this(tsysUrl(),DEFAULT_TIMEOUT,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Transport to the TSYS gateway
+     *
+     * @param timeout connect and read timeout
+     * @param unit TimeUnit of timeout
+     */
+    public HttpsTransport(long timeout, TimeUnit unit) {
+        this(tsysUrl(),timeout,unit);
+    }
+
+    /**
+     * Transport to another gateway URL, such as a local stand-in, 30 second
+     * timeout
+     *
+     * @param url URL to post requests to, http URLs are allowed for testing
+     */
+    public HttpsTransport(URL url) {
+        this(url,DEFAULT_TIMEOUT,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Transport to another gateway URL, such as a local stand-in
+     *
+     * @param url URL to post requests to, http URLs are allowed for testing
+     * @param timeout connect and read timeout
+     * @param unit TimeUnit of timeout
+     */
+    public HttpsTransport(URL url, long timeout, TimeUnit unit) {
+        long t = unit.toMillis(timeout);
+        if(t<1)
+            throw new IllegalArgumentException("Timeout must be at least 1 millisecond");
+        this.url = url;
+        this.timeout = (int)Math.min(t,Integer.MAX_VALUE);
+    }
+
+    private static URL tsysUrl() {
+        try {
+            return(new URL(TSYS_URL));
+        } catch(MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private HttpURLConnection getConnection() throws IOException {
+        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        con.setRequestMethod("POST");
+        con.setDoOutput(true);
+        con.setDoInput(true);
+        con.setUseCaches(false);
+        con.setConnectTimeout(timeout);
+        con.setReadTimeout(timeout);
+        return(con);
+    }
+
+    @Override
+    public ResponseBuffer exchange(String mime, byte[] request) throws IOException {
+        HttpURLConnection con = getConnection();
+        con.setRequestProperty("Content-Type", mime);
+        con.setFixedLengthStreamingMode(request.length);
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.CONNECT);
+        try {
+            con.connect();
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.OK,0,0,false);
+            event = GatewayEvents.begin(GatewayEvents.Kind.SEND);
+            try (OutputStream os = con.getOutputStream()) {
+                os.write(request);
+                os.flush();
+            }
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.OK,request.length,0,false);
+            event = GatewayEvents.begin(GatewayEvents.Kind.RECEIVE);
+            String cipher = con instanceof HttpsURLConnection ?
+                            ((HttpsURLConnection)con).getCipherSuite() :
+                            null;
+            ResponseBuffer result;
+            try (InputStream is = con.getInputStream()) {
+                result = ResponseBuffer.read(is,con.getContentLength());
+            }
+            result.setConnection(cipher,url.getHost(),false);
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.OK,0,result.length(),false);
+            return(result);
+        } catch(IOException | RuntimeException e) {
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.outcome(e),0,0,false);
+            throw e;
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -27,6 +27,32 @@ public class Merchant {
     private String name;
     private String state;
     private String phone;
+    private volatile ValidationReason[] validated;         // cached by AuthValidator
+
+    public Merchant() {}
+
+    /**
+     * Copy of a merchant, such as a modifiable copy of a registered one
+     *
+     * @param m Merchant to copy
+     */
+    public Merchant(Merchant m) {
+        industryCode = m.industryCode;
+        agent = m.agent;
+        bin = m.bin;
+        id = m.id;
+        zip = m.zip;
+        v = m.v;
+        chain = m.chain;
+        mcc = m.mcc;
+        store = m.store;
+        terminal = m.terminal;
+        city = m.city;
+        name = m.name;
+        state = m.state;
+        phone = m.phone;
+        validated = m.validated;
+    }
 
     public String getAgent() {
         return agent;
@@ -86,58 +112,85 @@ public class Merchant {
 
     public void setAgent(String agent) {
         this.agent = agent;
+        validated = null;
     }
 
     public void setBin(String bin) {
         this.bin = bin;
+        validated = null;
     }
     
     public void setChain(String chain) {
         this.chain = chain;
+        validated = null;
     }
 
     public void setCity(String merchantCity) {
         this.city = merchantCity;
+        validated = null;
     }
 
     public void setId(String id) {
         this.id = id;
+        validated = null;
     }
 
     public void setIndustryCode(char industryCode) {
         this.industryCode = industryCode;
+        validated = null;
     }
 
     public void setMcc(String mcc) {
         this.mcc = mcc;
+        validated = null;
     }
 
     public void setName(String merchantName) {
         this.name = merchantName;
+        validated = null;
     }
 
     public void setPhone(String phone) {
         this.phone = phone;
+        validated = null;
     }
 
     public void setState(String merchantState) {
         this.state = merchantState;
+        validated = null;
     }
 
     public void setStore(String store) {
         this.store = store;
+        validated = null;
     }
 
     public void setTerminal(String terminal) {
         this.terminal = terminal;
+        validated = null;
     }
 
     public void setV(String v) {
         this.v = v;
+        validated = null;
     }
 
     public void setZip(String zip) {
         this.zip = zip;
+        validated = null;
+    }
+
+    /**
+     * Merchant field validation result, cleared whenever a field changes
+     *
+     * @return ValidationReason[] cached reasons, empty if valid, null if
+     *                            not yet validated
+     */
+    ValidationReason[] getValidated() {
+        return validated;
     }
 
+    void setValidated(ValidationReason[] validated) {
+        this.validated = validated;
+    }
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of merchant profiles loaded from a local config file
+ *
+ * One merchant per line, fields separated by | in the following order,
+ * blank lines and lines starting with # are ignored
+ *
+ * id|store|terminal|bin|agent|chain|mcc|industryCode|name|city|state|zip|phone|v
+ *
+ * Each merchant terminal is loaded once into a read only Merchant, values
+ * shared between merchants (agent, chain, BIN, city, etc) are stored once.
+ * Lookups return that Merchant without copying, its setters throw, use
+ * new Merchant(merchant) for a modifiable copy. Reloads build a new
+ * snapshot that is swapped in atomically, requests in flight keep using
+ * the Merchant they started with.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class MerchantRegistry {
+
+    private static final int FIELDS = 14;
+
+    private final Path file;
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(),0,-1,null,-1);
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Create a registry and load merchants from a config file
+     *
+     * @param file Path to merchant config file
+     * @throws Exception if the file cannot be read or has invalid lines
+     */
+    public MerchantRegistry(Path file) throws Exception {
+        this.file = file;
+        reload();
+    }
+
+    /**
+     * Lookup a merchant by merchant and terminal number
+     *
+     * @param id Merchant Number
+     * @param terminal Terminal Number
+     * @return Merchant read only registered merchant or null if not
+     *                  registered
+     */
+    public Merchant get(String id, String terminal) {
+        Map<String,Merchant> terminals = snapshot.merchants.get(id);
+        return(terminals==null ? null : terminals.get(terminal));
+    }
+
+    /**
+     * Number of merchant terminals in the current snapshot
+     *
+     * @return int count of registered merchant terminals
+     */
+    public int size() {
+        return(snapshot.size);
+    }
+
+    /**
+     * Load the config file and atomically replace the current snapshot
+     *
+     * @throws Exception if the file cannot be read or has invalid lines,
+     *                   the current snapshot is left in place
+     */
+    public synchronized void reload() throws Exception {
+        BasicFileAttributes attrs = Files.readAttributes(file,BasicFileAttributes.class);
+        snapshot = load(attrs);
+    }
+
+    /**
+     * Reload only if the config file has changed since the last load
+     *
+     * @return boolean true if a new snapshot was loaded
+     * @throws Exception if the file cannot be read or has invalid lines
+     */
+    public synchronized boolean reloadIfModified() throws Exception {
+        BasicFileAttributes attrs = Files.readAttributes(file,BasicFileAttributes.class);
+        Snapshot s = snapshot;
+        if(attrs.lastModifiedTime().toMillis()==s.modified &&
+           attrs.size()==s.bytes &&
+           Objects.equals(attrs.fileKey(),s.fileKey))
+            return(false);
+        snapshot = load(attrs);
+        return(true);
+    }
+
+    /**
+     * Periodically check the config file for changes and reload
+     *
+     * @param period time between checks
+     * @param unit TimeUnit of period
+     */
+    public synchronized void watch(long period, TimeUnit unit) {
+        if(watcher!=null)
+            return;
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r,"jtsys-merchant-registry");
+            t.setDaemon(true);
+            return(t);
+        });
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                reloadIfModified();
+            } catch(Exception e) {
+                Logger.getLogger(MerchantRegistry.class.getName()).log(Level.SEVERE,
+                    "Merchant registry reload failed, keeping previous",e);
+            }
+        },period,period,unit);
+    }
+
+    /**
+     * Stop watching the config file for changes
+     */
+    public synchronized void stop() {
+        if(watcher!=null)
+            watcher.shutdownNow();
+        watcher = null;
+    }
+
+    private Snapshot load(BasicFileAttributes attrs) throws Exception {
+        Map<String,Map<String,Merchant>> merchants = new HashMap<>();
+        Map<String,String> values = new HashMap<>();
+        int size = 0;
+        int n = 0;
+        try (BufferedReader r = Files.newBufferedReader(file,StandardCharsets.UTF_8)) {
+            String line;
+            while((line = r.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] f = line.split("\\|",-1);
+                if(f.length!=FIELDS)
+                    throw new Exception(file+":"+n+" has "+f.length+" fields and should be "+FIELDS);
+                for(int i=0;i<f.length;i++)
+                    f[i] = dedup(values,f[i].trim());
+                if(f[7].length()!=1)
+                    throw new Exception(file+":"+n+" industry code should be 1 character");
+                Merchant m = new RegisteredMerchant(f);
+                Map<String,Merchant> terminals = merchants.get(f[0]);
+                if(terminals==null) {
+                    terminals = new HashMap<>();
+                    merchants.put(f[0],terminals);
+                }
+                if(terminals.put(f[2],m)!=null)
+                    throw new Exception(file+":"+n+" duplicate merchant "+f[0]+" terminal "+f[2]);
+                size++;
+            }
+        } catch(IOException e) {
+            throw new Exception("Unable to read merchant config "+file,e);
+        }
+        return(new Snapshot(merchants,
+                            size,
+                            attrs.lastModifiedTime().toMillis(),
+                            attrs.fileKey(),
+                            attrs.size()));
+    }
+
+    private static String dedup(Map<String,String> values, String s) {
+        String v = values.putIfAbsent(s,s);
+        return(v==null ? s : v);
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String,Map<String,Merchant>> merchants;
+        private final int size;
+        private final long modified;
+        private final Object fileKey;
+        private final long bytes;
+
+        private Snapshot(Map<String,Map<String,Merchant>> merchants,
+                         int size,
+                         long modified,
+                         Object fileKey,
+                         long bytes) {
+            this.merchants = merchants;
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Read only registered merchant, fields are set once from the config
+     */
+    private static final class RegisteredMerchant extends Merchant {
+
+        private RegisteredMerchant(String[] f) {
+            super.setId(f[0]);
+            super.setStore(f[1]);
+            super.setTerminal(f[2]);
+            super.setBin(f[3]);
+            super.setAgent(f[4]);
+            super.setChain(f[5]);
+            super.setMcc(f[6]);
+            super.setIndustryCode(f[7].charAt(0));
+            super.setName(f[8]);
+            super.setCity(f[9]);
+            super.setState(f[10]);
+            super.setZip(f[11]);
+            super.setPhone(f[12]);
+            super.setV(f[13]);
+        }
+
+        private static UnsupportedOperationException immutable() {
+            return(new UnsupportedOperationException("Registered merchants are read only, "+
+                                                     "use new Merchant(merchant) to modify"));
+        }
+
+        @Override
+        public void setAgent(String agent) {
+            throw immutable();
+        }
+
+        @Override
+        public void setBin(String bin) {
+            throw immutable();
+        }
+
+        @Override
+        public void setChain(String chain) {
+            throw immutable();
+        }
+
+        @Override
+        public void setCity(String city) {
+            throw immutable();
+        }
+
+        @Override
+        public void setId(String id) {
+            throw immutable();
+        }
+
+        @Override
+        public void setIndustryCode(char industryCode) {
+            throw immutable();
+        }
+
+        @Override
+        public void setMcc(String mcc) {
+            throw immutable();
+        }
+
+        @Override
+        public void setName(String name) {
+            throw immutable();
+        }
+
+        @Override
+        public void setPhone(String phone) {
+            throw immutable();
+        }
+
+        @Override
+        public void setState(String state) {
+            throw immutable();
+        }
+
+        @Override
+        public void setStore(String store) {
+            throw immutable();
+        }
+
+        @Override
+        public void setTerminal(String terminal) {
+            throw immutable();
+        }
+
+        @Override
+        public void setV(String v) {
+            throw immutable();
+        }
+
+        @Override
+        public void setZip(String zip) {
+            throw immutable();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Transport sending STX/ETX framed records over a persistent TCP
+ * connection, TLS is done with an SSLEngine. The connection is opened on
+ * first use and kept for following requests, requests on one transport
+ * are sent one at a time. A response is complete when the ETX ending its
+ * last record and that record's LRC have been received, the byte after
+ * each ETB or ETX is an LRC and is never taken as framing. Unframed error
+ * responses, "code - text", are complete once no more bytes arrive for
+ * QUIET_MILLIS, and any response is complete when the gateway closes the
+ * connection. The connection is not reused after either.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class NioTransport implements Transport {
+
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+    private static final byte ETB = 0x17;
+    private static final long QUIET_MILLIS = 50;            // end of an unframed response
+    private static final Pattern UNFRAMED_ERROR = Pattern.compile("^\\d+\\s+\\-\\s+\\S.*$");
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final String host;
+    private final int port;
+    private final SSLContext ssl;
+    private final long timeout;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean used;
+    private boolean drop;                                   // response ended without framing
+
+    /**
+     * @param host gateway host name
+     * @param port gateway port
+     * @param ssl SSLContext for TLS, null for a plain connection to a local
+     *            stand-in
+     * @param timeout connect, handshake and read timeout
+     * @param unit TimeUnit of timeout
+     */
+    public NioTransport(String host,
+                        int port,
+                        SSLContext ssl,
+                        long timeout,
+                        TimeUnit unit) {
+        this.host = host;
+        this.port = port;
+        this.ssl = ssl;
+        this.timeout = unit.toMillis(timeout);
+    }
+
+    @Override
+    public synchronized ResponseBuffer exchange(String mime, byte[] request) throws IOException {
+        GatewayEvent event = null;
+        boolean reused = channel!=null && channel.isOpen() && used;
+        try {
+            if(channel==null || !channel.isOpen()) {
+                event = GatewayEvents.begin(GatewayEvents.Kind.CONNECT);
+                open();
+                if(event!=null)
+                    event.record(null,mime,GatewayEvents.OK,0,0,false);
+            }
+            long deadline = System.currentTimeMillis()+timeout;
+            event = GatewayEvents.begin(GatewayEvents.Kind.SEND);
+            write(ByteBuffer.wrap(request),deadline);
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.OK,request.length,0,reused);
+            event = GatewayEvents.begin(GatewayEvents.Kind.RECEIVE);
+            ResponseBuffer result = readFrame(deadline);
+            result.setConnection(engine==null ? null : engine.getSession().getCipherSuite(),
+                                 host,
+                                 reused);
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.OK,0,result.length(),reused);
+            used = true;
+            if(drop)
+                close();
+            return(result);
+        } catch(IOException | RuntimeException e) {
+            if(event!=null)
+                event.record(null,mime,GatewayEvents.outcome(e),0,0,reused);
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if(engine!=null && channel!=null && channel.isOpen()) {
+                engine.closeOutbound();
+                netOut.clear();
+                engine.wrap(EMPTY,netOut);
+                netOut.flip();
+                channel.write(netOut);
+            }
+        } catch(IOException e) {
+            // closing anyway
+        } finally {
+            if(selector!=null)
+                selector.close();
+            if(channel!=null)
+                channel.close();
+            selector = null;
+            channel = null;
+            engine = null;
+            used = false;
+            drop = false;
+        }
+    }
+
+    private void open() throws IOException {
+        long deadline = System.currentTimeMillis()+timeout;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        if(!channel.connect(new InetSocketAddress(host,port))) {
+            channel.register(selector,SelectionKey.OP_CONNECT);
+            while(!channel.finishConnect())
+                select(SelectionKey.OP_CONNECT,deadline);
+        }
+        channel.register(selector,SelectionKey.OP_READ);
+        appIn = ByteBuffer.allocate(16384);
+        if(ssl==null) {
+            engine = null;
+            return;
+        }
+        engine = ssl.createSSLEngine(host,port);
+        engine.setUseClientMode(true);
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(Math.max(appIn.capacity(),
+                                             engine.getSession().getApplicationBufferSize()));
+        engine.beginHandshake();
+        handshake(deadline);
+    }
+
+    private void handshake(long deadline) throws IOException {
+        HandshakeStatus hs = engine.getHandshakeStatus();
+        while(hs!=HandshakeStatus.FINISHED && hs!=HandshakeStatus.NOT_HANDSHAKING) {
+            switch(hs) {
+                case NEED_WRAP:
+                    hs = wrap(EMPTY,deadline).getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                    hs = unwrap(deadline).getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    hs = engine.getHandshakeStatus();
+                    break;
+                default:
+                    throw new SSLException("Unexpected handshake status "+hs);
+            }
+        }
+    }
+
+    private void write(ByteBuffer src, long deadline) throws IOException {
+        if(engine==null) {
+            writeFully(src,deadline);
+            return;
+        }
+        while(src.hasRemaining())
+            wrap(src,deadline);
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src, long deadline) throws IOException {
+        netOut.clear();
+        SSLEngineResult r = engine.wrap(src,netOut);
+        if(r.getStatus()!=SSLEngineResult.Status.OK)
+            throw new SSLException("TLS wrap failed "+r.getStatus());
+        netOut.flip();
+        writeFully(netOut,deadline);
+        return(r);
+    }
+
+    /**
+     * Unwrap one TLS record into appIn, reading from the channel as needed
+     */
+    private SSLEngineResult unwrap(long deadline) throws IOException {
+        for(;;) {
+            netIn.flip();
+            SSLEngineResult r = engine.unwrap(netIn,appIn);
+            netIn.compact();
+            switch(r.getStatus()) {
+                case OK:
+                    return(r);
+                case BUFFER_UNDERFLOW:
+                    if(!netIn.hasRemaining())
+                        netIn = grow(netIn,engine.getSession().getPacketBufferSize());
+                    readChannel(netIn,deadline);
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn,engine.getSession().getApplicationBufferSize());
+                    break;
+                default:
+                    throw new EOFException("TLS connection closed by gateway");
+            }
+        }
+    }
+
+    /**
+     * Read application data until the last record's ETX and LRC have been
+     * received, an unframed error response has been followed by
+     * QUIET_MILLIS without data, or the gateway closes the connection
+     */
+    private ResponseBuffer readFrame(long deadline) throws IOException {
+        appIn.clear();
+        int scanned = 0;
+        int end = 0;                                        // ETB/ETX before an LRC
+        for(;;) {
+            for(;scanned<appIn.position();scanned++) {
+                if(end==ETX)
+                    return(received(scanned+1));
+                if(end==ETB)
+                    end = 0;                                // LRC of a record
+                else {
+                    int b = appIn.get(scanned) & 0x7f;
+                    if(b==ETX || b==ETB)
+                        end = b;
+                }
+            }
+            boolean unframed = unframedError();
+            if(!appIn.hasRemaining())
+                appIn = grow(appIn,appIn.capacity());
+            try {
+                long until = unframed ?
+                             Math.min(deadline,System.currentTimeMillis()+QUIET_MILLIS) :
+                             deadline;
+                if(engine==null)
+                    readChannel(appIn,until);
+                else {
+                    HandshakeStatus hs = unwrap(until).getHandshakeStatus();
+                    if(hs!=HandshakeStatus.FINISHED && hs!=HandshakeStatus.NOT_HANDSHAKING)
+                        handshake(until);
+                }
+            } catch(SocketTimeoutException e) {
+                if(!unframed || System.currentTimeMillis()>=deadline)
+                    throw e;
+                drop = true;
+                return(received(appIn.position()));
+            } catch(EOFException e) {
+                if(appIn.position()==0)
+                    throw e;
+                drop = true;                                // gateway finished by closing
+                return(received(appIn.position()));
+            }
+        }
+    }
+
+    /**
+     * @return ResponseBuffer of the first length bytes received
+     */
+    private ResponseBuffer received(int length) {
+        ResponseBuffer result = ResponseBuffer.wrap(appIn.array(),0,length);
+        appIn.clear();
+        return(result);
+    }
+
+    /**
+     * @return boolean true if the bytes received so far are an unframed
+     *                 error response
+     */
+    private boolean unframedError() {
+        int n = appIn.position();
+        if(n==0 || (appIn.get(0) & 0x7f)==STX)
+            return(false);
+        return(UNFRAMED_ERROR.matcher(new AsciiSequence(appIn.array(),0,n)).find());
+    }
+
+    private void readChannel(ByteBuffer dst, long deadline) throws IOException {
+        int n;
+        while((n = channel.read(dst))==0)
+            select(SelectionKey.OP_READ,deadline);
+        if(n<0)
+            throw new EOFException("Connection closed by gateway");
+    }
+
+    private void writeFully(ByteBuffer src, long deadline) throws IOException {
+        while(src.hasRemaining())
+            if(channel.write(src)==0)
+                select(SelectionKey.OP_WRITE,deadline);
+    }
+
+    private void select(int op, long deadline) throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        key.interestOps(op);
+        long wait = deadline-System.currentTimeMillis();
+        if(wait<=0 || selector.select(wait)==0)
+            throw new SocketTimeoutException("Timed out waiting for gateway "+host+":"+port);
+        selector.selectedKeys().clear();
+    }
+
+    private static ByteBuffer grow(ByteBuffer b, int more) {
+        ByteBuffer bigger = ByteBuffer.allocate(b.capacity()+more);
+        b.flip();
+        bigger.put(b);
+        return(bigger);
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * Columnar store of a merchant terminal's authorized transactions waiting
+ * to be settled, iterated by Tsys.settle to build a batch.
+ *
+ * Each field is a column, amounts are long cents, local date and time an
+ * int MMDDHHMMSS, sequence numbers shorts and single character codes
+ * bytes. Card number, approval code, transaction identifier and other
+ * fixed width fields are byte columns in ByteBuffers, on or off heap. No
+ * objects are kept per transaction.
+ *
+ * A transaction can be voided before it is settled, either sent flagged
+ * V or left out of the batch, in both cases the trailer totals leave it
+ * out. No separate void transmission or batch number is used.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class PendingTransactionStore {
+
+    static final int CARD_WIDTH = 22;                       // Cardholder Account Number (4.30)
+    static final int RESPONSE_WIDTH = 2;                    // Response Code (4.164)
+    static final int AUTH_CODE_WIDTH = 6;                   // Authorization Code (4.12)
+    static final int TRANS_ID_WIDTH = 15;                   // Transaction Identifier (4.206)
+    static final int VALIDATION_WIDTH = 4;                  // Validation Code (4.218)
+    static final int PURCHASE_ID_WIDTH = 25;                // Purchase Identifier (4.149)
+
+    private static final byte NOT_VOIDED = ' ';
+    private static final byte VOIDED = 'V';                 // Void Indicator V, sent
+    private static final byte OMITTED = 'O';                // voided, not sent
+
+    private final Merchant merchant;
+    private final boolean direct;
+
+    private int size;
+    private long[] amounts;
+    private long[] authorized;
+    private int[] times;
+    private short[] sequences;
+    private byte[] acis;
+    private byte[] authSources;
+    private byte[] avsCodes;
+    private byte[] voids;
+    private ByteBuffer cards;
+    private ByteBuffer responseCodes;
+    private ByteBuffer authCodes;
+    private ByteBuffer transIds;
+    private ByteBuffer validationCodes;
+    private ByteBuffer purchaseIds;
+
+    /**
+     * @param merchant Merchant account the transactions belong to
+     * @param capacity initial number of transactions, grows as needed
+     * @param direct true to keep fixed width columns off heap
+     */
+    public PendingTransactionStore(Merchant merchant, int capacity, boolean direct) {
+        this.merchant = merchant;
+        this.direct = direct;
+        capacity = Math.max(capacity,16);
+        amounts = new long[capacity];
+        authorized = new long[capacity];
+        times = new int[capacity];
+        sequences = new short[capacity];
+        acis = new byte[capacity];
+        authSources = new byte[capacity];
+        avsCodes = new byte[capacity];
+        voids = new byte[capacity];
+        cards = allocate(capacity*CARD_WIDTH);
+        responseCodes = allocate(capacity*RESPONSE_WIDTH);
+        authCodes = allocate(capacity*AUTH_CODE_WIDTH);
+        transIds = allocate(capacity*TRANS_ID_WIDTH);
+        validationCodes = allocate(capacity*VALIDATION_WIDTH);
+        purchaseIds = allocate(capacity*PURCHASE_ID_WIDTH);
+    }
+
+    public Merchant getMerchant() {
+        return merchant;
+    }
+
+    /**
+     * Add an authorized transaction from its auth response
+     *
+     * @param cardNumber Credit card number
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param amount Amount authorized in cents
+     * @param purchaseId Invoice number
+     * @param auth LinkedHashMap returned by Tsys.auth
+     * @return int row of the transaction
+     * @throws Exception if the auth response is an error or a field is
+     *                   invalid
+     */
+    public int add(String cardNumber,
+                   String transSequenceNumber,
+                   long amount,
+                   String purchaseId,
+                   Map<String,String> auth) throws Exception {
+        if(auth.get(AuthResponseKeys.Response_Code.key())==null)
+            throw new Exception("Auth response is an error response");
+        return(add(cardNumber,
+                   transSequenceNumber,
+                   auth.get(AuthResponseKeys.ACI.key()),
+                   auth.get(AuthResponseKeys.Auth_Source_Code.key()),
+                   auth.get(AuthResponseKeys.Response_Code.key()),
+                   auth.get(AuthResponseKeys.Approval_Code.key()),
+                   auth.get(AuthResponseKeys.AVS_Result_Code.key()),
+                   auth.get(AuthResponseKeys.Transaction_Identifier.key()),
+                   auth.get(AuthResponseKeys.Validation_Code.key()),
+                   amount,
+                   purchaseId,
+                   System.currentTimeMillis()));
+    }
+
+    /**
+     * Add an authorized transaction
+     *
+     * @param cardNumber Credit card number
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param aci Returned ACI 4.73
+     * @param authSourceCode Authorization Source Code 4.12
+     * @param responseCode Response Code
+     * @param authCode Approval Code
+     * @param avsCode AVS Result Code 4.3
+     * @param transId Transaction Identifier 4.91
+     * @param validationCode Validation Code 4.96
+     * @param amount Amount authorized in cents
+     * @param purchaseId Invoice number
+     * @param time local transaction time in milliseconds
+     * @return int row of the transaction
+     * @throws Exception if a field is invalid
+     */
+    public synchronized int add(String cardNumber,
+                                String transSequenceNumber,
+                                String aci,
+                                String authSourceCode,
+                                String responseCode,
+                                String authCode,
+                                String avsCode,
+                                String transId,
+                                String validationCode,
+                                long amount,
+                                String purchaseId,
+                                long time) throws Exception {
+        if(cardNumber==null || cardNumber.isEmpty() || cardNumber.length()>CARD_WIDTH)
+            throw new Exception("Cardholder Account Number invalid");
+        if(transSequenceNumber==null || transSequenceNumber.isEmpty())
+            throw new Exception("Transaction Sequence Number missing");
+        if(avsCode==null || avsCode.isEmpty())
+            throw new Exception("Address Verification Result Code missing");
+        if(responseCode==null || responseCode.length()!=RESPONSE_WIDTH)
+            throw new Exception("Response Code invalid");
+        if(amount<0 || amount>Amounts.MAX_AMOUNT)
+            throw new Exception("Amount "+amount+" out of range");
+        short seq;
+        try {
+            seq = Short.parseShort(transSequenceNumber);
+        } catch(NumberFormatException e) {
+            throw new Exception("Transaction Sequence Number "+transSequenceNumber+" invalid");
+        }
+        if(seq<0 || seq>9999)
+            throw new Exception("Transaction Sequence Number "+transSequenceNumber+" invalid");
+        if(size==amounts.length)
+            grow();
+        int i = size;
+        amounts[i] = amount;
+        authorized[i] = amount;
+        times[i] = localTime(time);
+        sequences[i] = seq;
+        acis[i] = code(aci,' ');
+        authSources[i] = code(authSourceCode,'6');
+        avsCodes[i] = code(avsCode,' ');
+        voids[i] = NOT_VOIDED;
+        put(cards,i,CARD_WIDTH,cardNumber);
+        put(responseCodes,i,RESPONSE_WIDTH,responseCode);
+        put(authCodes,i,AUTH_CODE_WIDTH,authCode);
+        put(transIds,i,TRANS_ID_WIDTH,
+            transId==null || transId.isEmpty() ? "000000000000000" : transId);
+        put(validationCodes,i,VALIDATION_WIDTH,validationCode);
+        put(purchaseIds,i,PURCHASE_ID_WIDTH,purchaseId);
+        size++;
+        return(i);
+    }
+
+    /**
+     * @return int number of transactions in the store
+     */
+    public synchronized int size() {
+        return(size);
+    }
+
+    /**
+     * Remove all transactions, once settled
+     */
+    public synchronized void clear() {
+        size = 0;
+    }
+
+    public synchronized long getAmount(int row) {
+        check(row);
+        return(amounts[row]);
+    }
+
+    public synchronized long getAuthorizedAmount(int row) {
+        check(row);
+        return(authorized[row]);
+    }
+
+    public synchronized String getTransSequenceNumber(int row) {
+        check(row);
+        return(String.format("%04d",sequences[row]));
+    }
+
+    public synchronized String getApprovalCode(int row) {
+        check(row);
+        return(get(authCodes,row,AUTH_CODE_WIDTH).trim());
+    }
+
+    public synchronized String getTransactionIdentifier(int row) {
+        check(row);
+        return(get(transIds,row,TRANS_ID_WIDTH).trim());
+    }
+
+    /**
+     * @return String card number, for local checks only, never public
+     */
+    synchronized String getCardNumber(int row) {
+        check(row);
+        return(get(cards,row,CARD_WIDTH).trim());
+    }
+
+    /**
+     * @return boolean true if voided, sent flagged V or left out
+     */
+    public synchronized boolean isVoided(int row) {
+        check(row);
+        return(voids[row]!=NOT_VOIDED);
+    }
+
+    /**
+     * @return boolean true if voided and left out of the batch
+     */
+    public synchronized boolean isOmitted(int row) {
+        check(row);
+        return(voids[row]==OMITTED);
+    }
+
+    /**
+     * Void an authorized transaction before it is settled, it is sent in
+     * the next batch with Void Indicator V or left out of it. Batch
+     * Hashing Total and Net Deposit leave it out either way.
+     *
+     * @param row row of the transaction
+     * @param omit true to leave the transaction out of the batch, false
+     *             to send it flagged V
+     */
+    public synchronized void voidTransaction(int row, boolean omit) {
+        check(row);
+        voids[row] = omit ? OMITTED : VOIDED;
+    }
+
+    /**
+     * Void an authorized transaction before it is settled
+     *
+     * @param transSequenceNumber Transaction Sequence Num of the transaction
+     * @param omit true to leave the transaction out of the batch, false
+     *             to send it flagged V
+     * @return boolean false if no transaction with that sequence number
+     *                 is waiting to be settled
+     */
+    public synchronized boolean voidTransaction(String transSequenceNumber, boolean omit) {
+        int row = find(transSequenceNumber);
+        if(row<0)
+            return(false);
+        voidTransaction(row,omit);
+        return(true);
+    }
+
+    /**
+     * Find the latest transaction not voided with a sequence number
+     *
+     * @param transSequenceNumber Transaction Sequence Num
+     * @return int row of the transaction, -1 if none
+     */
+    public synchronized int find(String transSequenceNumber) {
+        short seq;
+        try {
+            seq = Short.parseShort(transSequenceNumber);
+        } catch(NumberFormatException e) {
+            return(-1);
+        }
+        for(int i=size-1;i>=0;i--)
+            if(sequences[i]==seq && voids[i]==NOT_VOIDED)
+                return(i);
+        return(-1);
+    }
+
+    /**
+     * @return int number of Detail Records sent in a batch, transactions
+     *             not left out
+     */
+    synchronized int detailCount() {
+        int n = 0;
+        for(int i=0;i<size;i++)
+            if(voids[i]!=OMITTED)
+                n++;
+        return(n);
+    }
+
+    /**
+     * Append a K-Format Detail Record (Electronic Commerce) for a row,
+     * without framing
+     *
+     * @param d StringBuilder to append the record to
+     * @param row row of the transaction
+     * @param applicationType Application Type 1=Single 3=Multiple Batch
+     */
+    synchronized void appendDetail(StringBuilder d, int row, char applicationType) {
+        check(row);
+        if(voids[row]==OMITTED)
+            throw new IllegalStateException("Row "+row+" is voided and left out");
+        d.append('K').append(applicationType).append(".ZD@@`D"); // 1-9   Record Format, Application Type, Delimiter,
+                                                            //       Routing ID, Record Type D@@`D (4.155)
+        d.append("56");                                     // 10-11 2 A/N Transaction Code: 56 = Card Not Present (4.205)
+        d.append('N');                                      // 12  1 A/N Cardholder Identification Code N (4.32)
+        d.append('@');                                      // 13  1 A/N Account Data Source Code @ = No Cardreader (4.1)
+        append(d,cards,row,CARD_WIDTH);                     // 14-35 22 A/N Cardholder Account Number (4.30)
+        d.append('Y');                                      // 36  1 Requested ACI (4.163)
+        d.append((char)acis[row]);                          // 37  1 A/N Returned ACI (4.168)
+        d.append((char)authSources[row]);                   // 38  1 A/N Authorization Source Code (4.13)
+        Amounts.zeroPad(d,sequences[row],4);                // 39-42 4 NUM Transaction Sequence Number (4.207)
+        append(d,responseCodes,row,RESPONSE_WIDTH);         // 43-44 2 A/N Response Code (4.164)
+        append(d,authCodes,row,AUTH_CODE_WIDTH);            // 45-50 6 A/N Authorization Code (4.12)
+        Amounts.zeroPad(d,times[row],10);                   // 51-60 10 NUM Local Transaction Date MMDD
+                                                            //          and Time HHMMSS (4.113, 4.114)
+        d.append((char)avsCodes[row]);                      // 61  1 A/N AVS Result Code (4.3)
+        append(d,transIds,row,TRANS_ID_WIDTH);              // 62-76 15 A/N Transaction Identifier (4.206)
+        append(d,validationCodes,row,VALIDATION_WIDTH);     // 77-80 4 A/N Validation Code (4.218)
+        d.append((char)voids[row]);                         // 81  1 A/N Void Indicator V or space (4.224)
+        d.append("00");                                     // 82-83 2 NUM Transaction Status Code 00 (4.208)
+        d.append('0');                                      // 84  1 A/N Reimbursement Attribute 0 (4.157)
+        Amounts.zeroPad(d,amounts[row],12);                 // 85-96 12 NUM Settlement Amount (4.175)
+        Amounts.zeroPad(d,authorized[row],12);              // 97-108 12 NUM Authorized Amount (4.14)
+        Amounts.zeroPad(d,authorized[row],12);              // 109-120 12 NUM Total Authorized Amount (4.201)
+        d.append('0');                                      // 121 1 A/N Purchase Identifier Format Code (4.150)
+        append(d,purchaseIds,row,PURCHASE_ID_WIDTH);        // 122-146 25 A/N Purchase Identifier (4.149)
+        d.append("01");                                     // 147-148 2 NUM Multiple Clearing Sequence Number (4.129)
+        d.append("01");                                     // 149-150 2 NUM Multiple Clearing Sequence Count (4.128)
+        d.append('7');                                      // 151 1 A/N MOTO/Electronic Commerce Indicator (4.127)
+    }
+
+    /**
+     * Batch Hashing Total, settlement amounts of transactions not voided
+     *
+     * @return long total in cents
+     * @throws ArithmeticException if the total overflows 16 digits
+     */
+    synchronized long hashingTotal() {
+        long total = 0;
+        for(int i=0;i<size;i++)
+            if(voids[i]==NOT_VOIDED)
+                total = Amounts.addTotal(total,amounts[i]);
+        return(total);
+    }
+
+    private void check(int row) {
+        if(row<0 || row>=size)
+            throw new IndexOutOfBoundsException("Row "+row+" of "+size);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return(direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+    }
+
+    private void grow() {
+        int capacity = amounts.length*2;
+        amounts = Arrays.copyOf(amounts,capacity);
+        authorized = Arrays.copyOf(authorized,capacity);
+        times = Arrays.copyOf(times,capacity);
+        sequences = Arrays.copyOf(sequences,capacity);
+        acis = Arrays.copyOf(acis,capacity);
+        authSources = Arrays.copyOf(authSources,capacity);
+        avsCodes = Arrays.copyOf(avsCodes,capacity);
+        voids = Arrays.copyOf(voids,capacity);
+        cards = grow(cards,capacity*CARD_WIDTH);
+        responseCodes = grow(responseCodes,capacity*RESPONSE_WIDTH);
+        authCodes = grow(authCodes,capacity*AUTH_CODE_WIDTH);
+        transIds = grow(transIds,capacity*TRANS_ID_WIDTH);
+        validationCodes = grow(validationCodes,capacity*VALIDATION_WIDTH);
+        purchaseIds = grow(purchaseIds,capacity*PURCHASE_ID_WIDTH);
+    }
+
+    private ByteBuffer grow(ByteBuffer b, int capacity) {
+        ByteBuffer bigger = allocate(capacity);
+        b.clear();
+        bigger.put(b);
+        return(bigger);
+    }
+
+    /**
+     * Local date and time as MMDDHHMMSS
+     */
+    private static int localTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        return((c.get(Calendar.MONTH)+1)*100000000+
+               c.get(Calendar.DAY_OF_MONTH)*1000000+
+               c.get(Calendar.HOUR_OF_DAY)*10000+
+               c.get(Calendar.MINUTE)*100+
+               c.get(Calendar.SECOND));
+    }
+
+    private static byte code(String s, char empty) {
+        if(s==null || s.isEmpty())
+            return((byte)empty);
+        return((byte)s.charAt(0));
+    }
+
+    /**
+     * Left-justify/space-fill a value into a fixed width column
+     */
+    private static void put(ByteBuffer column, int row, int width, String s) {
+        byte[] b = s==null ? new byte[0] : s.getBytes(StandardCharsets.US_ASCII);
+        int base = row*width;
+        for(int i=0;i<width;i++)
+            column.put(base+i,i<b.length ? b[i] : (byte)' ');
+    }
+
+    private static void append(StringBuilder d, ByteBuffer column, int row, int width) {
+        int base = row*width;
+        for(int i=0;i<width;i++)
+            d.append((char)column.get(base+i));
+    }
+
+    private static String get(ByteBuffer column, int row, int width) {
+        StringBuilder b = new StringBuilder(width);
+        append(b,column,row,width);
+        return(b.toString());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pooled response buffer, gateway responses are read once into reused
+ * memory, parity is stripped in place and decoders run on an ASCII view
+ * of the buffer. Must be released once the decoded result has been built.
+ *
+ * Transports create buffers with read or wrap and describe the connection
+ * the response arrived on with setConnection.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public final class ResponseBuffer {
+
+    private static final int MIN_SHIFT = 10;                // 1 KB smallest buffer
+    private static final int MAX_SHIFT = 20;                // 1 MB largest pooled buffer
+    private static final int MAX_POOLED = 64;               // per size class
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private static final ConcurrentLinkedQueue<byte[]>[] POOL =
+        new ConcurrentLinkedQueue[MAX_SHIFT-MIN_SHIFT+1];
+    private static final AtomicIntegerArray POOLED =
+        new AtomicIntegerArray(MAX_SHIFT-MIN_SHIFT+1);
+
+    static {
+        for(int i=0;i<POOL.length;i++)
+            POOL[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    private byte[] data;
+    private int length;
+    private String cipher;
+    private String remote;
+    private boolean reused;
+
+    private ResponseBuffer(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Read an entire stream into a pooled buffer
+     *
+     * @param is InputStream to read, not closed
+     * @param contentLength expected length or -1 if unknown
+     * @return ResponseBuffer containing the stream contents
+     * @throws IOException if an error occurs reading the stream
+     */
+    public static ResponseBuffer read(InputStream is,
+                               int contentLength) throws IOException {
+        // One extra byte so a correct Content-Length needs no grow to see EOF
+        ResponseBuffer b = new ResponseBuffer(acquire(contentLength>0 ? contentLength+1 : 0));
+        try {
+            int n;
+            while((n = is.read(b.data,b.length,b.data.length-b.length)) != -1) {
+                b.length += n;
+                if(b.length==b.data.length)
+                    b.grow(b.length*2);
+            }
+        } catch(IOException | RuntimeException e) {
+            b.release();
+            throw e;
+        }
+        return(b);
+    }
+
+    /**
+     * Wrap already received bytes, used when bytes arrive from a source
+     * other than a stream
+     *
+     * @param src bytes to copy into a pooled buffer
+     * @param offset start of bytes in src
+     * @param len number of bytes
+     * @return ResponseBuffer containing a copy of the bytes
+     */
+    public static ResponseBuffer wrap(byte[] src, int offset, int len) {
+        ResponseBuffer b = new ResponseBuffer(acquire(len));
+        System.arraycopy(src,offset,b.data,0,len);
+        b.length = len;
+        return(b);
+    }
+
+    public byte[] array() {
+        return(data);
+    }
+
+    public int length() {
+        return(length);
+    }
+
+    /**
+     * Describe the connection the response was received on
+     *
+     * @param cipher cipher suite of the connection, null if not encrypted
+     * @param remote name or address of the remote host
+     * @param reused true if the connection was used for an earlier request
+     */
+    public void setConnection(String cipher, String remote, boolean reused) {
+        this.cipher = cipher;
+        this.remote = remote;
+        this.reused = reused;
+    }
+
+    String getCipher() {
+        return(cipher);
+    }
+
+    String getRemote() {
+        return(remote);
+    }
+
+    boolean isReused() {
+        return(reused);
+    }
+
+    /**
+     * Strip the parity bit from every byte in place
+     *
+     * @return this buffer
+     */
+    ResponseBuffer stripParity() {
+        Tsys.removeParity(data,0,length);
+        return(this);
+    }
+
+    /**
+     * ASCII view of the buffer contents, only valid until released
+     *
+     * @return CharSequence backed by this buffer
+     */
+    CharSequence ascii() {
+        return(new AsciiSequence(data,0,length));
+    }
+
+    /**
+     * Return the buffer to the pool, buffer must not be used after
+     */
+    public void release() {
+        if(data==null)
+            return;
+        recycle(data);
+        data = null;
+        length = 0;
+    }
+
+    private void grow(int min) {
+        byte[] bigger = acquire(min);
+        System.arraycopy(data,0,bigger,0,length);
+        recycle(data);
+        data = bigger;
+    }
+
+    private static byte[] acquire(int min) {
+        int c = sizeClass(min);
+        if(c<0)
+            return(new byte[min]);
+        byte[] b = POOL[c].poll();
+        if(b!=null) {
+            POOLED.decrementAndGet(c);
+            return(b);
+        }
+        return(new byte[1<<(c+MIN_SHIFT)]);
+    }
+
+    private static void recycle(byte[] b) {
+        int c = sizeClass(b.length);
+        if(c<0 || (1<<(c+MIN_SHIFT))!=b.length)
+            return;
+        if(POOLED.incrementAndGet(c)<=MAX_POOLED)
+            POOL[c].offer(b);
+        else
+            POOLED.decrementAndGet(c);
+    }
+
+    private static int sizeClass(int size) {
+        int shift = MIN_SHIFT;
+        while(shift<=MAX_SHIFT && (1<<shift)<size)
+            shift++;
+        return(shift>MAX_SHIFT ? -1 : shift-MIN_SHIFT);
+    }
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only local archive of auth and settle results, for finding an
+ * authorization by Retrieval Reference Num, Transaction Identifier,
+ * approval code or masked card number long after auth returned.
+ *
+ * Results are written to segments, a new segment is started when one is
+ * full or its time window has passed, segments older than the retention
+ * time are removed. Each segment is a data file of fixed size records and
+ * an open addressing hash index of every key, both memory mapped. A
+ * lookup is a few probes of each segment's index, newest segment first.
+ * Card numbers are masked before they are written, first 6 and last 4
+ * digits are kept.
+ *
+ * Records survive the process exiting once appended. A segment is forced
+ * to disk when the next segment is started and on close, records of the
+ * active segment may be lost if the system fails before then unless
+ * force is called.
+ *
+ * Data file layout, all numbers big endian
+ *
+ * magic "JTSYSRES" version(int) capacity(int) count(int) start(long)
+ * padded to 64 bytes, then capacity records of 128 bytes
+ *
+ * Index file layout
+ *
+ * magic "JTSYSIDX" slots(int) padded to 16 bytes, then slots entries of
+ * key hash(long, 0 if empty) record(int) key(int)
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class ResultArchive implements Closeable {
+
+    /**
+     * Keys results can be looked up by
+     */
+    public enum Key {
+        RETRIEVAL_REFERENCE_NUM("Retrieval Reference Num"),
+        TRANSACTION_IDENTIFIER("Transaction Identifier"),
+        APPROVAL_CODE("Approval Code"),
+        MASKED_CARD_NUMBER("Masked card number");
+
+        private String value;
+
+        Key(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return this.value;
+        }
+    }
+
+    private static final byte[] DATA_MAGIC = "JTSYSRES".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INDEX_MAGIC = "JTSYSIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final String PREFIX = "archive-";
+    private static final String DATA_SUFFIX = ".jres";
+    private static final String INDEX_SUFFIX = ".jidx";
+    private static final int DATA_HEADER = 64;
+    private static final int INDEX_HEADER = 16;
+    private static final int RECORD = 128;
+    private static final int ENTRY = 16;
+
+    // Data header
+    private static final int CAPACITY = 12;
+    private static final int COUNT = 16;
+    private static final int START = 20;
+
+    // Record layout, text fields are ASCII left-justified/space-filled
+    private static final int TIME = 0;                      // long millis
+    private static final int TYPE = 8;                      // A=auth S=settle
+    private static final int MERCHANT = 9;                  // 12 Merchant Number
+    private static final int STORE = 21;                    // 4  Store Number
+    private static final int TERMINAL = 25;                 // 4  Terminal Number
+    private static final int SEQUENCE = 29;                 // 4  Transaction Sequence Num or Batch Number
+    private static final int CARD = 33;                     // 22 masked card number
+    private static final int RESPONSE = 55;                 // 2  Response Code or GB/QD/RB
+    private static final int APPROVAL = 57;                 // 6  Approval Code
+    private static final int RRN = 63;                      // 12 Retrieval Reference Num
+    private static final int TRANS_ID = 75;                 // 15 Transaction Identifier
+    private static final int VALIDATION = 90;               // 4  Validation Code
+    private static final int AMOUNT = 96;                   // long cents
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private Segment active;
+
+    /**
+     * Open or create an archive
+     *
+     * @param directory Path to keep segments in, created if missing
+     * @param segmentRecords records per segment
+     * @param segmentTime time after which a new segment is started
+     * @param retention time after which a segment is removed, counted from
+     *                  when the segment after it started
+     * @param unit TimeUnit of segmentTime and retention
+     * @throws IOException if the directory or segments cannot be opened
+     */
+    public ResultArchive(Path directory,
+                         int segmentRecords,
+                         long segmentTime,
+                         long retention,
+                         TimeUnit unit) throws IOException {
+        if(segmentRecords<1 || segmentRecords>1<<22)
+            throw new IllegalArgumentException("segmentRecords must be 1 - 2^22");
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.segmentMillis = unit.toMillis(segmentTime);
+        this.retentionMillis = unit.toMillis(retention);
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory,PREFIX+"*"+DATA_SUFFIX)) {
+            for(Path p : ds)
+                files.add(p);
+        }
+        Collections.sort(files);
+        try {
+            for(Path p : files)
+                segments.add(new Segment(p));
+        } catch(IOException e) {
+            for(Segment s : segments)
+                s.close();
+            throw e;
+        }
+        if(!segments.isEmpty())
+            active = segments.get(segments.size()-1);
+    }
+
+    /**
+     * Archive an authorization result, error responses are not archived
+     *
+     * @param merchant Merchant account used
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param cardNumber Credit card number, masked before writing
+     * @param amount Amount authorized in cents
+     * @param response LinkedHashMap<String,String> auth response
+     * @param time time of the authorization in millis
+     * @return boolean false if the response was an error not archived
+     * @throws IOException if a segment cannot be written
+     */
+    public synchronized boolean appendAuth(Merchant merchant,
+                                           String transSequenceNumber,
+                                           String cardNumber,
+                                           long amount,
+                                           LinkedHashMap<String,String> response,
+                                           long time) throws IOException {
+        String code = response.get(AuthResponseKeys.Response_Code.key());
+        if(code==null)
+            return(false);
+        Segment s = segment(time);
+        int base = s.next();
+        MappedByteBuffer d = s.data;
+        d.putLong(base+TIME,time);
+        d.put(base+TYPE,(byte)'A');
+        terminal(d,base,merchant);
+        put(d,base+SEQUENCE,transSequenceNumber,4);
+        put(d,base+CARD,mask(cardNumber),22);
+        put(d,base+RESPONSE,code,2);
+        put(d,base+APPROVAL,response.get(AuthResponseKeys.Approval_Code.key()),6);
+        put(d,base+RRN,response.get(AuthResponseKeys.Retrieval_Reference_Num.key()),12);
+        put(d,base+TRANS_ID,response.get(AuthResponseKeys.Transaction_Identifier.key()),15);
+        put(d,base+VALIDATION,response.get(AuthResponseKeys.Validation_Code.key()),4);
+        d.putLong(base+AMOUNT,amount);
+        s.commit();
+        return(true);
+    }
+
+    /**
+     * Archive a batch settle result, error responses are not archived
+     *
+     * @param merchant Merchant account settled
+     * @param batchNumber Batch Number
+     * @param response LinkedHashMap<String,String> settle response
+     * @param time time of the settlement in millis
+     * @return boolean false if the response was an error not archived
+     * @throws IOException if a segment cannot be written
+     */
+    public synchronized boolean appendSettle(Merchant merchant,
+                                             String batchNumber,
+                                             LinkedHashMap<String,String> response,
+                                             long time) throws IOException {
+        String deposit = response.get(SettleResponseKeys.Batch_Net_Deposit.key());
+        if(deposit==null)
+            return(false);
+        String code = Tsys.settleResponseCode(response);
+        Segment s = segment(time);
+        int base = s.next();
+        MappedByteBuffer d = s.data;
+        d.putLong(base+TIME,time);
+        d.put(base+TYPE,(byte)'S');
+        terminal(d,base,merchant);
+        put(d,base+SEQUENCE,batchNumber,4);
+        put(d,base+CARD,null,22);
+        put(d,base+RESPONSE,code,2);
+        put(d,base+APPROVAL,null,6);
+        put(d,base+RRN,null,12);
+        put(d,base+TRANS_ID,null,15);
+        put(d,base+VALIDATION,null,4);
+        d.putLong(base+AMOUNT,Long.parseLong(deposit));
+        s.commit();
+        return(true);
+    }
+
+    /**
+     * Find archived results, newest first
+     *
+     * @param key Key to look up by
+     * @param value key value, card numbers may be full or masked
+     * @return List<Record> matching records, empty if none
+     */
+    public List<Record> find(Key key, String value) {
+        List<Record> found = new ArrayList<>();
+        String k = normalize(key,value);
+        if(k.isEmpty())
+            return(found);
+        long hash = hash(key,k);
+        // One snapshot, expire may remove the oldest segments meanwhile
+        Segment[] snapshot = segments.toArray(new Segment[0]);
+        for(int i=snapshot.length-1;i>=0;i--) {
+            int before = found.size();
+            snapshot[i].find(key,k,hash,found);
+            // Probe order is not time order within a segment
+            if(found.size()-before>1)
+                Collections.sort(found.subList(before,found.size()),
+                                 (a,b) -> Long.compare(b.time,a.time));
+        }
+        return(found);
+    }
+
+    /**
+     * @return long number of records in every segment
+     */
+    public long size() {
+        long n = 0;
+        for(Segment s : segments)
+            n += s.count;
+        return(n);
+    }
+
+    /**
+     * @return int number of segments
+     */
+    public int segments() {
+        return(segments.size());
+    }
+
+    /**
+     * Write the active segment's records to disk
+     */
+    public synchronized void force() {
+        if(active!=null)
+            active.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        for(Segment s : segments)
+            s.close();
+        segments.clear();
+        active = null;
+    }
+
+    /**
+     * Active segment, rolled when full or its time window passed
+     */
+    private Segment segment(long time) throws IOException {
+        if(active==null ||
+           active.count>=active.capacity ||
+           time>=active.start+segmentMillis) {
+            Path data = directory.resolve(String.format("%s%013d%s",PREFIX,time,DATA_SUFFIX));
+            if(Files.exists(data))
+                throw new IOException("Archive segment "+data+" already exists");
+            if(active!=null)
+                active.force();
+            active = new Segment(data,segmentRecords,time);
+            segments.add(active);
+            expire(time);
+        }
+        return(active);
+    }
+
+    /**
+     * Remove segments whose every record is older than the retention time
+     */
+    private void expire(long now) throws IOException {
+        while(segments.size()>1 &&
+              segments.get(1).start<=now-retentionMillis) {
+            Segment s = segments.remove(0);
+            s.close();
+            Files.deleteIfExists(s.file);
+            Files.deleteIfExists(indexPath(s.file));
+        }
+    }
+
+    private static Path indexPath(Path data) {
+        String name = data.getFileName().toString();
+        return(data.resolveSibling(name.substring(0,name.length()-DATA_SUFFIX.length())+INDEX_SUFFIX));
+    }
+
+    private static void terminal(MappedByteBuffer d, int base, Merchant merchant) {
+        put(d,base+MERCHANT,merchant.getId(),12);
+        put(d,base+STORE,merchant.getStore(),4);
+        put(d,base+TERMINAL,merchant.getTerminal(),4);
+    }
+
+    private static void put(MappedByteBuffer d, int offset, String s, int length) {
+        int n = s==null ? 0 : Math.min(s.length(),length);
+        for(int i=0;i<n;i++)
+            d.put(offset+i,(byte)s.charAt(i));
+        for(int i=n;i<length;i++)
+            d.put(offset+i,(byte)' ');
+    }
+
+    private static String get(MappedByteBuffer d, int offset, int length) {
+        byte[] b = new byte[length];
+        for(int i=0;i<length;i++)
+            b[i] = d.get(offset+i);
+        return(new String(b,StandardCharsets.US_ASCII).trim());
+    }
+
+    /**
+     * Mask a card number keeping first 6 and last 4 digits
+     */
+    static String mask(String cardNumber) {
+        if(cardNumber==null)
+            return(null);
+        StringBuilder b = new StringBuilder(cardNumber.length());
+        int digits = 0;
+        for(int i=0;i<cardNumber.length();i++)
+            if(Character.isDigit(cardNumber.charAt(i)))
+                digits++;
+        int n = 0;
+        for(int i=0;i<cardNumber.length();i++) {
+            char c = cardNumber.charAt(i);
+            if(c>='0' && c<='9') {
+                b.append(n>=6 && n<digits-4 ? '*' : c);
+                n++;
+            } else if(c=='*')
+                b.append(c);
+        }
+        return(b.toString());
+    }
+
+    /**
+     * Key value as indexed, card numbers full or masked reduce to their
+     * first 6 and last 4 digits
+     */
+    private static String normalize(Key key, String value) {
+        if(value==null)
+            return("");
+        value = value.trim();
+        if(key!=Key.MASKED_CARD_NUMBER)
+            return(value);
+        StringBuilder b = new StringBuilder(10);
+        for(int i=0;i<value.length();i++)
+            if(Character.isDigit(value.charAt(i)))
+                b.append(value.charAt(i));
+        if(b.length()<10)
+            return("");
+        return(b.substring(0,6)+b.substring(b.length()-4));
+    }
+
+    /**
+     * FNV-1a 64 bit hash of a key, never 0 which marks an empty entry
+     */
+    private static long hash(Key key, String k) {
+        long h = 0xcbf29ce484222325L;
+        h = (h^key.ordinal())*0x100000001b3L;
+        for(int i=0;i<k.length();i++)
+            h = (h^k.charAt(i))*0x100000001b3L;
+        return(h==0 ? 1 : h);
+    }
+
+    /**
+     * Memory mapped data and index files of a segment
+     */
+    private static final class Segment {
+
+        private final Path file;
+        private final RandomAccessFile dataFile;
+        private final RandomAccessFile indexFile;
+        private final MappedByteBuffer data;
+        private final MappedByteBuffer index;
+        private final int capacity;
+        private final int mask;
+        private final long start;
+        private volatile int count;
+
+        /**
+         * Create a new segment
+         */
+        private Segment(Path file, int capacity, long start) throws IOException {
+            this.file = file;
+            this.capacity = capacity;
+            this.start = start;
+            int slots = Integer.highestOneBit(capacity*Key.values().length)<<2;
+            mask = slots-1;
+            dataFile = new RandomAccessFile(file.toFile(),"rw");
+            indexFile = new RandomAccessFile(indexPath(file).toFile(),"rw");
+            dataFile.setLength(DATA_HEADER+(long)capacity*RECORD);
+            indexFile.setLength(INDEX_HEADER+(long)slots*ENTRY);
+            data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE,0,dataFile.length());
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,0,indexFile.length());
+            for(int i=0;i<DATA_MAGIC.length;i++) {
+                data.put(i,DATA_MAGIC[i]);
+                index.put(i,INDEX_MAGIC[i]);
+            }
+            data.putInt(DATA_MAGIC.length,VERSION);
+            data.putInt(CAPACITY,capacity);
+            data.putInt(COUNT,0);
+            data.putLong(START,start);
+            index.putInt(INDEX_MAGIC.length,slots);
+        }
+
+        /**
+         * Open an existing segment
+         */
+        private Segment(Path file) throws IOException {
+            this.file = file;
+            dataFile = new RandomAccessFile(file.toFile(),"rw");
+            indexFile = new RandomAccessFile(indexPath(file).toFile(),"rw");
+            try {
+                data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE,0,dataFile.length());
+                index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,0,indexFile.length());
+                for(int i=0;i<DATA_MAGIC.length;i++)
+                    if(data.get(i)!=DATA_MAGIC[i] || index.get(i)!=INDEX_MAGIC[i])
+                        throw new IOException(file+" is not an archive segment");
+                if(data.getInt(DATA_MAGIC.length)!=VERSION)
+                    throw new IOException(file+" archive version "+data.getInt(DATA_MAGIC.length));
+                capacity = data.getInt(CAPACITY);
+                count = data.getInt(COUNT);
+                start = data.getLong(START);
+                mask = index.getInt(INDEX_MAGIC.length)-1;
+            } catch(IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return int offset of the next record
+         */
+        private int next() {
+            return(DATA_HEADER+count*RECORD);
+        }
+
+        /**
+         * Index the record written at next() and make it visible
+         */
+        private void commit() {
+            int record = count;
+            int base = DATA_HEADER+record*RECORD;
+            index(Key.RETRIEVAL_REFERENCE_NUM,get(data,base+RRN,12),record);
+            index(Key.TRANSACTION_IDENTIFIER,get(data,base+TRANS_ID,15),record);
+            index(Key.APPROVAL_CODE,get(data,base+APPROVAL,6),record);
+            index(Key.MASKED_CARD_NUMBER,normalize(Key.MASKED_CARD_NUMBER,get(data,base+CARD,22)),record);
+            data.putInt(COUNT,record+1);
+            count = record+1;                               // publish to readers
+        }
+
+        private void index(Key key, String k, int record) {
+            if(k.isEmpty())
+                return;
+            long hash = hash(key,k);
+            int i = (int)hash & mask;
+            while(index.getLong(INDEX_HEADER+i*ENTRY)!=0)
+                i = (i+1) & mask;
+            int e = INDEX_HEADER+i*ENTRY;
+            index.putInt(e+8,record);
+            index.putInt(e+12,key.ordinal());
+            index.putLong(e,hash);
+        }
+
+        private void find(Key key, String k, long hash, List<Record> found) {
+            int n = count;
+            int i = (int)hash & mask;
+            long h;
+            while((h = index.getLong(INDEX_HEADER+i*ENTRY))!=0) {
+                int e = INDEX_HEADER+i*ENTRY;
+                int record = index.getInt(e+8);
+                if(h==hash &&
+                   index.getInt(e+12)==key.ordinal() &&
+                   record>=0 && record<n) {
+                    Record r = new Record(data,DATA_HEADER+record*RECORD);
+                    if(k.equals(r.key(key)))
+                        found.add(r);
+                }
+                i = (i+1) & mask;
+            }
+        }
+
+        private void force() {
+            data.force();
+            index.force();
+        }
+
+        private void close() throws IOException {
+            try {
+                dataFile.close();
+            } finally {
+                indexFile.close();
+            }
+        }
+    }
+
+    /**
+     * Archived auth or settle result
+     */
+    public static final class Record {
+
+        private final long time;
+        private final boolean settle;
+        private final String merchantId;
+        private final String store;
+        private final String terminal;
+        private final String sequence;
+        private final String maskedCardNumber;
+        private final String responseCode;
+        private final String approvalCode;
+        private final String retrievalReferenceNum;
+        private final String transactionIdentifier;
+        private final String validationCode;
+        private final long amount;
+
+        private Record(MappedByteBuffer d, int base) {
+            time = d.getLong(base+TIME);
+            settle = d.get(base+TYPE)=='S';
+            merchantId = get(d,base+MERCHANT,12);
+            store = get(d,base+STORE,4);
+            terminal = get(d,base+TERMINAL,4);
+            sequence = get(d,base+SEQUENCE,4);
+            maskedCardNumber = get(d,base+CARD,22);
+            responseCode = get(d,base+RESPONSE,2);
+            approvalCode = get(d,base+APPROVAL,6);
+            retrievalReferenceNum = get(d,base+RRN,12);
+            transactionIdentifier = get(d,base+TRANS_ID,15);
+            validationCode = get(d,base+VALIDATION,4);
+            amount = d.getLong(base+AMOUNT);
+        }
+
+        private String key(Key key) {
+            switch(key) {
+                case RETRIEVAL_REFERENCE_NUM: return(retrievalReferenceNum);
+                case TRANSACTION_IDENTIFIER: return(transactionIdentifier);
+                case APPROVAL_CODE: return(approvalCode);
+                default: return(normalize(key,maskedCardNumber));
+            }
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return boolean true for a batch settle result, false for an
+         *                 authorization
+         */
+        public boolean isSettle() {
+            return settle;
+        }
+
+        public String getMerchantId() {
+            return merchantId;
+        }
+
+        public String getStore() {
+            return store;
+        }
+
+        public String getTerminal() {
+            return terminal;
+        }
+
+        /**
+         * @return String Transaction Sequence Num or Batch Number of a settle
+         */
+        public String getSequence() {
+            return sequence;
+        }
+
+        public String getMaskedCardNumber() {
+            return maskedCardNumber;
+        }
+
+        /**
+         * @return String Response Code or GB, QD, RB of a settle
+         */
+        public String getResponseCode() {
+            return responseCode;
+        }
+
+        public String getApprovalCode() {
+            return approvalCode;
+        }
+
+        public String getRetrievalReferenceNum() {
+            return retrievalReferenceNum;
+        }
+
+        public String getTransactionIdentifier() {
+            return transactionIdentifier;
+        }
+
+        public String getValidationCode() {
+            return validationCode;
+        }
+
+        /**
+         * @return long amount authorized or Batch Net Deposit in cents
+         */
+        public long getAmount() {
+            return amount;
+        }
+    }
+}
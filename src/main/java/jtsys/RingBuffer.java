@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multiple producer multiple consumer queue. Each slot
+ * has a sequence number telling producers and consumers whether it is
+ * free or filled for their lap around the ring, so offer and poll are a
+ * single compare and set when not contended.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+final class RingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();       // next to poll
+    private final AtomicLong tail = new AtomicLong();       // next to offer
+
+    /**
+     * @param capacity least number of items held, rounded up to a power
+     *                 of two
+     */
+    RingBuffer(int capacity) {
+        if(capacity<1 || capacity>1<<30)
+            throw new IllegalArgumentException("capacity must be 1 - 2^30");
+        int size = Integer.highestOneBit(capacity);
+        if(size<capacity)
+            size <<= 1;
+        mask = size-1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for(int i=0;i<size;i++)
+            sequences.set(i,i);
+    }
+
+    /**
+     * @param item item to add
+     * @return boolean false if full
+     */
+    boolean offer(T item) {
+        long pos = tail.get();
+        for(;;) {
+            int i = (int)pos & mask;
+            long d = sequences.get(i)-pos;
+            if(d==0) {
+                if(tail.compareAndSet(pos,pos+1)) {
+                    items.lazySet(i,item);
+                    sequences.set(i,pos+1);                 // publish
+                    return(true);
+                }
+                pos = tail.get();
+            } else if(d<0)
+                return(false);                              // a lap behind, full
+            else
+                pos = tail.get();
+        }
+    }
+
+    /**
+     * @return T next item, null if empty
+     */
+    T poll() {
+        long pos = head.get();
+        for(;;) {
+            int i = (int)pos & mask;
+            long d = sequences.get(i)-(pos+1);
+            if(d==0) {
+                if(head.compareAndSet(pos,pos+1)) {
+                    T item = items.get(i);
+                    items.lazySet(i,null);
+                    sequences.set(i,pos+mask+1);            // free for next lap
+                    return(item);
+                }
+                pos = head.get();
+            } else if(d<0)
+                return(null);
+            else
+                pos = head.get();
+        }
+    }
+
+    /**
+     * @return int approximate number of items
+     */
+    int size() {
+        long s = tail.get()-head.get();
+        return((int)Math.max(0,Math.min(s,mask+1)));
+    }
+
+    int capacity() {
+        return(mask+1);
+    }
+}
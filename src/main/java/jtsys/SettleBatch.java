@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * A merchant terminal's pending transactions and batch number, used to
+ * send many batches in one Multiple Batch transmission
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class SettleBatch {
+
+    private final PendingTransactionStore store;
+    private final String batchNumber;
+
+    /**
+     * @param store PendingTransactionStore of transactions to settle
+     * @param batchNumber Merchant specific batch number 001 - 999
+     */
+    public SettleBatch(PendingTransactionStore store,
+                       String batchNumber) {
+        this.store = store;
+        this.batchNumber = batchNumber;
+    }
+
+    public PendingTransactionStore getStore() {
+        return store;
+    }
+
+    public Merchant getMerchant() {
+        return store.getMerchant();
+    }
+
+    public String getBatchNumber() {
+        return batchNumber;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End of day settlement scheduler, settles many merchants in parallel
+ * before the processor cutoff.
+ *
+ * Jobs run highest batch value first with bounded global and per host
+ * parallelism. T (Transmission Error) rejects and I/O errors are retried
+ * while time remains before the cutoff, a QD (Duplicate Batch) response
+ * to a retry means the batch was already accepted and counts as settled.
+ * No job is started after the cutoff, jobs still settling at the cutoff
+ * are interrupted and ABANDONED and run returns without waiting for them.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class SettlementScheduler {
+
+    private static final String DEFAULT_HOST = "gateway";
+
+    /**
+     * Settlement job outcomes
+     */
+    public enum Status {
+        PENDING("Waiting to settle"),
+        RUNNING("Settling"),
+        SETTLED("Batch accepted"),
+        DUPLICATE("Batch accepted earlier, duplicate"),
+        REJECTED("Batch rejected"),
+        FAILED("Settlement failed"),
+        MISSED("Cutoff passed before settlement"),
+        ABANDONED("Cutoff passed while settling, outcome unknown");
+
+        private String value;
+
+        Status(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return this.value;
+        }
+    }
+
+    /**
+     * Settlement of one merchant batch
+     */
+    public static final class Job {
+
+        private final Merchant merchant;
+        private final String host;
+        private final long value;
+        private final Callable<LinkedHashMap<String,String>> settle;
+        private volatile Status status = Status.PENDING;
+        private volatile LinkedHashMap<String,String> response;
+        private volatile Exception error;
+        private volatile int attempts;
+        private long notBefore;
+
+        /**
+         * @param merchant Merchant account being settled
+         * @param value batch value in cents, higher values settle first
+         * @param settle settles the batch, usually a call to Tsys.settle
+         */
+        public Job(Merchant merchant,
+                   long value,
+                   Callable<LinkedHashMap<String,String>> settle) {
+            this(merchant,DEFAULT_HOST,value,settle);
+        }
+
+        /**
+         * @param merchant Merchant account being settled
+         * @param host gateway host the batch is sent to, limits parallelism
+         * @param value batch value in cents, higher values settle first
+         * @param settle settles the batch, usually a call to Tsys.settle
+         */
+        public Job(Merchant merchant,
+                   String host,
+                   long value,
+                   Callable<LinkedHashMap<String,String>> settle) {
+            this.merchant = merchant;
+            this.host = host;
+            this.value = value;
+            this.settle = settle;
+        }
+
+        public Merchant getMerchant() {
+            return merchant;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return LinkedHashMap<String,String> last settle response or null
+         */
+        public LinkedHashMap<String,String> getResponse() {
+            return response;
+        }
+
+        /**
+         * @return Exception from the last attempt or null
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        private boolean isOpen() {
+            return(status==Status.PENDING || status==Status.RUNNING);
+        }
+    }
+
+    private static final Comparator<Job> BY_VALUE = (a,b) -> Long.compare(b.value,a.value);
+
+    private final int parallelism;
+    private final int hostParallelism;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final Clock clock;
+
+    private final List<Job> queue = new ArrayList<>();
+    private final List<Job> jobs = new ArrayList<>();
+    private final Map<String,Integer> hostsRunning = new HashMap<>();
+    private int running;
+    private long cutoff;
+    private int generation;
+
+    /**
+     * @param parallelism most batches settling at once
+     * @param hostParallelism most batches settling at once per host
+     * @param maxAttempts attempts per batch including retries
+     * @param retryDelay time to wait before retrying a batch
+     */
+    public SettlementScheduler(int parallelism,
+                               int hostParallelism,
+                               int maxAttempts,
+                               Duration retryDelay) {
+        this(parallelism,hostParallelism,maxAttempts,retryDelay,Clock.systemUTC());
+    }
+
+    /**
+     * @param parallelism most batches settling at once
+     * @param hostParallelism most batches settling at once per host
+     * @param maxAttempts attempts per batch including retries
+     * @param retryDelay time to wait before retrying a batch
+     * @param clock Clock used for the cutoff and retry times
+     */
+    public SettlementScheduler(int parallelism,
+                               int hostParallelism,
+                               int maxAttempts,
+                               Duration retryDelay,
+                               Clock clock) {
+        if(parallelism<1 || hostParallelism<1 || maxAttempts<1)
+            throw new IllegalArgumentException("parallelism and attempts must be >= 1");
+        this.parallelism = parallelism;
+        this.hostParallelism = hostParallelism;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * Settle every job, returns once all jobs have finished or at the
+     * cutoff
+     *
+     * @param settlements jobs to run
+     * @param cutoff processor cutoff time, jobs not started are MISSED,
+     *               jobs still settling are interrupted and ABANDONED
+     * @param warning time before the cutoff to report open merchants,
+     *                null for no warning
+     * @param open receives merchants still open at the warning time
+     * @return List<Job> all jobs with their final status
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Job> run(List<Job> settlements,
+                         Instant cutoff,
+                         Duration warning,
+                         Consumer<List<Merchant>> open) throws InterruptedException {
+        final int run;
+        synchronized(this) {
+            if(!jobs.isEmpty())
+                throw new IllegalStateException("Scheduler is already running");
+            run = ++generation;
+            this.cutoff = cutoff.toEpochMilli();
+            jobs.addAll(settlements);
+            queue.addAll(settlements);
+            Collections.sort(queue,BY_VALUE);
+        }
+        List<Thread> workers = new ArrayList<>();
+        for(int i=0;i<Math.min(parallelism,settlements.size());i++) {
+            Thread t = new Thread(() -> work(run),"jtsys-settle-"+i);
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+        long warnAt = warning==null ? Long.MAX_VALUE : this.cutoff-warning.toMillis();
+        boolean warned = warning==null;
+        boolean abandoned = false;
+        try {
+            synchronized(this) {
+                while(!queue.isEmpty() || running>0) {
+                    long now = clock.millis();
+                    if(!warned && now>=warnAt) {
+                        warned = true;
+                        List<Merchant> m = openMerchants();
+                        if(open!=null && !m.isEmpty())
+                            open.accept(m);
+                    }
+                    if(now>=this.cutoff) {
+                        expire();
+                        abandoned = abandon();
+                        for(Thread t : workers)
+                            t.interrupt();
+                        break;
+                    }
+                    long wait = Math.min(warned ? Long.MAX_VALUE : warnAt,this.cutoff)-now;
+                    if(wait>0)
+                        wait(Math.min(wait,1000));
+                    else if(!queue.isEmpty() || running>0)
+                        wait(100);
+                }
+                notifyAll();
+            }
+            if(!abandoned)
+                for(Thread t : workers)
+                    t.join();
+        } finally {
+            synchronized(this) {
+                queue.clear();
+                notifyAll();
+            }
+        }
+        synchronized(this) {
+            List<Job> done = new ArrayList<>(jobs);
+            jobs.clear();
+            return(done);
+        }
+    }
+
+    /**
+     * Merchants not yet settled, pending or in progress
+     *
+     * @return List<Merchant> merchants still open
+     */
+    public synchronized List<Merchant> openMerchants() {
+        List<Merchant> open = new ArrayList<>();
+        for(Job j : jobs)
+            if(j.isOpen())
+                open.add(j.merchant);
+        return(open);
+    }
+
+    private void expire() {
+        for(Job j : queue)
+            j.status = Status.MISSED;
+        queue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Abandon jobs still settling at the cutoff, their workers are no
+     * longer counted and their results are dropped
+     *
+     * @return boolean true if any job was abandoned
+     */
+    private boolean abandon() {
+        boolean any = false;
+        for(Job j : jobs)
+            if(j.status==Status.RUNNING) {
+                j.status = Status.ABANDONED;
+                running--;
+                hostsRunning.merge(j.host,-1,Integer::sum);
+                any = true;
+            }
+        return(any);
+    }
+
+    private void work(int run) {
+        Job job;
+        while((job = take(run)) != null) {
+            LinkedHashMap<String,String> response = null;
+            Exception error = null;
+            Status status = Status.FAILED;
+            try {
+                response = job.settle.call();
+                status = classify(response);
+            } catch(IOException e) {
+                error = e;
+                status = null;
+            } catch(Exception e) {
+                error = e;
+            } finally {
+                finish(job,response,error,status);
+            }
+        }
+    }
+
+    /**
+     * Highest value job whose host has capacity and is not waiting to retry
+     *
+     * @param run generation of the run the worker belongs to
+     */
+    private synchronized Job take(int run) {
+        try {
+            for(;;) {
+                if(run!=generation)
+                    return(null);
+                long now = clock.millis();
+                if(now>=cutoff)
+                    expire();
+                if(queue.isEmpty())
+                    return(null);
+                long next = Long.MAX_VALUE;
+                for(int i=0;i<queue.size();i++) {
+                    Job j = queue.get(i);
+                    if(hostsRunning.getOrDefault(j.host,0)>=hostParallelism)
+                        continue;
+                    if(j.notBefore>now) {
+                        next = Math.min(next,j.notBefore);
+                        continue;
+                    }
+                    queue.remove(i);
+                    running++;
+                    hostsRunning.merge(j.host,1,Integer::sum);
+                    j.status = Status.RUNNING;
+                    j.attempts++;
+                    return(j);
+                }
+                wait(Math.max(1,Math.min(Math.min(next,cutoff)-now,1000)));
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return(null);
+        }
+    }
+
+    /**
+     * Record the outcome of one attempt, retry the job if it failed with
+     * an I/O error and may be retried before the cutoff. Results of
+     * abandoned jobs are dropped.
+     *
+     * @param status Status of the attempt, null if it should be retried
+     */
+    private synchronized void finish(Job job,
+                                     LinkedHashMap<String,String> response,
+                                     Exception error,
+                                     Status status) {
+        if(job.status!=Status.RUNNING)
+            return;                                         // abandoned at the cutoff
+        running--;
+        hostsRunning.merge(job.host,-1,Integer::sum);
+        if(response!=null)
+            job.response = response;
+        job.error = error;
+        if(status==null &&
+           job.attempts<maxAttempts &&
+           clock.millis()+retryDelay<cutoff) {
+            Logger.getLogger(SettlementScheduler.class.getName()).log(Level.WARNING,
+                String.format("Retrying settlement merchant %s terminal %s attempt %d",
+                              job.merchant.getId(),
+                              job.merchant.getTerminal(),
+                              job.attempts));
+            job.status = Status.PENDING;
+            job.notBefore = clock.millis()+retryDelay;
+            int i = Collections.binarySearch(queue,job,BY_VALUE);
+            queue.add(i<0 ? -i-1 : i,job);
+        } else
+            job.status = status==null ? Status.FAILED : status;
+        notifyAll();
+    }
+
+    /**
+     * Status of a settle response, null if the batch should be retried
+     */
+    private static Status classify(LinkedHashMap<String,String> response) {
+        if(response.containsKey(SettleResponseKeys.Batch_Response_Text.key()))
+            return(Status.SETTLED);
+        if(response.containsKey("Batch Date"))
+            return(Status.DUPLICATE);
+        String type = response.get(SettleResponseErrorKeys.Error_Type.name().replace("_"," "));
+        if(type!=null)
+            return(type.equals(SettleErrorTypes.T.value()) ? null : Status.REJECTED);
+        return(Status.FAILED);
+    }
+}
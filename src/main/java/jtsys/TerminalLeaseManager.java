@@ -0,0 +1,384 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exclusive, time limited leases on merchant terminals shared by many
+ * processes through a memory mapped lease table file, on one host or a
+ * shared filesystem with synchronized clocks.
+ *
+ * The table has a fixed number of slots, each terminal is given a slot
+ * the first time it is leased. A slot holds the terminal, the lease owner
+ * and expiry, and the last Transaction Sequence Number and Batch Number
+ * used, so the next holder continues where the last left off. A slot is
+ * changed under a file lock on just that slot. Leases are renewed by a
+ * heartbeat, a lease from a process that died expires after the lease
+ * time and can be taken by another process.
+ *
+ * A terminal is leased at most once at a time within a manager too, so
+ * threads sharing a manager each get their own terminal. Sequence and
+ * batch numbers are handed out under the slot's lock in the JVM without
+ * any file lock, only the lease holder writes them. Use one manager per
+ * table file in a JVM, file locks are held by the JVM and cannot be
+ * shared between managers.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class TerminalLeaseManager implements Closeable {
+
+    private static final byte[] MAGIC = "JTSYSLSE".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 64;
+    private static final int KEY = 20;                      // Merchant 12, Store 4, Terminal 4
+
+    // Slot layout
+    private static final int OWNER = 24;                    // long owner id, 0 if free
+    private static final int EXPIRES = 32;                  // long lease expiry millis
+    private static final int SEQUENCE = 40;                 // int last Transaction Sequence Number
+    private static final int BATCH = 44;                    // int last Batch Number
+
+    private final FileChannel channel;
+    private final MappedByteBuffer table;
+    private final int slots;
+    private final long ttl;
+    private final long owner;
+    private final Object[] locks;
+    private final ConcurrentHashMap<Integer,Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * @param file lease table file, created if it does not exist
+     * @param slots number of terminals the table can hold, must match an
+     *              existing table
+     * @param ttl lease time, leases are renewed every third of it
+     * @param unit TimeUnit of ttl
+     * @throws IOException if the table cannot be opened or does not match
+     */
+    public TerminalLeaseManager(Path file,
+                                int slots,
+                                long ttl,
+                                TimeUnit unit) throws IOException {
+        if(slots<1)
+            throw new IllegalArgumentException("slots must be >= 1");
+        this.slots = slots;
+        this.ttl = unit.toMillis(ttl);
+        long o;
+        do {
+            o = new SecureRandom().nextLong();
+        } while(o==0);
+        owner = o;
+        locks = new Object[slots];
+        for(int i=0;i<slots;i++)
+            locks[i] = new Object();
+        channel = FileChannel.open(file,
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        try {
+            long size = HEADER+(long)slots*SLOT;
+            FileLock l = channel.lock(0,HEADER,false);
+            try {
+                if(channel.size()==0)
+                    channel.truncate(size);
+                table = channel.map(FileChannel.MapMode.READ_WRITE,0,Math.max(size,channel.size()));
+                if(table.getInt(MAGIC.length)==0) {
+                    for(int i=0;i<MAGIC.length;i++)
+                        table.put(i,MAGIC[i]);
+                    table.putInt(MAGIC.length,VERSION);
+                    table.putInt(MAGIC.length+4,slots);
+                } else {
+                    for(int i=0;i<MAGIC.length;i++)
+                        if(table.get(i)!=MAGIC[i])
+                            throw new IOException(file+" is not a lease table");
+                    if(table.getInt(MAGIC.length)!=VERSION ||
+                       table.getInt(MAGIC.length+4)!=slots)
+                        throw new IOException(file+" lease table version or slots do not match");
+                }
+            } finally {
+                l.release();
+            }
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r,"jtsys-terminal-lease");
+            t.setDaemon(true);
+            return(t);
+        });
+        long period = Math.max(1,this.ttl/3);
+        heartbeat.scheduleWithFixedDelay(this::renewAll,period,period,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lease a terminal
+     *
+     * @param merchant Merchant terminal to lease
+     * @return Lease or null if another process or a valid lease of this
+     *               manager holds the terminal
+     * @throws IOException if the table cannot be locked or is full
+     */
+    public Lease acquire(Merchant merchant) throws IOException {
+        byte[] key = key(merchant);
+        int start = (hash(key) & 0x7fffffff)%slots;
+        for(int n=0;n<slots;n++) {
+            int slot = (start+n)%slots;
+            synchronized(locks[slot]) {
+                FileLock l = lock(slot);
+                try {
+                    int base = HEADER+slot*SLOT;
+                    boolean empty = table.get(base)==0;
+                    if(!empty && !keyEquals(base,key))
+                        continue;                           // probe next slot
+                    if(empty)
+                        for(int i=0;i<KEY;i++)
+                            table.put(base+i,key[i]);
+                    long now = System.currentTimeMillis();
+                    long o = table.getLong(base+OWNER);
+                    if(o!=0 && o!=owner && table.getLong(base+EXPIRES)>now)
+                        return(null);
+                    Lease held = leases.get(slot);
+                    if(held!=null) {
+                        if(held.isValid())
+                            return(null);                   // leased by another thread
+                        held.valid = false;
+                    }
+                    table.putLong(base+OWNER,owner);
+                    table.putLong(base+EXPIRES,now+ttl);
+                    Lease lease = new Lease(merchant,slot,now+ttl);
+                    leases.put(slot,lease);
+                    return(lease);
+                } finally {
+                    l.release();
+                }
+            }
+        }
+        throw new IOException("Lease table is full, "+slots+" terminals");
+    }
+
+    /**
+     * Lease the first available terminal of a pool
+     *
+     * @param terminals Merchant terminals to choose from
+     * @return Lease or null if other processes or leases of this manager
+     *               hold every terminal
+     * @throws IOException if the table cannot be locked or is full
+     */
+    public Lease acquire(List<Merchant> terminals) throws IOException {
+        for(Merchant m : terminals) {
+            Lease l = acquire(m);
+            if(l!=null)
+                return(l);
+        }
+        return(null);
+    }
+
+    /**
+     * @return List<Lease> leases held by this manager
+     */
+    public List<Lease> leases() {
+        return(new ArrayList<>(leases.values()));
+    }
+
+    /**
+     * Stop the heartbeat and release every lease
+     *
+     * @throws IOException if the table cannot be updated
+     */
+    @Override
+    public void close() throws IOException {
+        heartbeat.shutdownNow();
+        try {
+            for(Lease l : leases())
+                l.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void renewAll() {
+        for(Lease l : leases.values())
+            try {
+                if(!l.renew())
+                    Logger.getLogger(TerminalLeaseManager.class.getName()).log(Level.WARNING,
+                        String.format("Lease lost merchant %s terminal %s",
+                                      l.merchant.getId(),
+                                      l.merchant.getTerminal()));
+            } catch(IOException e) {
+                Logger.getLogger(TerminalLeaseManager.class.getName()).log(Level.SEVERE,
+                    "Lease renewal failed",e);
+            }
+    }
+
+    private FileLock lock(int slot) throws IOException {
+        return(channel.lock(HEADER+(long)slot*SLOT,SLOT,false));
+    }
+
+    private boolean keyEquals(int base, byte[] key) {
+        for(int i=0;i<KEY;i++)
+            if(table.get(base+i)!=key[i])
+                return(false);
+        return(true);
+    }
+
+    private static byte[] key(Merchant m) {
+        String k = String.format("%-12.12s%-4.4s%-4.4s",m.getId(),m.getStore(),m.getTerminal());
+        return(k.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int hash(byte[] key) {
+        int h = 0;
+        for(byte b : key)
+            h = 31*h+b;
+        return(h);
+    }
+
+    /**
+     * Exclusive lease on a merchant terminal
+     */
+    public final class Lease {
+
+        private final Merchant merchant;
+        private final int slot;
+        private volatile long expires;
+        private volatile boolean valid = true;
+
+        private Lease(Merchant merchant, int slot, long expires) {
+            this.merchant = merchant;
+            this.slot = slot;
+            this.expires = expires;
+        }
+
+        public Merchant getMerchant() {
+            return merchant;
+        }
+
+        /**
+         * @return boolean true while the lease is held and not expired
+         */
+        public boolean isValid() {
+            return(valid && System.currentTimeMillis()<expires);
+        }
+
+        /**
+         * Next Transaction Sequence Number for the terminal, 0001 - 9999
+         *
+         * @return String 4 digit sequence number
+         * @throws IllegalStateException if the lease is no longer held
+         */
+        public String nextTransSequenceNumber() {
+            int s;
+            synchronized(locks[slot]) {
+                int base = check();
+                s = table.getInt(base+SEQUENCE)%9999+1;
+                table.putInt(base+SEQUENCE,s);
+            }
+            StringBuilder b = new StringBuilder(4);
+            Amounts.zeroPad(b,s,4);
+            return(b.toString());
+        }
+
+        /**
+         * Next Batch Number for the terminal, 001 - 999
+         *
+         * @return String 3 digit batch number
+         * @throws IllegalStateException if the lease is no longer held
+         */
+        public String nextBatchNumber() {
+            int s;
+            synchronized(locks[slot]) {
+                int base = check();
+                s = table.getInt(base+BATCH)%999+1;
+                table.putInt(base+BATCH,s);
+            }
+            StringBuilder b = new StringBuilder(3);
+            Amounts.zeroPad(b,s,3);
+            return(b.toString());
+        }
+
+        /**
+         * Extend the lease, done by the heartbeat
+         *
+         * @return boolean false if the lease was lost
+         * @throws IOException if the table cannot be locked
+         */
+        public boolean renew() throws IOException {
+            if(!valid)
+                return(false);
+            synchronized(locks[slot]) {
+                FileLock l = lock(slot);
+                try {
+                    int base = HEADER+slot*SLOT;
+                    long now = System.currentTimeMillis();
+                    if(table.getLong(base+OWNER)!=owner) {
+                        lost();
+                        return(false);
+                    }
+                    table.putLong(base+EXPIRES,now+ttl);
+                    expires = now+ttl;
+                    return(true);
+                } finally {
+                    l.release();
+                }
+            }
+        }
+
+        /**
+         * Give up the lease so another process can take the terminal
+         *
+         * @throws IOException if the table cannot be locked
+         */
+        public void release() throws IOException {
+            if(!valid)
+                return;
+            synchronized(locks[slot]) {
+                FileLock l = lock(slot);
+                try {
+                    int base = HEADER+slot*SLOT;
+                    if(table.getLong(base+OWNER)==owner) {
+                        table.putLong(base+OWNER,0);
+                        table.putLong(base+EXPIRES,0);
+                    }
+                } finally {
+                    l.release();
+                }
+            }
+            lost();
+        }
+
+        private void lost() {
+            valid = false;
+            leases.remove(slot,this);
+        }
+
+        private int check() {
+            if(!isValid())
+                throw new IllegalStateException("Lease expired merchant "+merchant.getId()+
+                                                " terminal "+merchant.getTerminal());
+            return(HEADER+slot*SLOT);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Delivers framed requests to the gateway and returns the response
+ *
+ * Framing (STX/ETB/ETX/LRC) and parity are done by Tsys, a transport only
+ * moves bytes. Requests already have even parity applied, responses are
+ * returned as received, parity is removed by the caller.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Send a request and read the complete response
+     *
+     * @param mime Content-Type of the request, x-Visa-II/x-auth or
+     *             x-Visa-II/x-settle
+     * @param request framed request bytes with parity
+     * @return ResponseBuffer containing the response, released by the caller
+     * @throws IOException if the request cannot be sent or the response
+     *                     cannot be read
+     */
+    ResponseBuffer exchange(String mime, byte[] request) throws IOException;
+}
@@ -6,23 +6,21 @@
 
 package jtsys;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.net.ssl.HttpsURLConnection;
-
 /**
  *
  * @author William L. Thomson Jr. <wlt@o-sinc.com>
@@ -68,9 +66,24 @@ public class Tsys {
     };
     private final String[] LANGUAGES = { "00" };      // 00=English
  
-    private final static String TSYS_URL = "https://ssl1.tsysacquiring.net/scripts/gateway.dll?transact";
+
+    private final static Pattern ERROR_RESPONSE = Pattern.compile("^(\\d+)\\s+\\-\\s+(\\S.*)$");
+
+    // Response patterns compiled once, matched against pooled buffers
+    private final Pattern authResponse = Pattern.compile(authResponseRexEx());
+    private final Pattern settleResponse = Pattern.compile(settleResponseRexEx());
+    private final Pattern settleResponseDup = Pattern.compile(settleResponseDupRexEx());
+    private final Pattern settleResponseReject = Pattern.compile(settleResponseRejectRexEx());
 
     private boolean debug = false;
+    private Transport transport = new HttpsTransport();
+    private AdmissionControl admission;
+    private WireCapture capture;
+    private ApprovalAnalytics analytics;
+    private ResultArchive archive;
+    private BatchReconciler reconciler;
+    private HardDeclineCache declineCache;
+    private AuthValidator validator;
 
     /**
      * Empty constructor required to have one without parameters
@@ -85,14 +98,94 @@ public class Tsys {
         this.debug = debug;
     }
 
-    private HttpsURLConnection getHttpsConnection() throws IOException {
-        URL url = new URL(TSYS_URL);
-        HttpsURLConnection httpsCon = (HttpsURLConnection)url.openConnection();
-        httpsCon.setRequestMethod("POST");
-        httpsCon.setDoOutput(true);
-        httpsCon.setDoInput(true);
-        httpsCon.setUseCaches(false);
-        return(httpsCon);
+    /**
+     * Constructor to set debugging and transport
+     * @param debug boolean to enable debugging, true to enable, default false
+     * @param transport Transport used to deliver requests, default HTTPS
+     */
+    public Tsys(boolean debug, Transport transport) {
+        this.debug = debug;
+        this.transport = transport;
+    }
+
+    /**
+     * Set the transport used to deliver requests to the gateway
+     *
+     * @param transport Transport to use, default HttpsTransport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Set admission control used to rate limit requests per merchant
+     * terminal before they are sent to the gateway
+     *
+     * @param admission AdmissionControl to use, null to disable
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Capture masked request/response pairs for offline replay
+     *
+     * @param capture WireCapture to write to, null to disable
+     */
+    public void setCapture(WireCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Feed every auth and settle result to approval analytics
+     *
+     * @param analytics ApprovalAnalytics to record results in, null to disable
+     */
+    public void setAnalytics(ApprovalAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    /**
+     * Archive every auth and settle result for lookup by Retrieval
+     * Reference Num, Transaction Identifier, approval code or masked card
+     *
+     * @param archive ResultArchive to append results to, null to disable
+     */
+    public void setArchive(ResultArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Reconcile every batch settled against its trailer response, the
+     * batch totals sent are given to the reconciler, do not also add the
+     * batch details to it
+     *
+     * @param reconciler BatchReconciler to reconcile batches with, null to
+     *                   disable
+     */
+    public void setReconciler(BatchReconciler reconciler) {
+        this.reconciler = reconciler;
+    }
+
+    /**
+     * Decline cards locally that were hard declined recently instead of
+     * sending them to the gateway again
+     *
+     * @param declineCache HardDeclineCache to check and record auth results
+     *                     in, null to disable
+     */
+    public void setDeclineCache(HardDeclineCache declineCache) {
+        this.declineCache = declineCache;
+    }
+
+    /**
+     * Set the validator run on requests before they are encoded, requests
+     * are not validated locally unless one is set
+     *
+     * @param validator AuthValidator to use, null to disable
+     */
+    public void setValidator(AuthValidator validator) {
+        this.validator = validator;
     }
 
     public String separator(String obj,
@@ -104,33 +197,130 @@ public class Tsys {
         return (STX+s+etbx+lrc(s+etbx));
     }
 
-    private LinkedHashMap<String,String> submit(String request,
+    /**
+     * Send a request and decode the response
+     *
+     * @param event Auth or Settle GatewayEvent to record when decoded,
+     *              may be null
+     */
+    private LinkedHashMap<String,String> submit(GatewayEvent event,
+                                                Merchant merchant,
+                                                String request,
                                                 String mime) throws IOException,
                                                                     Exception {
-        LinkedHashMap<String,String> map = null;
-        HttpsURLConnection httpsCon = getHttpsConnection();
-        httpsCon.setRequestProperty("Content-Type", mime);
-        httpsCon.setRequestProperty("Content-Length", String.valueOf(request.length()));
-        DataOutputStream wr = new DataOutputStream(httpsCon.getOutputStream());
-        wr.write(getEvenParity(request));
-        wr.flush();
-        String cipher = httpsCon.getCipherSuite();
-        InputStream is = httpsCon.getInputStream();
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = is.read(buffer)) != -1)
-            result.write(buffer, 0, length);
-        is.close();
-        httpsCon.disconnect();
-        map = new LinkedHashMap<>();
-        String response = new String(removeParity(result.toByteArray()));
-        String error_pattern = "^(\\d+)\\s+\\-\\s+(\\S.*)$";            // Error Pattern
-        Matcher auth = Pattern.compile(authResponseRexEx()).matcher(response);
-        Matcher settle = Pattern.compile(settleResponseRexEx()).matcher(response);
-        Matcher duplicate = Pattern.compile(settleResponseDupRexEx()).matcher(response);
-        Matcher reject = Pattern.compile(settleResponseRejectRexEx()).matcher(response);
-        Matcher error = Pattern.compile(error_pattern).matcher(response);
+        ResponseBuffer result = exchange(request,mime);
+        GatewayEvent decode = GatewayEvents.begin(GatewayEvents.Kind.DECODE);
+        try {
+            LinkedHashMap<String,String> map = decode(result.ascii());
+            if(decode!=null)
+                decode.record(merchant,mime,outcome(map),request.length(),result.length(),result.isReused());
+            if(event!=null)
+                event.record(merchant,mime,outcome(map),request.length(),result.length(),result.isReused());
+            return(map);
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * Outcome of a decoded response for flight recorder events, Response
+     * Code of an auth, GB, QD or RB of a settle, Code of an error
+     */
+    private String outcome(Map<String,String> response) {
+        String code = response.get(AuthResponseKeys.Response_Code.key());
+        if(code==null)
+            code = settleResponseCode(response);
+        if(code==null)
+            code = response.get(ERROR_RESPONSE_KEYS[0]);
+        return(code==null ? "UNMATCHED" : code);
+    }
+
+    /**
+     * Batch Response Code of a decoded settle response
+     *
+     * @param response Map<String,String> decoded settle response
+     * @return String GB, QD or RB, null if not a settle response
+     */
+    static String settleResponseCode(Map<String,String> response) {
+        if(!response.containsKey(SettleResponseKeys.Batch_Net_Deposit.key()))
+            return(null);
+        if(response.containsKey("Batch Date"))
+            return("QD");
+        if(response.containsKey(SettleResponseKeys.Batch_Response_Text.key()))
+            return("GB");
+        return("RB");
+    }
+
+    /**
+     * Send a request and read the response
+     *
+     * @param request request without parity
+     * @param mime Content-Type of the request
+     * @return ResponseBuffer with parity removed, must be released
+     * @throws IOException if an error occurs sending or receiving
+     */
+    private ResponseBuffer exchange(String request,
+                                    String mime) throws IOException {
+        return(exchange(request,getEvenParity(request),mime));
+    }
+
+    /**
+     * Send an encoded request and read the response
+     *
+     * @param request request without parity, for capture and debugging
+     * @param wire request with even parity
+     * @param mime Content-Type of the request
+     * @return ResponseBuffer with parity removed, must be released
+     * @throws IOException if an error occurs sending or receiving
+     */
+    private ResponseBuffer exchange(String request,
+                                    byte[] wire,
+                                    String mime) throws IOException {
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        ResponseBuffer result = transport.exchange(mime,wire);
+        long nanos = System.nanoTime()-start;
+        boolean returned = false;
+        try {
+            result.stripParity();
+            if(capture!=null)
+                try {
+                    capture.record(mime,request,result.array(),result.length(),time,nanos);
+                } catch(IOException e) {
+                    Logger.getLogger(Tsys.class.getName()).log(Level.WARNING,"Capture failed",e);
+                }
+            if(debug)
+                Logger.getLogger(Tsys.class.getName()).log(Level.SEVERE,
+                    String.format("Cipher       : %s\n"
+                                + "IP           : %s\n"
+                                + "Request      : %s\n"
+                                + "Response     : %s\n\n",
+                                  result.getCipher(),
+                                  InetAddress.getByName(result.getRemote()).getHostAddress(),
+                                  request,
+                                  result.ascii()));
+            returned = true;
+            return(result);
+        } finally {
+            if(!returned)                                   // caller never sees it
+                result.release();
+        }
+    }
+
+    /**
+     * Decode a parity stripped gateway response
+     *
+     * @param response CharSequence view of the response
+     * @return LinkedHashMap<String,String> containing decoded response, empty
+     *                                      if the response was not matched
+     */
+    LinkedHashMap<String,String> decode(CharSequence response) {
+        LinkedHashMap<String,String> map = new LinkedHashMap<>();
+        Matcher auth = authResponse.matcher(response);
+        Matcher settle = settleResponse.matcher(response);
+        Matcher duplicate = settleResponseDup.matcher(response);
+        Matcher reject = settleResponseReject.matcher(response);
+        Matcher error = ERROR_RESPONSE.matcher(response);
         if(auth.matches()) {
             AuthResponseKeys[] values = AuthResponseKeys.values();
             int g = 0;
@@ -158,16 +348,15 @@ public class Tsys {
             SettleResponseErrorKeys[] values = SettleResponseErrorKeys.values();
             for(int i=0;i<values.length;i++) {
                 String name = values[i].name().replace("_"," ");
-                if(reject.group(i+1).length()==1)
-                    if(values[i].name().equals(SettleResponseErrorKeys.Error_Type.name()))
-                        for(SettleErrorTypes t: SettleErrorTypes.values())
-                            if(t.name().equals(reject.group(i+1)))
-                                map.put(name,t.value());
-                    else if(values[i].name().equals(SettleResponseErrorKeys.Error_Record_Type.name()))
-                        for(SettleErrorRecordTypes r: SettleErrorRecordTypes.values())
-                            if(r.name().equals(reject.group(i+1)))
-                                map.put(name,r.value());
-                else
+                if(values[i].name().equals(SettleResponseErrorKeys.Error_Type.name())) {
+                    for(SettleErrorTypes t: SettleErrorTypes.values())
+                        if(t.name().equals(reject.group(i+1)))
+                            map.put(name,t.value());
+                } else if(values[i].name().equals(SettleResponseErrorKeys.Error_Record_Type.name())) {
+                    for(SettleErrorRecordTypes r: SettleErrorRecordTypes.values())
+                        if(r.name().equals(reject.group(i+1)))
+                            map.put(name,r.value());
+                } else
                     map.put(name,reject.group(i+1).trim());
             }
         } else if(error.matches())
@@ -176,16 +365,6 @@ public class Tsys {
         else
             Logger.getLogger(Tsys.class.getName()).log(Level.SEVERE,
                     String.format("\nUn-matched response : %s \n\n",response));
-        if(debug)
-            Logger.getLogger(Tsys.class.getName()).log(Level.SEVERE,
-                String.format("Cipher       : %s\n"
-                            + "IP           : %s\n"
-                            + "Request      : %s\n"
-                            + "Response     : %s\n\n",
-                              cipher,
-                              InetAddress.getByName(httpsCon.getURL().getHost()).getHostAddress(),
-                              request,
-                              response));
         return(map);
     }
 
@@ -203,7 +382,12 @@ public class Tsys {
      *                                      authorization or error response
      *                                      if length is 2, there was an error
      *                                      otherwise use AuthResponseKeys enum
-     *                                      for key names to access values
+     *                                      for key names to access values,
+     *                                      a card hard declined recently is
+     *                                      declined locally when a
+     *                                      HardDeclineCache is set
+     * @throws ValidationException if the request fails local validation
+     * @throws AdmissionException if admission control rejects the request
      * @throws Exception if any errors occur, request not proper length, issue
      *                   with connection, etc.
      */
@@ -214,14 +398,240 @@ public class Tsys {
                                              String address,
                                              String zip,
                                              String amount) throws Exception {
-        String r = authRequest(merchant,
-                               transSequenceNumber,
-                               cardNumber,
-                               expiration,
-                               address,
-                               zip,
-                               amount);
-        return(submit(r,MIME[0]));
+        LinkedHashMap<String,String> declined = cachedDecline(merchant,cardNumber,expiration);
+        if(declined!=null)
+            return(declined);
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.AUTH);
+        try {
+            long cents = Amounts.cents(amount);
+            String r = encodeAuth(merchant,
+                                  transSequenceNumber,
+                                  cardNumber,
+                                  expiration,
+                                  address,
+                                  zip,
+                                  cents);
+            return(authExchange(event,
+                                merchant,
+                                transSequenceNumber,
+                                cardNumber,
+                                expiration,
+                                cents,
+                                r));
+        } catch(Exception e) {
+            if(event!=null)
+                event.record(merchant,MIME[0],GatewayEvents.outcome(e),0,0,false);
+            throw e;
+        }
+    }
+
+    /**
+     * Authorize a credit card
+     *
+     * @param merchant Merchant account to use
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param cardNumber Credit card number
+     * @param expiration Credit card expiration
+     * @param address Credit card holder address
+     * @param zip Credit card holder zip code
+     * @param amount Amount of charge to be authorized in cents
+     * @return LinkedHashMap<String,String> containing credit card
+     *                                      authorization or error response
+     *                                      if length is 2, there was an error
+     *                                      otherwise use AuthResponseKeys enum
+     *                                      for key names to access values,
+     *                                      a card hard declined recently is
+     *                                      declined locally when a
+     *                                      HardDeclineCache is set
+     * @throws ValidationException if the request fails local validation
+     * @throws AdmissionException if admission control rejects the request
+     * @throws Exception if any errors occur, request not proper length, issue
+     *                   with connection, etc.
+     */
+    public LinkedHashMap<String,String> auth(Merchant merchant,
+                                             String transSequenceNumber,
+                                             String cardNumber,
+                                             String expiration,
+                                             String address,
+                                             String zip,
+                                             long amount) throws Exception {
+        LinkedHashMap<String,String> declined = cachedDecline(merchant,cardNumber,expiration);
+        if(declined!=null)
+            return(declined);
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.AUTH);
+        try {
+            if(validator!=null)
+                validator.check(merchant,transSequenceNumber,cardNumber,expiration,amount);
+            String r = authRequest(merchant,
+                                   transSequenceNumber,
+                                   cardNumber,
+                                   expiration,
+                                   address,
+                                   zip,
+                                   amount);
+            return(authExchange(event,
+                                merchant,
+                                transSequenceNumber,
+                                cardNumber,
+                                expiration,
+                                amount,
+                                r));
+        } catch(Exception e) {
+            if(event!=null)
+                event.record(merchant,MIME[0],GatewayEvents.outcome(e),0,0,false);
+            throw e;
+        }
+    }
+
+    /**
+     * Transmit and decode an encoded authorization, recording the Auth
+     * event when decoded
+     */
+    private LinkedHashMap<String,String> authExchange(GatewayEvent event,
+                                                      Merchant merchant,
+                                                      String transSequenceNumber,
+                                                      String cardNumber,
+                                                      String expiration,
+                                                      long amount,
+                                                      String request) throws Exception {
+        byte[] wire = getEvenParity(request);
+        ResponseBuffer response = transmitAuth(merchant,request,wire);
+        int size = response.length();
+        boolean reused = response.isReused();
+        LinkedHashMap<String,String> result = decodeAuth(merchant,
+                                                         transSequenceNumber,
+                                                         cardNumber,
+                                                         expiration,
+                                                         amount,
+                                                         response);
+        if(event!=null)
+            event.record(merchant,MIME[0],outcome(result),wire.length,size,reused);
+        return(result);
+    }
+
+    /**
+     * Auth encode stage, validate and build a request of an amount already
+     * converted by Amounts.cents
+     *
+     * @param amount Amount of charge in cents, -1 if not a valid amount
+     * @return String request without parity
+     * @throws ValidationException if the request fails local validation
+     * @throws Exception if the amount is invalid or request not proper length
+     */
+    String encodeAuth(Merchant merchant,
+                      String transSequenceNumber,
+                      String cardNumber,
+                      String expiration,
+                      String address,
+                      String zip,
+                      long amount) throws Exception {
+        if(validator!=null)
+            validator.check(merchant,transSequenceNumber,cardNumber,expiration,amount);
+        if(amount<0)
+            throw new Exception("Invalid amount");
+        return(authRequest(merchant,
+                           transSequenceNumber,
+                           cardNumber,
+                           expiration,
+                           address,
+                           zip,
+                           amount));
+    }
+
+    /**
+     * Auth transmit stage, admit and send a request
+     *
+     * @param request request without parity
+     * @param wire request with even parity
+     * @return ResponseBuffer with parity removed, must be released
+     * @throws AdmissionException if admission control rejects the request
+     * @throws IOException if an error occurs sending or receiving
+     */
+    ResponseBuffer transmitAuth(Merchant merchant,
+                                String request,
+                                byte[] wire) throws Exception {
+        if(admission!=null)
+            admission.admit(merchant);
+        return(exchange(request,wire,MIME[0]));
+    }
+
+    /**
+     * Auth check stage, local decline of a card hard declined recently
+     *
+     * @return LinkedHashMap<String,String> local decline, null to send
+     */
+    LinkedHashMap<String,String> cachedDecline(Merchant merchant,
+                                               String cardNumber,
+                                               String expiration) {
+        return(declineCache==null ? null : declineCache.check(merchant,cardNumber,expiration));
+    }
+
+    /**
+     * Auth decode stage, decode and release a response
+     *
+     * @param expiration Credit card expiration, for the decline cache
+     * @param amount Amount authorized in cents, for the archive
+     * @return LinkedHashMap<String,String> decoded response
+     */
+    LinkedHashMap<String,String> decodeAuth(Merchant merchant,
+                                            String transSequenceNumber,
+                                            String cardNumber,
+                                            String expiration,
+                                            long amount,
+                                            ResponseBuffer response) {
+        LinkedHashMap<String,String> result;
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.DECODE);
+        try {
+            result = decode(response.ascii());
+            if(event!=null)
+                event.record(merchant,MIME[0],outcome(result),0,response.length(),response.isReused());
+        } finally {
+            response.release();
+        }
+        if(analytics!=null)
+            analytics.recordAuth(merchant,cardNumber,result);
+        if(declineCache!=null)
+            declineCache.record(merchant,cardNumber,expiration,result);
+        archiveAuth(merchant,transSequenceNumber,cardNumber,amount,result);
+        return(result);
+    }
+
+    /**
+     * Archive an auth result, archive failures are logged not thrown
+     */
+    private void archiveAuth(Merchant merchant,
+                             String transSequenceNumber,
+                             String cardNumber,
+                             long amount,
+                             LinkedHashMap<String,String> result) {
+        if(archive!=null)
+            try {
+                archive.appendAuth(merchant,
+                                   transSequenceNumber,
+                                   cardNumber,
+                                   amount,
+                                   result,
+                                   System.currentTimeMillis());
+            } catch(IOException e) {
+                Logger.getLogger(Tsys.class.getName()).log(Level.WARNING,"Archive failed",e);
+            }
+    }
+
+    /**
+     * Archive a batch settle result, archive failures are logged not thrown
+     */
+    private void archiveSettle(Merchant merchant,
+                               String batchNumber,
+                               LinkedHashMap<String,String> result) {
+        if(archive!=null)
+            try {
+                archive.appendSettle(merchant,
+                                     batchNumber(batchNumber),
+                                     result,
+                                     System.currentTimeMillis());
+            } catch(IOException e) {
+                Logger.getLogger(Tsys.class.getName()).log(Level.WARNING,"Archive failed",e);
+            }
     }
     
     private String authRequest(Merchant merchant,
@@ -230,11 +640,222 @@ public class Tsys {
                                String expiration,
                                String address,
                                String zip,
-                               String amount) throws Exception {
+                               long amount) throws Exception {
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.ENCODE);
+        try {
+            String c = authContent(merchant,
+                                   '4',
+                                   transSequenceNumber,
+                                   cardNumber,
+                                   expiration,
+                                   address,
+                                   zip,
+                                   amount);
+            String r = STX+c+ETX+lrc(c+ETX);
+            if(event!=null)
+                event.record(merchant,MIME[0],GatewayEvents.OK,r.length(),0,false);
+            return(r);
+        } catch(Exception e) {
+            if(event!=null)
+                event.record(merchant,MIME[0],GatewayEvents.outcome(e),0,0,false);
+            throw e;
+        }
+    }
+
+    /**
+     * Authorize many credit cards in one Multiple Transaction message
+     *
+     * @param merchant Merchant account to use
+     * @param requests authorizations to send, transaction sequence numbers
+     *                 must be unique within the list
+     * @return LinkedHashMap<AuthRequest,LinkedHashMap<String,String>> of
+     *                                      each request to its authorization
+     *                                      or error response, in request
+     *                                      order. Requests failing local
+     *                                      validation get an error response
+     *                                      and are not sent, nor are cards
+     *                                      declined locally by the
+     *                                      HardDeclineCache. Requests the
+     *                                      gateway did not answer are absent.
+     * @throws AdmissionException if admission control rejects the message
+     * @throws Exception if any errors occur, request not proper length, issue
+     *                   with connection, etc.
+     */
+    public LinkedHashMap<AuthRequest,LinkedHashMap<String,String>> auth(Merchant merchant,
+                                                                        List<AuthRequest> requests)
+                                                                            throws Exception {
+        HashSet<String> sequences = new HashSet<>();
+        LinkedHashMap<AuthRequest,LinkedHashMap<String,String>> results = new LinkedHashMap<>();
+        List<AuthRequest> valid = new ArrayList<>(requests.size());
+        long[] amounts = new long[requests.size()];         // cents of each valid request
+        for(AuthRequest a : requests) {
+            if(!sequences.add(a.getTransSequenceNumber()))
+                throw new Exception("Duplicate Tran Sequence Number "+a.getTransSequenceNumber());
+            long cents = Amounts.cents(a.getAmount());
+            List<ValidationReason> reasons = validator==null ? null :
+                validator.validate(merchant,
+                                   a.getTransSequenceNumber(),
+                                   a.getCardNumber(),
+                                   a.getExpiration(),
+                                   cents);
+            LinkedHashMap<String,String> declined;
+            if(reasons!=null && !reasons.isEmpty())
+                results.put(a,validationError(reasons));
+            else if((declined=cachedDecline(merchant,a.getCardNumber(),a.getExpiration()))!=null)
+                results.put(a,declined);
+            else {
+                if(cents<0)
+                    throw new Exception("Invalid amount "+a.getAmount());
+                amounts[valid.size()] = cents;
+                valid.add(a);
+            }
+        }
+        requests = valid;
+        GatewayEvent encode = GatewayEvents.begin(GatewayEvents.Kind.ENCODE);
+        StringBuilder msg = new StringBuilder();
+        for(int i=0;i<requests.size();i++) {
+            AuthRequest a = requests.get(i);
+            String c = authContent(merchant,
+                                   '2',
+                                   a.getTransSequenceNumber(),
+                                   a.getCardNumber(),
+                                   a.getExpiration(),
+                                   a.getAddress(),
+                                   a.getZip(),
+                                   amounts[i]);
+            char etbx = i==requests.size()-1 ? ETX : ETB;
+            msg.append(STX).append(c).append(etbx).append(lrc(c+etbx));
+        }
+        if(encode!=null)
+            encode.record(merchant,MIME[0],GatewayEvents.OK,msg.length(),0,false);
+        if(requests.isEmpty())
+            return(results);
+        if(admission!=null)
+            admission.admit(merchant);
+        ResponseBuffer result = exchange(msg.toString(),MIME[0]);
+        GatewayEvent decode = GatewayEvents.begin(GatewayEvents.Kind.DECODE);
+        try {
+            CharSequence response = result.ascii();
+            if(ERROR_RESPONSE.matcher(response).matches()) {
+                LinkedHashMap<String,String> map = decode(response);
+                for(AuthRequest a : requests)
+                    results.put(a,map);
+                if(decode!=null)
+                    decode.record(merchant,MIME[0],outcome(map),msg.length(),result.length(),result.isReused());
+                return(results);
+            }
+            LinkedHashMap<String,LinkedHashMap<String,String>> answered = decodeAuthRecords(response);
+            if(decode!=null)
+                decode.record(merchant,MIME[0],GatewayEvents.OK,msg.length(),result.length(),result.isReused());
+            for(int i=0;i<requests.size();i++) {
+                AuthRequest a = requests.get(i);
+                if(answered.containsKey(a.getTransSequenceNumber())) {
+                    results.put(a,answered.get(a.getTransSequenceNumber()));
+                    if(analytics!=null)
+                        analytics.recordAuth(merchant,a.getCardNumber(),results.get(a));
+                    if(declineCache!=null)
+                        declineCache.record(merchant,a.getCardNumber(),a.getExpiration(),results.get(a));
+                    archiveAuth(merchant,
+                                a.getTransSequenceNumber(),
+                                a.getCardNumber(),
+                                amounts[i],
+                                results.get(a));
+                }
+            }
+        } finally {
+            result.release();
+        }
+        return(results);
+    }
+
+    /**
+     * Error response for a request that failed local validation, in the
+     * same Code/Text form as a gateway error response
+     */
+    private LinkedHashMap<String,String> validationError(List<ValidationReason> reasons) {
+        LinkedHashMap<String,String> map = new LinkedHashMap<>();
+        map.put(ERROR_RESPONSE_KEYS[0],reasons.get(0).name());
+        map.put(ERROR_RESPONSE_KEYS[1],ValidationException.message(reasons));
+        return(map);
+    }
+
+    /**
+     * Decode a Multiple Transaction authorization response
+     *
+     * @param response CharSequence view of the response
+     * @return LinkedHashMap<String,LinkedHashMap<String,String>> of each
+     *                                      Transaction Sequence Num to its
+     *                                      decoded response record
+     */
+    LinkedHashMap<String,LinkedHashMap<String,String>> decodeAuthRecords(CharSequence response) {
+        LinkedHashMap<String,LinkedHashMap<String,String>> records = new LinkedHashMap<>();
+        int start = 0;
+        while(start<response.length()) {
+            int end = start;
+            while(end<response.length() &&
+                  response.charAt(end)!=ETB &&
+                  response.charAt(end)!=ETX)
+                end++;
+            CharSequence record = response.subSequence(start,end);
+            start = end+2;                                  // skip ETB/ETX and LRC
+            // 14-17 Transaction Sequence Num, after STX
+            if(record.length()<18 || record.charAt(0)!=STX)
+                continue;
+            records.put(record.subSequence(14,18).toString(),decode(record));
+        }
+        return(records);
+    }
+
+    /**
+     * Authorize many credit cards using Multiple Transaction messages sized
+     * to meet a latency target
+     *
+     * @param merchant Merchant account to use
+     * @param requests authorizations to send, transaction sequence numbers
+     *                 must be unique within the list
+     * @param sizer AuthBatchSizer choosing the number of authorizations per
+     *              message, updated with the latency of each message
+     * @return LinkedHashMap<AuthRequest,LinkedHashMap<String,String>> of
+     *                                      each request to its authorization
+     *                                      or error response
+     * @throws AdmissionException if admission control rejects a message
+     * @throws Exception if any errors occur, request not proper length, issue
+     *                   with connection, etc.
+     */
+    public LinkedHashMap<AuthRequest,LinkedHashMap<String,String>> auth(Merchant merchant,
+                                                                        List<AuthRequest> requests,
+                                                                        AuthBatchSizer sizer)
+                                                                            throws Exception {
+        LinkedHashMap<AuthRequest,LinkedHashMap<String,String>> results = new LinkedHashMap<>();
+        int i = 0;
+        while(i<requests.size()) {
+            int n = Math.min(sizer.batchSize(),requests.size()-i);
+            long start = System.nanoTime();
+            results.putAll(auth(merchant,requests.subList(i,i+n)));
+            sizer.observe(n,System.nanoTime()-start);
+            i += n;
+        }
+        return(results);
+    }
+
+    /**
+     * D-Format authorization request contents without framing
+     */
+    private String authContent(Merchant merchant,
+                               char applicationType,
+                               String transSequenceNumber,
+                               String cardNumber,
+                               String expiration,
+                               String address,
+                               String zip,
+                               long amount) throws Exception {
+        if(amount<0 || amount>Amounts.MAX_AMOUNT)
+            throw new Exception("Amount "+amount+" out of range");
         //Byte Length Field: Content
-        StringBuilder c = new StringBuilder("D4.");         // 1     1    Record format: D
-                                                            // 2     1    Application Type: 4=Interleaved
-                                                            // 3     1    Message Delimiter: .
+        StringBuilder c = new StringBuilder("D");           // 1     1    Record format: D
+        c.append(applicationType);                          // 2     1    Application Type: 2=Multiple Transaction
+                                                            //                              4=Interleaved
+        c.append('.');                                      // 3     1    Message Delimiter: .
         c.append(merchant.getBin());                        // 4-9   6    Acquirer BIN
         c.append(merchant.getId());                         // 10-21 12   Merchant Number
         c.append(merchant.getStore());                      // 22-25 4    Store Number
@@ -268,8 +889,7 @@ public class Tsys {
             address = address.substring(0,28-zip.length());
         c.append(address).append(' ').append(zip);          // - 0-29 Address Verification Data
         c.append(FS).append(FS);                            // - 2 Field Separator
-        //String.format("%12s",amount.replace(".","")).replace(" ","0")
-        c.append(amount.replace(".",""));                   // - 1-12 Transaction Amount
+        c.append(amount);                                   // - 1-12 Transaction Amount in cents
         c.append(FS).append(FS).append(FS);                 // - 3 Field Separator
         c.append(String.format("%-25.15s",merchant.getName())); // - 25 Merchant Name Left-Justified/Space-Filled
         c.append(String.format("%-13.13s",merchant.getCity())); // - 13 Customer Service Phone Number NNN-NNNNNNN (dash is required)
@@ -304,7 +924,7 @@ public class Tsys {
                                                             //     Security transaction, such as a channel-encrypted
                                                             //     transaction (e.g., ssl, DES or RSA)
 //        c.append(GS);                            // - 2 Field Separator
-        return(STX+c.toString()+ETX+lrc(c.toString()+ETX));
+        return(c.toString());
     }
 
     /**
@@ -374,12 +994,17 @@ public class Tsys {
      * @param validationCode Validation Code 4.96
      * @param amount Amount of charge to be authorized
      * @param purchaseId Invoice number
-     * @param voidTrans boolean indicator to void transaction, true for void
+     * @param voidTrans boolean indicator to void transaction, true for void,
+     *                  to void a transaction not yet settled without its own
+     *                  batch use PendingTransactionStore.voidTransaction
      * @return LinkedHashMap<String,String> containing batch response status
      *                                      or error response if length is 2,
      *                                      there was an error otherwise use 
      *                                      AuthSettleKeys enum for key names
      *                                      to access values
+     * @throws ValidationException if merchant fields fail local validation
+     *                             or the card is not supported
+     * @throws AdmissionException if admission control rejects the request
      * @throws Exception if any errors occur, request not proper length, issue
      *                   with connection, etc.
      */
@@ -398,21 +1023,98 @@ public class Tsys {
                                                String purchaseId,
                                                boolean voidTrans)  
                                                         throws Exception {
-    String r = settleRequest(merchant,
-                             cardNumber,
-                             transSequenceNumber,
-                             batchNumber,
-                             aci,
-                             authSourceCode,
-                             responseCode,
-                             authCode,
-                             avsCode,
-                             transId,
-                             validationCode,
-                             amount,
-                             purchaseId,
-                             voidTrans);
-        return(submit(r,MIME[1]));
+        return(settle(merchant,
+                      cardNumber,
+                      transSequenceNumber,
+                      batchNumber,
+                      aci,
+                      authSourceCode,
+                      responseCode,
+                      authCode,
+                      avsCode,
+                      transId,
+                      validationCode,
+                      Amounts.parse(amount),
+                      purchaseId,
+                      voidTrans));
+    }
+
+    /**
+     * Settle a credit card authorization (single card batch)
+     *
+     * @param merchant Merchant account to use
+     * @param cardNumber Credit card number
+     * @param transSequenceNumber Transaction Sequence Num
+     * @param batchNumber Merchant specific batch number
+     * @param aci Returned ACI 4.73
+     * @param authSourceCode Authorization Source Code 4.12
+     * @param responseCode Response Code
+     * @param authCode Approval Code
+     * @param avsCode AVS Result Code 4.3
+     * @param transId Transaction Identifier 4.91
+     * @param validationCode Validation Code 4.96
+     * @param amount Amount to settle in cents
+     * @param purchaseId Invoice number
+     * @param voidTrans boolean indicator to void transaction, true for void,
+     *                  to void a transaction not yet settled without its own
+     *                  batch use PendingTransactionStore.voidTransaction
+     * @return LinkedHashMap<String,String> containing batch response status
+     *                                      or error response if length is 2
+     * @throws ValidationException if merchant fields fail local validation
+     *                             or the card is not supported
+     * @throws AdmissionException if admission control rejects the request
+     * @throws Exception if any errors occur, request not proper length, issue
+     *                   with connection, etc.
+     */
+    public LinkedHashMap<String,String> settle(Merchant merchant,
+                                               String cardNumber,
+                                               String transSequenceNumber,
+                                               String batchNumber,
+                                               String aci,
+                                               String authSourceCode,
+                                               String responseCode,
+                                               String authCode,
+                                               String avsCode,
+                                               String transId,
+                                               String validationCode,
+                                               long amount,
+                                               String purchaseId,
+                                               boolean voidTrans) throws Exception {
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.SETTLE);
+        try {
+            if(validator!=null)
+                validator.checkSettle(merchant,cardNumber);
+            GatewayEvent encode = GatewayEvents.begin(GatewayEvents.Kind.ENCODE);
+            String r = settleRequest(merchant,
+                                     cardNumber,
+                                     transSequenceNumber,
+                                     batchNumber,
+                                     aci,
+                                     authSourceCode,
+                                     responseCode,
+                                     authCode,
+                                     avsCode,
+                                     transId,
+                                     validationCode,
+                                     amount,
+                                     purchaseId,
+                                     voidTrans);
+            if(encode!=null)
+                encode.record(merchant,MIME[1],GatewayEvents.OK,r.length(),0,false);
+            if(admission!=null)
+                admission.admit(merchant);
+            LinkedHashMap<String,String> result = submit(event,merchant,r,MIME[1]);
+            if(analytics!=null)
+                analytics.recordSettle(merchant,result);
+            archiveSettle(merchant,batchNumber,result);
+            if(reconciler!=null)
+                reconciler.reconcile(merchant,batchNumber,1,voidTrans ? 0 : amount,result);
+            return(result);
+        } catch(Exception e) {
+            if(event!=null)
+                event.record(merchant,MIME[1],GatewayEvents.outcome(e),0,0,false);
+            throw e;
+        }
     }
 
     /**
@@ -431,7 +1133,7 @@ public class Tsys {
      * @param avsCode AVS Result Code 4.3
      * @param transId Transaction Identifier 4.91
      * @param validationCode Validation Code 4.96
-     * @param amount Amount of charge to be authorized
+     * @param amount Amount to settle in cents
      * @param purchaseId Invoice number
      * @param voidTrans boolean indicator to void transaction, true for void
      * @return String containing a K-Format 1081 settle request 
@@ -449,55 +1151,16 @@ public class Tsys {
                                  String avsCode,
                                  String transId,
                                  String validationCode,
-                                 String amount,
+                                 long amount,
                                  String purchaseId,
                                  boolean voidTrans) throws Exception {
-        /* K-Format Header Record (Base Group)
-         * Byte Length Frmt Field description Content Section
-         * Byte Length Field: Content (section)
-         */
-        StringBuilder h = new StringBuilder("K1.ZH@@@@");   // 1     1  A/N Record Format: K (4.154)
-                                                            // 2     1  NUM Application Type: 1=Single Batch (4.10)
-                                                            // 3     1  A/N Message Delimiter: . (4.123)
-                                                            // 4     1  A/N X.25 Routing ID: Z (4.226)
-                                                            // 5-9   5  A/N Record Type: H@@@@ (4.155)
-        h.append(merchant.getBin());                        // 10-15 6  NUM Acquirer BIN  (4.2)
-        h.append(merchant.getAgent());                      // 16-21 6  NUM Agent Bank Number (4.5)
-        h.append(merchant.getChain());                      // 22-27 6  NUM Agent Chain Number (4.6)
-        h.append(merchant.getId());                         // 28-39 12 NUM Merchant Number (4.121)
-        h.append(merchant.getStore());                      // 40-43 4  NUM Store Number (4.187)
-        h.append(merchant.getTerminal());                   // 44-47 4  NUM Terminal Number 9911 (4.195)
-        h.append(DEVICE_CODES[0]);                          // 48    1  A/N Device Code: Q="Third party software developer" (4.62)
-        h.append(merchant.getIndustryCode());               // 49    1  A/N Industry Code (4.94)
-        h.append(CURRENCY_CODES[0]);                        // 50-52 3  NUM Currency Code (4.52)
-        h.append(LANGUAGES[0]);                             // 53-54 2  NUM Language Indicator: 00=English (4.104)
-        h.append(TIME_ZONES[0]);                            // 55-57 3  NUM Time Zone Differential (4.200)
+        if(amount<0 || amount>Amounts.MAX_AMOUNT)
+            throw new Exception("Amount "+amount+" out of range");
         Date date = new Date();
-        h.append(new SimpleDateFormat("MMdd").format(date)); // 58-61 4  NUM Batch Transmission Date MMDD (4.22)
         String my_batchNumber = String.format("%3.3s",batchNumber).replace(" ","0");
-        h.append(my_batchNumber);                              // 62-64 3  NUM Batch Number 001 - 999 (4.18)
-        h.append('0');                                      // 65    1  NUM Blocking Indicator 0=Not Blocked (4.23)
-
         StringBuilder msg = new StringBuilder();
-        msg.append(separator("Header",h.toString(),65,ETB));
-
-        // K-Format Parameter Record (Base Group)
-        // Byte Length Frmt Field Description Content Section
-        StringBuilder p = new StringBuilder("K1.ZP@@@@");   // 1   1 A/N Record Format: K (4.154)
-                                                            // 2   1 NUM Application Type: 1=Single Batch (4.10)
-                                                            // 3   1 A/N Message Delimiter: . (4.123)
-                                                            // 4   1 A/N X.25 Routing ID: Z (4.226)
-                                                            // 5-9 5 A/N Record Type: P@@@@ (4.155)
-        p.append("840");                                    // 10-12 3 NUM Country Code 840 (4.47)
-        p.append(String.format("%-9.9s",merchant.getZip())); // 13-21 9 A/N City Code Left-Justified/Space-Filled (4.43)
-        p.append(merchant.getMcc());                        // 22-25 4 NUM Merchant Category Code (4.116)
-        p.append(String.format("%-25.25S",merchant.getName())); // 26-50 25 A/N Merchant Name Left-Justified/Space-Filled (4.27.1)
-        p.append(String.format("%-13.13S",merchant.getCity())); // 51-63 13 A/N Merchant City Left-Justified/Space-Filled (4.27.2)
-        p.append(String.format("%-2.2S",merchant.getState())); // 64-65 2 A/N Merchant State (4.27.3)
-        p.append("00001");                                  // 66-70 5 A/N Merchant Location Number 00001 (4.120)
-        p.append(merchant.getV());                          // 71-78 8 NUM V Number 00000001 (4.194)
-
-        msg.append(separator("Parameters",p.toString(),78,ETB));
+        msg.append(separator("Header",headerRecord(merchant,'1',date,my_batchNumber),65,ETB));
+        msg.append(separator("Parameters",parameterRecord(merchant,'1'),78,ETB));
 
         /* K-Format Detail Record (Electronic Commerce)
          * Byte Size Frmt Field Description Content Section
@@ -546,10 +1209,9 @@ public class Tsys {
         d.append("00");                                     // 82-83 2 NUM Transaction Status Code 00 (4.208)
         d.append('0');                                      // 84   1 A/N Reimbursement Attribute 0 (4.157)
         
-        String my_amount = String.format("%12.12s",amount.replace(".","")).replace(" ","0");
-        d.append(my_amount);                                // 85-96 12 NUM Settlement Amount Right-Justified/Zero-Filled (4.175)
-        d.append(my_amount);                                // 97-108 12 NUM Authorized Amount Right-Justified/Zero-Filled (4.14)
-        d.append(my_amount);                                // 109-120 12 NUM Total Authorized Amount Right-Justified/Zero-Filled (4.201)
+        Amounts.zeroPad(d,amount,12);                       // 85-96 12 NUM Settlement Amount Right-Justified/Zero-Filled (4.175)
+        Amounts.zeroPad(d,amount,12);                       // 97-108 12 NUM Authorized Amount Right-Justified/Zero-Filled (4.14)
+        Amounts.zeroPad(d,amount,12);                       // 109-120 12 NUM Total Authorized Amount Right-Justified/Zero-Filled (4.201)
         // d.append('1');
         d.append('0');                                      // 121   1 A/N Purchase Identifier Format Code 1 (4.150)
         d.append(String.format("%-25.25s",purchaseId));        // 122-146 25 A/N Purchase Identifier Left-Justified/Space-Filled (4.149)
@@ -561,24 +1223,356 @@ public class Tsys {
 
         msg.append(separator("Detail",d.toString(),151,ETB));
 
+        long total = voidTrans ? 0 : amount;                // a void is not deposited
+        msg.append(separator("Trailer",trailerRecord('1',date,my_batchNumber,4,total,total),73,ETX));
+
+        return(msg.toString());
+    }
+
+    /**
+     * Settle a merchant terminal's pending transactions in one batch
+     *
+     * @param store PendingTransactionStore of transactions to settle
+     * @param batchNumber Merchant specific batch number
+     * @return LinkedHashMap<String,String> containing batch response status
+     *                                      or error response if length is 2
+     * @throws ValidationException if merchant fields fail local validation
+     *                             or a card in the store is not supported
+     * @throws AdmissionException if admission control rejects the request
+     * @throws Exception if any errors occur, the store is empty, request not
+     *                   proper length, issue with connection, etc.
+     */
+    public LinkedHashMap<String,String> settle(PendingTransactionStore store,
+                                               String batchNumber) throws Exception {
+        Merchant merchant = store.getMerchant();
+        GatewayEvent event = GatewayEvents.begin(GatewayEvents.Kind.SETTLE);
+        try {
+            if(validator!=null)
+                validator.checkSettle(store);
+            GatewayEvent encode = GatewayEvents.begin(GatewayEvents.Kind.ENCODE);
+            long[] sent = new long[2];
+            String r = settleRequest(store,batchNumber,sent);
+            if(encode!=null)
+                encode.record(merchant,MIME[1],GatewayEvents.OK,r.length(),0,false);
+            if(admission!=null)
+                admission.admit(merchant);
+            LinkedHashMap<String,String> result = submit(event,merchant,r,MIME[1]);
+            if(analytics!=null)
+                analytics.recordSettle(merchant,result);
+            archiveSettle(merchant,batchNumber,result);
+            if(reconciler!=null)
+                reconciler.reconcile(merchant,batchNumber,sent[0],sent[1],result);
+            return(result);
+        } catch(Exception e) {
+            if(event!=null)
+                event.record(merchant,MIME[1],GatewayEvents.outcome(e),0,0,false);
+            throw e;
+        }
+    }
+
+    /**
+     * K-Format 1081 settle request of every transaction in a store
+     *
+     * @param sent set to the detail count and net deposit sent
+     */
+    private String settleRequest(PendingTransactionStore store,
+                                 String batchNumber,
+                                 long[] sent) throws Exception {
+        int n = store.detailCount();
+        if(n==0)
+            throw new Exception("No pending transactions to settle");
+        StringBuilder msg = new StringBuilder(n*160+300);
+        appendBatch(msg,store,batchNumber,'1',new Date(),ETX,sent);
+        return(msg.toString());
+    }
+
+    /**
+     * Settle many merchant terminals' batches in one Multiple Batch
+     * transmission
+     *
+     * @param batches SettleBatch of each merchant terminal to settle
+     * @return LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> of
+     *                                      each batch to its batch response
+     *                                      status or error response, in
+     *                                      batch order. Batches failing
+     *                                      local validation get an error
+     *                                      response and are not sent.
+     * @throws AdmissionException if admission control rejects a batch,
+     *                            nothing is sent and batches already
+     *                            admitted get their tokens back
+     * @throws Exception if any errors occur, a store is empty, request not
+     *                   proper length, issue with connection, the response
+     *                   does not answer every batch in order, etc.
+     */
+    public LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> settle(List<SettleBatch> batches)
+                                                                            throws Exception {
+        List<SettleBatch> all = batches;
+        LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> results = new LinkedHashMap<>();
+        List<SettleBatch> valid = new ArrayList<>(batches.size());
+        for(SettleBatch b : batches) {
+            if(b.getStore().detailCount()==0)
+                throw new Exception("No pending transactions to settle for merchant "+
+                                    b.getMerchant().getId()+" terminal "+
+                                    b.getMerchant().getTerminal());
+            if(validator!=null)
+                try {
+                    validator.checkSettle(b.getStore());
+                } catch(ValidationException e) {
+                    results.put(b,validationError(e.getReasons()));
+                    continue;
+                }
+            valid.add(b);
+        }
+        batches = valid;
+        if(batches.isEmpty())
+            return(inOrder(all,results));
+        GatewayEvent encode = GatewayEvents.begin(GatewayEvents.Kind.ENCODE);
+        Date date = new Date();
+        StringBuilder msg = new StringBuilder();
+        long[][] sent = new long[batches.size()][2];
+        for(int i=0;i<batches.size();i++) {
+            SettleBatch b = batches.get(i);
+            appendBatch(msg,
+                        b.getStore(),
+                        b.getBatchNumber(),
+                        '3',
+                        date,
+                        i==batches.size()-1 ? ETX : ETB,
+                        sent[i]);
+        }
+        if(encode!=null)
+            encode.record(null,MIME[1],GatewayEvents.OK,msg.length(),0,false);
+        if(admission!=null)
+            admit(batches);
+        ResponseBuffer result = exchange(msg.toString(),MIME[1]);
+        GatewayEvent decode = GatewayEvents.begin(GatewayEvents.Kind.DECODE);
+        try {
+            CharSequence response = result.ascii();
+            if(ERROR_RESPONSE.matcher(response).matches()) {
+                LinkedHashMap<String,String> map = decode(response);
+                for(SettleBatch b : batches)
+                    results.put(b,map);
+                if(decode!=null)
+                    decode.record(null,MIME[1],outcome(map),msg.length(),result.length(),result.isReused());
+                return(inOrder(all,results));
+            }
+            // Trailer responses follow batch order, match by position, the
+            // batch number only confirms it, never guess on a mismatch
+            List<LinkedHashMap<String,String>> records = decodeSettleRecords(response);
+            if(records.size()!=batches.size())
+                throw new Exception("Multiple Batch response has "+records.size()+
+                                    " batch responses for "+batches.size()+" batches");
+            for(int i=0;i<batches.size();i++) {
+                String number = records.get(i).get(SettleResponseKeys.Batch_Number.key());
+                if(!batchNumber(batches.get(i).getBatchNumber()).equals(number))
+                    throw new Exception("Multiple Batch response "+(i+1)+" is for batch "+
+                                        number+" not batch "+
+                                        batchNumber(batches.get(i).getBatchNumber()));
+            }
+            for(int i=0;i<batches.size();i++) {
+                SettleBatch b = batches.get(i);
+                LinkedHashMap<String,String> map = records.get(i);
+                results.put(b,map);
+                if(analytics!=null)
+                    analytics.recordSettle(b.getMerchant(),map);
+                archiveSettle(b.getMerchant(),b.getBatchNumber(),map);
+                if(reconciler!=null)
+                    reconciler.reconcile(b.getMerchant(),b.getBatchNumber(),sent[i][0],sent[i][1],map);
+            }
+            if(decode!=null)
+                decode.record(null,MIME[1],GatewayEvents.OK,msg.length(),result.length(),result.isReused());
+        } finally {
+            result.release();
+        }
+        return(inOrder(all,results));
+    }
+
+    /**
+     * Admit every batch of a Multiple Batch transmission, refunding the
+     * batches already admitted if one is rejected or interrupted
+     */
+    private void admit(List<SettleBatch> batches) throws AdmissionException,
+                                                         InterruptedException {
+        int admitted = 0;
+        try {
+            for(SettleBatch b : batches) {
+                admission.admit(b.getMerchant());
+                admitted++;
+            }
+        } finally {
+            if(admitted<batches.size())
+                for(int i=0;i<admitted;i++)
+                    admission.refund(batches.get(i).getMerchant());
+        }
+    }
+
+    /**
+     * Batch results in the order the batches were given
+     */
+    private LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> inOrder(List<SettleBatch> batches,
+                                                                            LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> results) {
+        LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> ordered = new LinkedHashMap<>();
+        for(SettleBatch b : batches)
+            if(results.containsKey(b))
+                ordered.put(b,results.get(b));
+        return(ordered);
+    }
+
+    /**
+     * Append a batch's header, parameter, detail and trailer records
+     *
+     * @param etbx ETX if the trailer ends the transmission, otherwise ETB
+     * @param sent set to the detail count and net deposit in the trailer
+     */
+    private void appendBatch(StringBuilder msg,
+                             PendingTransactionStore store,
+                             String batchNumber,
+                             char applicationType,
+                             Date date,
+                             char etbx,
+                             long[] sent) throws Exception {
+        Merchant merchant = store.getMerchant();
+        String batch = batchNumber(batchNumber);
+        msg.append(separator("Header",headerRecord(merchant,applicationType,date,batch),65,ETB));
+        msg.append(separator("Parameters",parameterRecord(merchant,applicationType),78,ETB));
+        StringBuilder d = new StringBuilder(151);
+        synchronized(store) {                               // voids must not change mid batch
+            int n = store.size();
+            for(int i=0;i<n;i++) {
+                if(store.isOmitted(i))
+                    continue;
+                d.setLength(0);
+                store.appendDetail(d,i,applicationType);
+                msg.append(separator("Detail",d.toString(),151,ETB));
+            }
+            long total = store.hashingTotal();
+            int details = store.detailCount();
+            msg.append(separator("Trailer",
+                                 trailerRecord(applicationType,date,batch,details+3,total,total),
+                                 73,
+                                 etbx));
+            sent[0] = details;
+            sent[1] = total;
+        }
+    }
+
+    /**
+     * @return String batch number zero filled to 3 digits
+     */
+    private static String batchNumber(String batchNumber) {
+        return(String.format("%3.3s",batchNumber).replace(" ","0"));
+    }
+
+    /**
+     * Decode a Multiple Batch settle response
+     *
+     * @param response CharSequence view of the response
+     * @return List<LinkedHashMap<String,String>> of each decoded trailer
+     *                                      response record, in response
+     *                                      order
+     */
+    List<LinkedHashMap<String,String>> decodeSettleRecords(CharSequence response) {
+        List<LinkedHashMap<String,String>> records = new ArrayList<>();
+        int start = 0;
+        while(start<response.length()) {
+            int end = start;
+            while(end<response.length() &&
+                  response.charAt(end)!=ETB &&
+                  response.charAt(end)!=ETX)
+                end++;
+            CharSequence record = response.subSequence(start,end);
+            start = end+2;                                  // skip ETB/ETX and LRC
+            if(record.length()<41 || record.charAt(0)!=STX)
+                continue;
+            LinkedHashMap<String,String> map = decode(record);
+            if(map.containsKey(SettleResponseKeys.Batch_Number.key()))
+                records.add(map);
+        }
+        return(records);
+    }
+
+    /**
+     * K-Format Header Record contents
+     */
+    private String headerRecord(Merchant merchant,
+                                char applicationType,
+                                Date date,
+                                String batchNumber) {
+        /* K-Format Header Record (Base Group)
+         * Byte Length Frmt Field description Content Section
+         * Byte Length Field: Content (section)
+         */
+        StringBuilder h = new StringBuilder("K");           // 1     1  A/N Record Format: K (4.154)
+        h.append(applicationType);                          // 2     1  NUM Application Type: 1=Single 3=Multiple Batch (4.10)
+        h.append(".ZH@@@@");                                // 3     1  A/N Message Delimiter: . (4.123)
+                                                            // 4     1  A/N X.25 Routing ID: Z (4.226)
+                                                            // 5-9   5  A/N Record Type: H@@@@ (4.155)
+        h.append(merchant.getBin());                        // 10-15 6  NUM Acquirer BIN  (4.2)
+        h.append(merchant.getAgent());                      // 16-21 6  NUM Agent Bank Number (4.5)
+        h.append(merchant.getChain());                      // 22-27 6  NUM Agent Chain Number (4.6)
+        h.append(merchant.getId());                         // 28-39 12 NUM Merchant Number (4.121)
+        h.append(merchant.getStore());                      // 40-43 4  NUM Store Number (4.187)
+        h.append(merchant.getTerminal());                   // 44-47 4  NUM Terminal Number 9911 (4.195)
+        h.append(DEVICE_CODES[0]);                          // 48    1  A/N Device Code: Q="Third party software developer" (4.62)
+        h.append(merchant.getIndustryCode());               // 49    1  A/N Industry Code (4.94)
+        h.append(CURRENCY_CODES[0]);                        // 50-52 3  NUM Currency Code (4.52)
+        h.append(LANGUAGES[0]);                             // 53-54 2  NUM Language Indicator: 00=English (4.104)
+        h.append(TIME_ZONES[0]);                            // 55-57 3  NUM Time Zone Differential (4.200)
+        h.append(new SimpleDateFormat("MMdd").format(date)); // 58-61 4  NUM Batch Transmission Date MMDD (4.22)
+        h.append(batchNumber);                              // 62-64 3  NUM Batch Number 001 - 999 (4.18)
+        h.append('0');                                      // 65    1  NUM Blocking Indicator 0=Not Blocked (4.23)
+        return(h.toString());
+    }
+
+    /**
+     * K-Format Parameter Record contents
+     */
+    private String parameterRecord(Merchant merchant, char applicationType) {
+        // K-Format Parameter Record (Base Group)
+        // Byte Length Frmt Field Description Content Section
+        StringBuilder p = new StringBuilder("K");           // 1   1 A/N Record Format: K (4.154)
+        p.append(applicationType);                          // 2   1 NUM Application Type: 1=Single 3=Multiple Batch (4.10)
+        p.append(".ZP@@@@");                                // 3   1 A/N Message Delimiter: . (4.123)
+                                                            // 4   1 A/N X.25 Routing ID: Z (4.226)
+                                                            // 5-9 5 A/N Record Type: P@@@@ (4.155)
+        p.append("840");                                    // 10-12 3 NUM Country Code 840 (4.47)
+        p.append(String.format("%-9.9s",merchant.getZip())); // 13-21 9 A/N City Code Left-Justified/Space-Filled (4.43)
+        p.append(merchant.getMcc());                        // 22-25 4 NUM Merchant Category Code (4.116)
+        p.append(String.format("%-25.25S",merchant.getName())); // 26-50 25 A/N Merchant Name Left-Justified/Space-Filled (4.27.1)
+        p.append(String.format("%-13.13S",merchant.getCity())); // 51-63 13 A/N Merchant City Left-Justified/Space-Filled (4.27.2)
+        p.append(String.format("%-2.2S",merchant.getState())); // 64-65 2 A/N Merchant State (4.27.3)
+        p.append("00001");                                  // 66-70 5 A/N Merchant Location Number 00001 (4.120)
+        p.append(merchant.getV());                          // 71-78 8 NUM V Number 00000001 (4.194)
+        return(p.toString());
+    }
+
+    /**
+     * K-Format Trailer Record contents
+     *
+     * @param count Batch Record Count, header, parameter, details and trailer
+     * @param hashingTotal Batch Hashing Total in cents
+     * @param netDeposit Batch Net Deposit in cents
+     */
+    private String trailerRecord(char applicationType,
+                                 Date date,
+                                 String batchNumber,
+                                 long count,
+                                 long hashingTotal,
+                                 long netDeposit) {
         // K-Format Trailer Record
         // Byte Length Frmt Field Description Content Section
-        StringBuilder t = new StringBuilder("K1.ZT@@@@");   // 1    1 A/N Record Format K (4.154)
-                                                            // 2    1 NUM Application Type 1=Single 3=Multiple Batch (4.10)
-                                                            // 3    1 A/N Message Delimiter . (4.123)
+        StringBuilder t = new StringBuilder("K");           // 1    1 A/N Record Format K (4.154)
+        t.append(applicationType);                          // 2    1 NUM Application Type 1=Single 3=Multiple Batch (4.10)
+        t.append(".ZT@@@@");                                // 3    1 A/N Message Delimiter . (4.123)
                                                             // 4    1 A/N X.25 Routing ID Z (4.226)
                                                             // 5-9  5 A/N Record Type T@@@@ (4.155)
         t.append(new SimpleDateFormat("MMdd").format(date)); // 10-13  4 NUM Batch Transmission Date MMDD (4.22)
-        t.append(my_batchNumber);                           // 14-16  3 NUM Batch Number 001 - 999 (4.18)
-        t.append(String.format("%9.9s","4").replace(" ","0")); // 17-25  9 NUM Batch Record Count Right-Justified/Zero-Filled (4.19)
-        my_amount = String.format("%16.16s",my_amount).replace(" ","0");
-        t.append(my_amount);                                // 26-41 16 NUM Batch Hashing Total Purchases + Returns (4.16)
+        t.append(batchNumber);                              // 14-16  3 NUM Batch Number 001 - 999 (4.18)
+        Amounts.zeroPad(t,count,9);                         // 17-25  9 NUM Batch Record Count Right-Justified/Zero-Filled (4.19)
+        Amounts.zeroPad(t,hashingTotal,16);                 // 26-41 16 NUM Batch Hashing Total Purchases + Returns (4.16)
         t.append("0000000000000000");                       // 42-57 16 NUM Cashback Total (4.38)
-        t.append(my_amount);                                // 58-73 16 NUM Batch Net Deposit Purchases - Returns (4.17)
-
-        msg.append(separator("Trailer",t.toString(),73,ETX));
-
-        return(msg.toString());
+        Amounts.zeroPad(t,netDeposit,16);                   // 58-73 16 NUM Batch Net Deposit Purchases - Returns (4.17)
+        return(t.toString());
     }
 
     /**
@@ -731,9 +1725,20 @@ public class Tsys {
      * @return byte[] with 8th parity it removed
      */
     public static byte[] removeParity(byte[] a) {
-        byte[] b = new byte[a.length];
-        for (int i = 0; i < a.length; i++)
-            b[i] = (byte)(a[i] & (byte)0x7f);
+        byte[] b = a.clone();
+        removeParity(b,0,b.length);
         return b;
     }
+
+    /**
+     * Remove parity bit in place, presently only 8th bit set to 0 if 1
+     *
+     * @param a byte[] with parity bit set, modified in place
+     * @param offset first byte to strip
+     * @param length number of bytes to strip
+     */
+    public static void removeParity(byte[] a, int offset, int length) {
+        for (int i = offset; i < offset+length; i++)
+            a[i] &= 0x7f;
+    }
 }
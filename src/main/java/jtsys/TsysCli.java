@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Command line front end for one off auths, settlements, voids and
+ * gateway health probes. Can be built as a native image for fast start.
+ *
+ * Usage: jtsys [options] command args...
+ *
+ * auth   merchant terminal seq card expiration address zip amount
+ * settle merchant terminal card seq batch aci authSource responseCode
+ *        authCode avsCode transId validationCode amount purchaseId
+ * void   same arguments as settle
+ * probe
+ *
+ * Options
+ *
+ * --merchants file  merchant config file, see MerchantRegistry, default
+ *                   $JTSYS_MERCHANTS
+ * --url url         gateway url, default TSYS
+ * --timing          print startup and transaction times to stderr
+ * --debug           log requests and responses
+ *
+ * Exit status 0 approved or accepted, 1 declined, rejected or error
+ * response, 2 usage, 3 failed.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class TsysCli {
+
+    private static final char ETX = 0x03;
+    private static final String AUTH_MIME = "x-Visa-II/x-auth";
+
+    private static final int OK = 0;
+    private static final int DECLINED = 1;
+    private static final int USAGE = 2;
+    private static final int FAILED = 3;
+
+    private String merchants = System.getenv("JTSYS_MERCHANTS");
+    private URL url;
+    private boolean timing;
+    private boolean debug;
+
+    public static void main(String[] args) {
+        long entered = System.currentTimeMillis();
+        System.exit(new TsysCli().run(args,entered));
+    }
+
+    int run(String[] args, long entered) {
+        List<String> a = new ArrayList<>();
+        try {
+            for(int i=0;i<args.length;i++)
+                switch(args[i]) {
+                    case "--merchants":
+                        merchants = args[++i];
+                        break;
+                    case "--url":
+                        url = new URL(args[++i]);
+                        break;
+                    case "--timing":
+                        timing = true;
+                        break;
+                    case "--debug":
+                        debug = true;
+                        break;
+                    default:
+                        a.add(args[i]);
+                }
+        } catch(Exception e) {
+            return(usage());
+        }
+        if(a.isEmpty())
+            return(usage());
+        String command = a.remove(0);
+        long start = System.nanoTime();
+        int status;
+        try (Transport transport = url==null ? new HttpsTransport() : new HttpsTransport(url)) {
+            Tsys tsys = new Tsys(debug,transport);
+            long ready = System.nanoTime();
+            switch(command) {
+                case "auth":
+                    if(a.size()!=8)
+                        return(usage());
+                    status = print(tsys.auth(merchant(a),
+                                             a.get(2),
+                                             a.get(3),
+                                             a.get(4),
+                                             a.get(5),
+                                             a.get(6),
+                                             a.get(7)),
+                                   AuthResponseKeys.Response_Code.key(),
+                                   "00","10","85");
+                    break;
+                case "settle":
+                case "void":
+                    if(a.size()!=14)
+                        return(usage());
+                    status = print(tsys.settle(merchant(a),
+                                               a.get(2),
+                                               a.get(3),
+                                               a.get(4),
+                                               a.get(5),
+                                               a.get(6),
+                                               a.get(7),
+                                               a.get(8),
+                                               a.get(9),
+                                               a.get(10),
+                                               a.get(11),
+                                               a.get(12),
+                                               a.get(13),
+                                               command.equals("void")),
+                                   SettleResponseKeys.Batch_Response_Text.key());
+                    break;
+                case "probe":
+                    status = probe(tsys,transport);
+                    break;
+                default:
+                    return(usage());
+            }
+            if(timing)
+                timing(entered,ready-start,System.nanoTime()-ready);
+        } catch(ValidationException e) {
+            System.err.println(e.getMessage());
+            return(DECLINED);
+        } catch(Exception e) {
+            System.err.println(e);
+            return(FAILED);
+        }
+        return(status);
+    }
+
+    private Merchant merchant(List<String> a) throws Exception {
+        if(merchants==null)
+            throw new Exception("No merchant config, use --merchants or set JTSYS_MERCHANTS");
+        Merchant m = new MerchantRegistry(Paths.get(merchants)).get(a.get(0),a.get(1));
+        if(m==null)
+            throw new Exception("Merchant "+a.get(0)+" terminal "+a.get(1)+" not found in "+merchants);
+        return(m);
+    }
+
+    /**
+     * Send a minimal request, any gateway response means it is reachable
+     */
+    private int probe(Tsys tsys, Transport transport) throws Exception {
+        String t = "D4.999995";
+        String r = tsys.separator("Probe",t,t.length(),ETX);
+        long start = System.nanoTime();
+        ResponseBuffer result = transport.exchange(AUTH_MIME,Tsys.getEvenParity(r));
+        try {
+            result.stripParity();
+            System.out.printf("%-25s : %s\n","Response",printable(result.ascii()));
+            System.out.printf("%-25s : %s\n","Cipher",result.getCipher());
+            System.out.printf("%-25s : %.1f ms\n","Round Trip",(System.nanoTime()-start)/1e6);
+            return(result.length()>0 ? OK : FAILED);
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * Print a response
+     *
+     * @param key key holding the result, absent on error
+     * @param ok values meaning success, none for any value
+     * @return int exit status
+     */
+    private static int print(LinkedHashMap<String,String> response,
+                             String key,
+                             String... ok) {
+        if(response.size()==2)
+            System.out.print("Error :\n");
+        response.forEach((k,v) -> System.out.printf("%-25s : %s\n",k,v));
+        String v = response.get(key);
+        if(v==null)
+            return(DECLINED);
+        for(String o : ok)
+            if(o.equals(v))
+                return(OK);
+        return(ok.length==0 ? OK : DECLINED);
+    }
+
+    private static String printable(CharSequence s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for(int i=0;i<s.length();i++) {
+            char c = s.charAt(i);
+            if(c<' ')
+                b.append(String.format("<%02x>",(int)c));
+            else
+                b.append(c);
+        }
+        return(b.toString());
+    }
+
+    /**
+     * Startup is from process start to main, not available in all
+     * runtimes
+     */
+    private static void timing(long entered, long initNanos, long transactionNanos) {
+        String startup;
+        try {
+            startup = String.valueOf(entered-ManagementFactory.getRuntimeMXBean().getStartTime());
+        } catch(Throwable e) {
+            startup = "n/a";
+        }
+        System.err.printf("timing startup-ms=%s init-ms=%.1f first-transaction-ms=%.1f\n",
+                          startup,
+                          initNanos/1e6,
+                          transactionNanos/1e6);
+    }
+
+    private static int usage() {
+        System.err.print("Usage: jtsys [--merchants file] [--url url] [--timing] [--debug] command args...\n"
+                       + "  auth   merchant terminal seq card expiration address zip amount\n"
+                       + "  settle merchant terminal card seq batch aci authSource responseCode\n"
+                       + "         authCode avsCode transId validationCode amount purchaseId\n"
+                       + "  void   same arguments as settle\n"
+                       + "  probe\n");
+        return(USAGE);
+    }
+}
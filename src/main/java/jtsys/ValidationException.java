@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when a request fails local validation, the request was never
+ * sent to the gateway
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class ValidationException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<ValidationReason> reasons;
+
+    public ValidationException(List<ValidationReason> reasons) {
+        super(message(reasons));
+        this.reasons = Collections.unmodifiableList(reasons);
+    }
+
+    /**
+     * @return List<ValidationReason> every reason validation failed
+     */
+    public List<ValidationReason> getReasons() {
+        return reasons;
+    }
+
+    static String message(List<ValidationReason> reasons) {
+        StringBuilder m = new StringBuilder();
+        for(ValidationReason r : reasons) {
+            if(m.length()>0)
+                m.append(", ");
+            m.append(r.value());
+        }
+        return(m.toString());
+    }
+}
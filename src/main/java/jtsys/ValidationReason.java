@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+/**
+ * Reasons a request fails local validation before being sent
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public enum ValidationReason {
+
+    CARD_NUMBER_FORMAT("Card number must be 13 - 19 digits"),
+    CARD_NUMBER_CHECK_DIGIT("Card number fails check digit"),
+    CARD_NOT_SUPPORTED("Card type not supported"),
+    EXPIRATION_FORMAT("Expiration must be MMYY"),
+    CARD_EXPIRED("Card is expired"),
+    AMOUNT_FORMAT("Amount must be cents or dollars and 2 digit cents"),
+    AMOUNT_ZERO("Amount must be greater than zero"),
+    TRANS_SEQUENCE_NUMBER("Transaction Sequence Number must be 4 digits"),
+    MERCHANT_BIN("Merchant Acquirer BIN must be 6 digits"),
+    MERCHANT_ID("Merchant Number must be 12 digits"),
+    MERCHANT_STORE("Merchant Store Number must be 4 digits"),
+    MERCHANT_TERMINAL("Merchant Terminal Number must be 4 digits"),
+    MERCHANT_AGENT("Merchant Agent Bank Number must be 6 digits"),
+    MERCHANT_CHAIN("Merchant Agent Chain Number must be 6 digits"),
+    MERCHANT_MCC("Merchant Category Code must be 4 digits"),
+    MERCHANT_V("Merchant V Number must be 8 digits"),
+    MERCHANT_INDUSTRY_CODE("Merchant Industry Code missing"),
+    MERCHANT_ZIP("Merchant City Code (Zip) must be 5 - 9 characters"),
+    MERCHANT_NAME("Merchant Name missing"),
+    MERCHANT_CITY("Merchant City missing"),
+    MERCHANT_STATE("Merchant State must be 2 characters");
+
+    private String value;
+
+    ValidationReason(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return this.value;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Opt-in capture of gateway traffic to rolling binary files, card numbers,
+ * expiration dates and address verification data are masked before
+ * anything is written. Captured files can be replayed
+ * with WireReplay.
+ *
+ * File layout, all numbers big endian
+ *
+ * magic "JTSYSCAP" version(short)
+ * record: time millis(long) duration nanos(long) mime(UTF)
+ *         request length(int) request bytes
+ *         response length(int) response bytes
+ *
+ * Requests and responses are stored as 7 bit ASCII without parity.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class WireCapture implements Closeable {
+
+    private static final byte[] MAGIC = "JTSYSCAP".getBytes(StandardCharsets.US_ASCII);
+    private static final short VERSION = 1;
+    private static final String PREFIX = "capture-";
+    private static final String SUFFIX = ".jcap";
+
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+    private static final byte ETB = 0x17;
+    private static final byte FS  = 0x1c;
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private DataOutputStream out;
+    private long written;
+    private int sequence;
+
+    /**
+     * Create a capture writing rolling files into a directory
+     *
+     * @param directory Path to write capture files in, created if missing
+     * @param maxFileBytes size at which a new file is started
+     * @param maxFiles number of capture files to keep, oldest removed first
+     * @throws IOException if the directory cannot be created
+     */
+    public WireCapture(Path directory,
+                       long maxFileBytes,
+                       int maxFiles) throws IOException {
+        if(maxFileBytes<=0 || maxFiles<1)
+            throw new IllegalArgumentException("maxFileBytes and maxFiles must be positive");
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Record a request/response pair
+     *
+     * @param mime Content-Type of the request
+     * @param request request as sent without parity
+     * @param response response bytes without parity, may be null
+     * @param responseLength number of response bytes
+     * @param time wall clock time request was started in millis
+     * @param nanos time taken for the exchange in nanoseconds
+     * @throws IOException if the capture file cannot be written
+     */
+    public synchronized void record(String mime,
+                                    String request,
+                                    byte[] response,
+                                    int responseLength,
+                                    long time,
+                                    long nanos) throws IOException {
+        byte[] req = request.getBytes(StandardCharsets.US_ASCII);
+        mask(req);
+        if(out==null || written>=maxFileBytes)
+            roll();
+        int before = out.size();
+        out.writeLong(time);
+        out.writeLong(nanos);
+        out.writeUTF(mime);
+        out.writeInt(req.length);
+        out.write(req);
+        if(response==null)
+            responseLength = 0;
+        out.writeInt(responseLength);
+        if(responseLength>0)
+            out.write(response,0,responseLength);
+        out.flush();
+        written += out.size()-before;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(out!=null)
+            out.close();
+        out = null;
+    }
+
+    private void roll() throws IOException {
+        close();
+        Path file = directory.resolve(String.format("%s%d-%04d%s",
+                                                    PREFIX,
+                                                    System.currentTimeMillis(),
+                                                    sequence++ % 10000,
+                                                    SUFFIX));
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        written = out.size();
+        List<Path> files = files(directory);
+        for(int i=0;i<files.size()-maxFiles;i++)
+            Files.deleteIfExists(files.get(i));
+    }
+
+    /**
+     * Capture files in a directory, oldest first
+     *
+     * @param directory Path containing capture files
+     * @return List<Path> of capture files
+     * @throws IOException if the directory cannot be read
+     */
+    public static List<Path> files(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory,PREFIX+"*"+SUFFIX)) {
+            for(Path p : ds)
+                files.add(p);
+        }
+        Collections.sort(files);
+        return(files);
+    }
+
+    /**
+     * Mask card numbers in every D-Format authorization and K-Format
+     * detail record, keeps first 6 and last 4 digits. Expiration dates and
+     * address verification data in authorizations are masked entirely.
+     * Lengths are kept and LRC is recalculated so records remain valid for
+     * replay
+     *
+     * @param b request bytes without parity
+     */
+    static void mask(byte[] b) {
+        int i = 0;
+        while(i<b.length) {
+            if(b[i]!=STX) {
+                i++;
+                continue;
+            }
+            int start = i+1;
+            int end = start;
+            while(end<b.length && b[end]!=ETX && b[end]!=ETB)
+                end++;
+            if(end-start>64 && b[start]=='D') {
+                int pan = start+64;                         // Acct# follows fixed 64 bytes
+                int fs = next(b,pan,end);
+                maskDigits(b,pan,fs);
+                int exp = fs+1;                             // ExpDate<FS><FS>AVS data<FS>
+                fs = next(b,exp,end);
+                maskAll(b,exp,fs);
+                int avs = fs+2;
+                if(avs<end)
+                    maskAll(b,avs,next(b,avs,end));
+            } else if(end-start>=35 && b[start]=='K' && b[start+4]=='D')
+                maskDigits(b,start+13,start+35);            // 14-35 Cardholder Account Number
+            if(end<b.length-1) {
+                byte lrc = 0;
+                for(int j=start;j<=end;j++)
+                    lrc ^= b[j];
+                b[end+1] = lrc;
+            }
+            i = end+2;
+        }
+    }
+
+    /**
+     * @return int index of the next field separator, end if none
+     */
+    private static int next(byte[] b, int from, int end) {
+        while(from<end && b[from]!=FS)
+            from++;
+        return(from);
+    }
+
+    private static void maskAll(byte[] b, int from, int to) {
+        for(int i=from;i<to;i++)
+            if(b[i]!=' ')
+                b[i] = '*';
+    }
+
+    private static void maskDigits(byte[] b, int from, int to) {
+        int digits = 0;
+        for(int i=from;i<to;i++)
+            if(b[i]>='0' && b[i]<='9')
+                digits++;
+        int n = 0;
+        for(int i=from;i<to;i++)
+            if(b[i]>='0' && b[i]<='9') {
+                if(n>=6 && n<digits-4)
+                    b[i] = '*';
+                n++;
+            }
+    }
+
+    /**
+     * Captured request/response pair
+     */
+    public static final class Record {
+
+        private final long time;
+        private final long nanos;
+        private final String mime;
+        private final byte[] request;
+        private final byte[] response;
+
+        private Record(long time,
+                       long nanos,
+                       String mime,
+                       byte[] request,
+                       byte[] response) {
+            this.time = time;
+            this.nanos = nanos;
+            this.mime = mime;
+            this.request = request;
+            this.response = response;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        public byte[] getRequest() {
+            return request;
+        }
+
+        public byte[] getResponse() {
+            return response;
+        }
+    }
+
+    /**
+     * Sequential reader of a capture file
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+
+        public Reader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+                short version = in.readShort();
+                if(!Arrays.equals(magic,MAGIC) || version!=VERSION)
+                    throw new IOException(file+" is not a capture file");
+            } catch(IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return Record next record or null at end of file
+         * @throws IOException if the file cannot be read or is truncated
+         */
+        public Record next() throws IOException {
+            long time;
+            try {
+                time = in.readLong();
+            } catch(EOFException e) {
+                return(null);
+            }
+            long nanos = in.readLong();
+            String mime = in.readUTF();
+            byte[] request = new byte[in.readInt()];
+            in.readFully(request);
+            byte[] response = new byte[in.readInt()];
+            in.readFully(response);
+            return(new Record(time,nanos,mime,request,response));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline replay of traffic captured by WireCapture
+ *
+ * Responses can be run through the response decoders as fast as possible,
+ * requests can be sent to a local gateway stand-in at the captured rate
+ * or a multiple of it.
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class WireReplay {
+
+    /**
+     * Replay results
+     */
+    public static final class Stats {
+
+        private long records;
+        private long matched;
+        private long failed;
+        private long bytes;
+        private long nanos;
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return long responses decoded or requests answered
+         */
+        public long getMatched() {
+            return matched;
+        }
+
+        /**
+         * @return long responses not decoded or requests that failed
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double secs = nanos/1e9;
+            return(String.format("Records      : %d\n"
+                               + "Matched      : %d\n"
+                               + "Failed       : %d\n"
+                               + "Bytes        : %d\n"
+                               + "Time         : %.3f s\n"
+                               + "Rate         : %.0f records/s\n",
+                                 records,
+                                 matched,
+                                 failed,
+                                 bytes,
+                                 secs,
+                                 secs>0 ? records/secs : 0));
+        }
+    }
+
+    private final Tsys tsys = new Tsys();
+
+    /**
+     * Decode every captured response as fast as possible
+     *
+     * @param files capture files to read
+     * @return Stats with the number of responses decoded
+     * @throws IOException if a capture file cannot be read
+     */
+    public Stats decode(List<Path> files) throws IOException {
+        Stats s = new Stats();
+        long start = System.nanoTime();
+        for(Path f : files)
+            try (WireCapture.Reader r = new WireCapture.Reader(f)) {
+                WireCapture.Record rec;
+                while((rec = r.next()) != null) {
+                    byte[] b = rec.getResponse();
+                    s.records++;
+                    s.bytes += b.length;
+                    if(tsys.decode(new AsciiSequence(b,0,b.length)).isEmpty())
+                        s.failed++;
+                    else
+                        s.matched++;
+                }
+            }
+        s.nanos = System.nanoTime()-start;
+        return(s);
+    }
+
+    /**
+     * Send every captured request to a gateway stand-in
+     *
+     * @param files capture files to read
+     * @param target URL of the gateway stand-in
+     * @param speed multiple of the captured rate, 1 for the captured rate,
+     *              0 to send as fast as possible
+     * @return Stats with the number of requests answered
+     * @throws IOException if a capture file cannot be read
+     * @throws InterruptedException if interrupted while pacing requests
+     */
+    public Stats replay(List<Path> files,
+                        URL target,
+                        double speed) throws IOException,
+                                             InterruptedException {
+        if(speed<0)
+            throw new IllegalArgumentException("speed must be >= 0");
+        Stats s = new Stats();
+        long start = System.nanoTime();
+        long first = -1;
+        for(Path f : files)
+            try (WireCapture.Reader r = new WireCapture.Reader(f)) {
+                WireCapture.Record rec;
+                while((rec = r.next()) != null) {
+                    if(first<0)
+                        first = rec.getTime();
+                    if(speed>0) {
+                        long due = start+(long)(TimeUnit.MILLISECONDS.toNanos(rec.getTime()-first)/speed);
+                        long wait = due-System.nanoTime();
+                        if(wait>0)
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    s.records++;
+                    s.bytes += rec.getRequest().length;
+                    try {
+                        send(target,rec);
+                        s.matched++;
+                    } catch(IOException e) {
+                        s.failed++;
+                    }
+                }
+            }
+        s.nanos = System.nanoTime()-start;
+        return(s);
+    }
+
+    private void send(URL target, WireCapture.Record rec) throws IOException {
+        byte[] b = Tsys.getEvenParity(new String(rec.getRequest(),StandardCharsets.US_ASCII));
+        HttpURLConnection con = (HttpURLConnection)target.openConnection();
+        con.setRequestMethod("POST");
+        con.setDoOutput(true);
+        con.setUseCaches(false);
+        con.setRequestProperty("Content-Type",rec.getMime());
+        con.setFixedLengthStreamingMode(b.length);
+        try (OutputStream os = con.getOutputStream()) {
+            os.write(b);
+        }
+        try (InputStream is = con.getInputStream()) {
+            ResponseBuffer.read(is,con.getContentLength()).release();
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Command line replay
+     *
+     * decode <capture file or directory>...
+     * replay <url> <speed> <capture file or directory>...
+     *
+     * @param args command line arguments
+     * @throws Exception if replay fails
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length<2 ||
+           (args[0].equals("replay") && args.length<4) ||
+           !(args[0].equals("decode") || args[0].equals("replay"))) {
+            System.err.print("Usage: WireReplay decode <capture>...\n"
+                           + "       WireReplay replay <url> <speed> <capture>...\n");
+            System.exit(1);
+        }
+        WireReplay replay = new WireReplay();
+        Stats s;
+        if(args[0].equals("decode"))
+            s = replay.decode(paths(args,1));
+        else
+            s = replay.replay(paths(args,3),new URL(args[1]),Double.parseDouble(args[2]));
+        System.out.print(s);
+    }
+
+    private static List<Path> paths(String[] args, int from) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for(int i=from;i<args.length;i++) {
+            Path p = Paths.get(args[i]);
+            if(Files.isDirectory(p))
+                files.addAll(WireCapture.files(p));
+            else
+                files.add(p);
+        }
+        return(files);
+    }
+}
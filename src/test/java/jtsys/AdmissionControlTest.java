@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * AdmissionControl terminal and global token buckets
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AdmissionControlTest {
+
+    @Test
+    public void rejectsTerminalOverBurst() throws Exception {
+        AdmissionControl a = new AdmissionControl(1,3,1000,1000,0,TimeUnit.MILLISECONDS);
+        for(int i=0;i<3;i++)
+            assertTrue(a.tryAdmit(merchant("9911")));
+        assertFalse(a.tryAdmit(merchant("9911")));
+        try {
+            a.admit(merchant("9911"));
+            fail("admitted over burst");
+        } catch(AdmissionException e) {
+            assertTrue(e.getMessage(),e.getMessage().contains("9911"));
+        }
+        assertTrue(a.tryAdmit(merchant("9912")));
+        assertEquals(4,a.getAdmitted());
+        assertEquals(2,a.getRejected());
+        assertEquals(2,a.getRejected(merchant("9911")));
+        assertEquals(0,a.getRejected(merchant("9912")));
+        assertEquals(0,a.getRejected(merchant("9999")));
+        assertEquals(0,a.getGlobalRejected());
+    }
+
+    @Test
+    public void rejectsOverGlobalBurst() {
+        AdmissionControl a = new AdmissionControl(1000,1000,1,2,0,TimeUnit.MILLISECONDS);
+        assertTrue(a.tryAdmit(merchant("9911")));
+        assertTrue(a.tryAdmit(merchant("9912")));
+        assertFalse(a.tryAdmit(merchant("9913")));
+        assertEquals(1,a.getGlobalRejected());
+        assertEquals(0,a.getRejected(merchant("9913")));
+    }
+
+    @Test
+    public void waitsForTokenWithinDeadline() throws Exception {
+        AdmissionControl a = new AdmissionControl(20,1,1000,1000,500,TimeUnit.MILLISECONDS);
+        a.admit(merchant("9911"));
+        long start = System.nanoTime();
+        a.admit(merchant("9911"));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+        assertTrue("waited "+waited+"ms",waited>=30);
+        assertEquals(1,a.getDelayed());
+        assertTrue(a.getWaitNanos()>0);
+        assertEquals(0,a.getQueueDepth());
+    }
+
+    @Test
+    public void countsQueuedRequests() throws Exception {
+        AdmissionControl a = new AdmissionControl(10,1,1000,1000,2,TimeUnit.SECONDS);
+        List<Thread> threads = new ArrayList<>();
+        for(int i=0;i<4;i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    a.admit(merchant("9911"));
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t : threads)
+            t.join();
+        assertEquals(4,a.getAdmitted());
+        assertEquals(3,a.getDelayed());
+        assertTrue(a.getMaxQueueDepth()>=1);
+        assertEquals(0,a.getQueueDepth());
+    }
+
+    @Test
+    public void refundsTokenWhenInterrupted() throws Exception {
+        AdmissionControl a = new AdmissionControl(2,1,1000,1000,10,TimeUnit.SECONDS);
+        a.admit(merchant("9911"));
+        Thread.currentThread().interrupt();
+        try {
+            a.admit(merchant("9911"));
+            fail("not interrupted");
+        } catch(InterruptedException e) {
+            // expected
+        }
+        long start = System.nanoTime();
+        a.admit(merchant("9911"));                          // next token, not the one after
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+        assertTrue("waited "+waited+"ms",waited<800);
+        assertEquals(2,a.getAdmitted());
+    }
+
+    private static Merchant merchant(String terminal) {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setTerminal(terminal);
+        return(m);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Amounts conversion, formatting, totals and zero filled fields
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AmountsTest {
+
+    @Test
+    public void convertsCents() {
+        assertEquals(0,Amounts.cents("0"));
+        assertEquals(0,Amounts.cents("0.00"));
+        assertEquals(1,Amounts.cents("0.01"));
+        assertEquals(100,Amounts.cents("100"));
+        assertEquals(100,Amounts.cents("1.00"));
+        assertEquals(100,Amounts.cents("001.00"));
+        assertEquals(123456,Amounts.cents(new StringBuilder("1234.56")));
+    }
+
+    @Test
+    public void convertsLimits() {
+        assertEquals(Amounts.MAX_AMOUNT,Amounts.cents("999999999999"));
+        assertEquals(Amounts.MAX_AMOUNT,Amounts.cents("9999999999.99"));
+        assertEquals(-1,Amounts.cents("1000000000000"));
+        assertEquals(-1,Amounts.cents("10000000000.00"));
+        assertEquals(-1,Amounts.cents("99999999999999999999999"));
+    }
+
+    @Test
+    public void rejectsInvalidAmounts() {
+        for(String s : new String[] { null, "", ".", ".50", "1.", "1.5", "1.000", "1.0.0",
+                                      "-1", "+1", "1,00", "1.0a", " 1", "1 ", "1e2" })
+            assertEquals("amount "+s,-1,Amounts.cents(s));
+    }
+
+    @Test
+    public void parseThrowsOnInvalidAmount() throws Exception {
+        assertEquals(150,Amounts.parse("1.50"));
+        try {
+            Amounts.parse("1.5");
+            fail("parsed 1.5");
+        } catch(Exception e) {
+            assertEquals("Invalid amount 1.5",e.getMessage());
+        }
+    }
+
+    @Test
+    public void formatsCents() {
+        assertEquals("0.00",Amounts.format(0));
+        assertEquals("0.05",Amounts.format(5));
+        assertEquals("1234.56",Amounts.format(123456));
+        assertEquals("-1.50",Amounts.format(-150));
+    }
+
+    @Test
+    public void addsTotalsWithinSixteenDigits() {
+        assertEquals(Amounts.MAX_TOTAL,Amounts.addTotal(Amounts.MAX_TOTAL-1,1));
+        assertEquals(-Amounts.MAX_TOTAL,Amounts.addTotal(-Amounts.MAX_TOTAL+1,-1));
+        try {
+            Amounts.addTotal(Amounts.MAX_TOTAL,1);
+            fail("total exceeded 16 digits");
+        } catch(ArithmeticException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void zeroPadsFields() {
+        StringBuilder b = new StringBuilder("A");
+        Amounts.zeroPad(b,42,4);
+        Amounts.zeroPad(b,0,2);
+        assertEquals("A004200",b.toString());
+        try {
+            Amounts.zeroPad(b,12345,4);
+            fail("5 digits in a 4 digit field");
+        } catch(ArithmeticException e) {
+            assertEquals("A004200",b.toString());
+        }
+        try {
+            Amounts.zeroPad(b,-1,4);
+            fail("negative value in a numeric field");
+        } catch(ArithmeticException e) {
+            assertEquals("A004200",b.toString());
+        }
+    }
+}
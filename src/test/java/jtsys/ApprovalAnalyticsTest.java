@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * ApprovalAnalytics key slots
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class ApprovalAnalyticsTest {
+
+    @Test
+    public void countsKeysBeyondCapacityAsOther() {
+        ApprovalAnalytics a = new ApprovalAnalytics(4,60000,2);
+        a.recordAuth(merchant(),"4111110000000000",result("00"));
+        a.recordAuth(merchant(),"5222220000000000",result("05"));
+        a.recordAuth(merchant(),"6333330000000000",result("05"));
+        a.recordAuth(merchant(),"6444440000000000",result("05"));
+        Map<String,long[]> bins = a.snapshot().get(ApprovalAnalytics.Dimension.BIN);
+        assertEquals(3,bins.size());
+        assertEquals(1,bins.get("411111")[ApprovalAnalytics.Counter.APPROVED.ordinal()]);
+        assertEquals(1,bins.get("522222")[ApprovalAnalytics.Counter.DECLINED.ordinal()]);
+        assertEquals(2,bins.get(ApprovalAnalytics.OTHER)[ApprovalAnalytics.Counter.DECLINED.ordinal()]);
+    }
+
+    @Test
+    public void reusesSlotsOfKeysIdleForTheWindow() throws Exception {
+        ApprovalAnalytics a = new ApprovalAnalytics(2,20,2);
+        a.recordAuth(merchant(),"4111110000000000",result("00"));
+        a.recordAuth(merchant(),"5222220000000000",result("00"));
+        Thread.sleep(100);
+        a.recordAuth(merchant(),"6333330000000000",result("05"));
+        a.recordAuth(merchant(),"6444440000000000",result("05"));
+        Map<String,long[]> bins = a.snapshot().get(ApprovalAnalytics.Dimension.BIN);
+        assertTrue(bins.containsKey("633333"));
+        assertTrue(bins.containsKey("644444"));
+        assertFalse(bins.containsKey(ApprovalAnalytics.OTHER));
+        assertFalse(bins.containsKey("411111"));
+    }
+
+    private static Map<String,String> result(String code) {
+        Map<String,String> r = new HashMap<>();
+        r.put(AuthResponseKeys.Response_Code.key(),code);
+        return(r);
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setTerminal("0001");
+        return(m);
+    }
+}
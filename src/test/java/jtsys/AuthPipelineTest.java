@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * AuthPipeline results, decode failures and idle threads
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AuthPipelineTest {
+
+    private static final char STX = 0x02;
+    private static final char ETX = 0x03;
+
+    @Test
+    public void completesAuthorizations() throws Exception {
+        Results r = run(new Tsys(false,transport(approval())),4);
+        assertEquals(4,r.completed.size());
+        assertEquals(0,r.failed.size());
+        for(LinkedHashMap<String,String> m : r.completed.values())
+            assertEquals("00",m.get(AuthResponseKeys.Response_Code.key()));
+    }
+
+    @Test
+    public void passesDecodeFailuresToFailed() throws Exception {
+        Tsys tsys = new Tsys(false,transport(approval()));
+        tsys.setAnalytics(new ApprovalAnalytics(1,1000,1) {
+            @Override
+            public void recordAuth(Merchant merchant,
+                                   String cardNumber,
+                                   Map<String,String> result) {
+                throw new IllegalStateException("decode failed");
+            }
+        });
+        Results r = run(tsys,3);
+        assertEquals(0,r.completed.size());
+        assertEquals(3,r.failed.size());
+        for(Exception e : r.failed.values())
+            assertTrue(e instanceof IllegalStateException);
+    }
+
+    @Test
+    public void failsInvalidAmount() throws Exception {
+        Results r = new Results(1);
+        try (AuthPipeline p = new AuthPipeline(new Tsys(false,transport(approval())),16,1,1,1)) {
+            p.submit(merchant(),
+                     new AuthRequest("0001","4012888888881881","1230","8320","85284","1.5"),
+                     r);
+            assertTrue(r.done.await(5,TimeUnit.SECONDS));
+        }
+        assertEquals(0,r.completed.size());
+        assertEquals("Invalid amount",r.failed.values().iterator().next().getMessage());
+    }
+
+    @Test
+    public void closeEndsWhenStageThreadDies() throws Exception {
+        CountDownLatch called = new CountDownLatch(1);
+        AuthPipeline p = new AuthPipeline(new Tsys(false,transport(approval())),16,1,1,1);
+        AuthPipeline.Callback dies = new AuthPipeline.Callback() {
+            @Override
+            public void completed(AuthRequest request, LinkedHashMap<String,String> response) {
+                called.countDown();
+                throw new Error("decode thread dies");
+            }
+
+            @Override
+            public void failed(AuthRequest request, Exception e) {
+                called.countDown();
+            }
+        };
+        p.submit(merchant(),new AuthRequest("0001","4012888888881881","1230","8320","85284","1.00"),dies);
+        assertTrue(called.await(5,TimeUnit.SECONDS));
+        p.submit(merchant(),new AuthRequest("0002","4012888888881881","1230","8320","85284","1.00"),dies);
+        long start = System.nanoTime();
+        assertFalse(p.close(30,TimeUnit.SECONDS));
+        assertTrue(System.nanoTime()-start<TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1,p.inFlight());
+    }
+
+    @Test
+    public void idleThreadsSleep() throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        try (AuthPipeline p = new AuthPipeline(new Tsys(false,transport(approval())),16,1,4,4)) {
+            Thread.sleep(100);
+            long before = pipelineCpu(mx);
+            Thread.sleep(500);
+            long used = pipelineCpu(mx)-before;
+            assertEquals(0,p.inFlight());
+            assertTrue("idle pipeline used "+used/1000000+"ms CPU",
+                       used<TimeUnit.MILLISECONDS.toNanos(50));
+        }
+    }
+
+    private static long pipelineCpu(ThreadMXBean mx) {
+        long cpu = 0;
+        for(Thread t : Thread.getAllStackTraces().keySet())
+            if(t.getName().startsWith("jtsys-auth-"))
+                cpu += mx.getThreadCpuTime(t.getId());
+        return(cpu);
+    }
+
+    private static Results run(Tsys tsys, int n) throws Exception {
+        Results r = new Results(n);
+        try (AuthPipeline p = new AuthPipeline(tsys,16,1,2,2)) {
+            for(int i=0;i<n;i++)
+                p.submit(merchant(),
+                         new AuthRequest(String.format("%04d",i+1),
+                                         "4012888888881881",
+                                         "1230",
+                                         "8320",
+                                         "85284",
+                                         "1.00"),
+                         r);
+            assertTrue(r.done.await(5,TimeUnit.SECONDS));
+        }
+        return(r);
+    }
+
+    private static Transport transport(byte[] response) {
+        return(new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                return(ResponseBuffer.wrap(response,0,response.length));
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    private static byte[] approval() {
+        String c = "E4.A00119911"+"5"+"0001"+"00"+"123456"+"101926"+"120000"+"APPROVAL        "+
+                   "Y"+"123456789012"+"A"+"012345678901234"+"\u001cABCD\u001c014";
+        char lrc = 0;
+        for(char ch : (c+ETX).toCharArray())
+            lrc ^= ch;
+        return(Tsys.getEvenParity(STX+c+ETX+lrc));
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+
+    private static final class Results implements AuthPipeline.Callback {
+
+        private final Map<AuthRequest,LinkedHashMap<String,String>> completed = new ConcurrentHashMap<>();
+        private final Map<AuthRequest,Exception> failed = new ConcurrentHashMap<>();
+        private final CountDownLatch done;
+
+        private Results(int n) {
+            done = new CountDownLatch(n);
+        }
+
+        @Override
+        public void completed(AuthRequest request, LinkedHashMap<String,String> response) {
+            completed.put(request,response);
+            done.countDown();
+        }
+
+        @Override
+        public void failed(AuthRequest request, Exception e) {
+            failed.put(request,e);
+            done.countDown();
+        }
+    }
+}
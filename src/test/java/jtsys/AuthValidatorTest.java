@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * AuthValidator amount checks
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class AuthValidatorTest {
+
+    private final AuthValidator validator =
+        new AuthValidator(Clock.fixed(Instant.parse("2026-10-19T00:00:00Z"),ZoneOffset.UTC));
+
+    @Test
+    public void allowsZeroAmountVerification() {
+        assertTrue(validator.validate(merchant(),"0001","4012888888881881","1230",0).isEmpty());
+        assertTrue(validator.validate(merchant(),"0001","4012888888881881","1230","0.00").isEmpty());
+    }
+
+    @Test
+    public void rejectsZeroAmountWhenEnabled() {
+        validator.setRejectZeroAmount(true);
+        assertEquals(Collections.singletonList(ValidationReason.AMOUNT_ZERO),
+                     validator.validate(merchant(),"0001","4012888888881881","1230",0));
+    }
+
+    @Test
+    public void readsAmountsWithoutDecimalPointAsCents() {
+        assertEquals(100,Amounts.cents("100"));
+        assertEquals(100,Amounts.cents("1.00"));
+        assertEquals(-1,Amounts.cents("1.5"));
+        assertEquals(Collections.singletonList(ValidationReason.AMOUNT_FORMAT),
+                     validator.validate(merchant(),"0001","4012888888881881","1230","1.5"));
+    }
+
+    @Test
+    public void tsysValidatesOnlyWhenSet() throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                sent.incrementAndGet();
+                byte[] b = approval();
+                return(ResponseBuffer.wrap(b,0,b.length));
+            }
+
+            @Override
+            public void close() {}
+        });
+        tsys.auth(merchant(),"0001","4012888888881881","0218","8320","85284","1.00");
+        assertEquals(1,sent.get());
+        tsys.setValidator(validator);
+        try {
+            tsys.auth(merchant(),"0002","4012888888881881","0218","8320","85284","1.00");
+            fail("expired card sent");
+        } catch(ValidationException e) {
+            assertEquals(1,sent.get());
+        }
+    }
+
+    private static byte[] approval() {
+        String c = "E4.A00119911"+"5"+"0001"+"00"+"123456"+"101926"+"120000"+"APPROVAL        "+
+                   "Y"+"123456789012"+"A"+"012345678901234"+"\u001cABCD\u001c014";
+        char lrc = 0;
+        for(char ch : (c+(char)0x03).toCharArray())
+            lrc ^= ch;
+        return(Tsys.getEvenParity((char)0x02+c+(char)0x03+lrc));
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
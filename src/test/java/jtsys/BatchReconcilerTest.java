@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * BatchReconciler against the totals Tsys sends
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class BatchReconcilerTest {
+
+    private static final char STX = 0x02;
+    private static final char ETX = 0x03;
+
+    private final List<BatchReconciler.Discrepancy> found = new ArrayList<>();
+
+    @Test
+    public void voidedDetailsCountAsRecordsNotDeposit() {
+        BatchReconciler r = reconciler();
+        r.add(merchant(),"1",1000,false);
+        r.add(merchant(),"001",250,true);
+        assertEquals(1,r.openBatches());
+        assertTrue(r.reconcile(merchant(),"001",response(5,1000)));
+        r.add(merchant(),"002",1000,false);
+        r.add(merchant(),"002",250,true);
+        assertTrue(!r.reconcile(merchant(),"002",response(5,1250)));
+        assertEquals(1,found.size());
+        assertEquals(BatchReconciler.Kind.NET_DEPOSIT,found.get(0).getKind());
+        assertEquals(0,r.openBatches());
+    }
+
+    @Test
+    public void reconcilesSingleCardVoid() throws Exception {
+        Tsys tsys = tsys();
+        tsys.settle(merchant(),"4012888888881881","0001","001","Y","5","00","123456","Y",
+                    "000000000000000","ABCD",1000,"INV1",true);
+        assertTrue(found.toString(),found.isEmpty());
+    }
+
+    @Test
+    public void reconcilesStoreWithVoids() throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(),4,false);
+        s.add("4012888888881881","0001","Y","5","00","123456","Y",
+              "000000000000000","ABCD",1000,"INV1",System.currentTimeMillis());
+        s.add("4012888888881881","0002","Y","5","00","123457","Y",
+              "000000000000000","ABCD",250,"INV2",System.currentTimeMillis());
+        s.add("4012888888881881","0003","Y","5","00","123458","Y",
+              "000000000000000","ABCD",175,"INV3",System.currentTimeMillis());
+        s.voidTransaction("0002",false);
+        s.voidTransaction("0003",true);
+        tsys().settle(s,"002");
+        assertTrue(found.toString(),found.isEmpty());
+    }
+
+    @Test
+    public void reconcilesJournal() throws Exception {
+        BatchReconciler r = reconciler();
+        String journal = "# day\n"
+                       + "D|999999999911|9911|001|1000|0\n"
+                       + "D|999999999911|9911|001|250|1\n"
+                       + "D|999999999911|9912|001|500|0\n"
+                       + "R|999999999911|9911|001|5|1000|GB\n"
+                       + "R|999999999911|9912|001|4|600|GB\n"
+                       + "D|999999999911|9913|001|500|0\n";
+        assertEquals(1,r.reconcile(new StringReader(journal)));
+        assertEquals(2,found.size());
+        assertEquals(BatchReconciler.Kind.NET_DEPOSIT,found.get(0).getKind());
+        assertEquals(BatchReconciler.Kind.NO_RESPONSE,found.get(1).getKind());
+        assertEquals("9913",found.get(1).getTerminal());
+    }
+
+    private BatchReconciler reconciler() {
+        BatchReconciler r = new BatchReconciler();
+        r.addListener(found::add);
+        return(r);
+    }
+
+    /**
+     * Tsys whose stand-in gateway accepts a batch with the totals from its
+     * trailer
+     */
+    private Tsys tsys() {
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                String r = new String(Tsys.removeParity(request),StandardCharsets.US_ASCII);
+                int t = r.indexOf(".ZT@@@@")+7;
+                long count = Long.parseLong(r.substring(t+7,t+16));
+                long net = Long.parseLong(r.substring(t+48,t+64));
+                byte[] b = Tsys.getEvenParity(frame(response(count,net,r.substring(t+4,t+7))));
+                return(ResponseBuffer.wrap(b,0,b.length));
+            }
+
+            @Override
+            public void close() {}
+        });
+        tsys.setReconciler(reconciler());
+        return(tsys);
+    }
+
+    private static LinkedHashMap<String,String> response(long count, long net) {
+        LinkedHashMap<String,String> m = new LinkedHashMap<>();
+        m.put(SettleResponseKeys.Batch_Record_Count.key(),String.format("%09d",count));
+        m.put(SettleResponseKeys.Batch_Net_Deposit.key(),String.format("%016d",net));
+        return(m);
+    }
+
+    private static String response(long count, long net, String batch) {
+        return(String.format("K1.ZR@@@@%09d%016dGB00%s ACCEPTED                ",count,net,batch));
+    }
+
+    private static String frame(String record) {
+        char lrc = ETX;
+        for(int i=0;i<record.length();i++)
+            lrc ^= record.charAt(i);
+        return(STX+record+ETX+lrc);
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
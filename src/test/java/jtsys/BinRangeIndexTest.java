@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * BinRangeIndex lookups and unsupported cards refused before settling
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class BinRangeIndexTest {
+
+    private static final char STX = 0x02;
+    private static final char ETX = 0x03;
+
+    private static final String SUPPORTED = "4012888888881881";
+    private static final String UNSUPPORTED = "4111111111111111";
+
+    private Path file;
+
+    @After
+    public void delete() throws Exception {
+        if(file!=null)
+            Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void narrowestRangeWins() throws Exception {
+        BinRangeIndex bins = BinRangeIndex.load(table());
+        assertEquals(4,bins.size());
+        assertEquals(CardBrands.V,bins.brand(SUPPORTED));
+        assertEquals(CardTypes.C,bins.type(SUPPORTED));
+        assertTrue(bins.isSupported(SUPPORTED));
+        assertEquals(CardBrands.V,bins.brand(UNSUPPORTED));
+        assertEquals(CardTypes.P,bins.type(UNSUPPORTED));
+        assertFalse(bins.isSupported(UNSUPPORTED));
+        assertEquals(CardBrands.V,bins.brand("4111121111111111"));
+        assertEquals(CardBrands.M,bins.brand("5500000000000004"));
+    }
+
+    @Test
+    public void cardsInNoRange() throws Exception {
+        assertNull(BinRangeIndex.load(table()).brand("6011000990139424"));
+        assertTrue(BinRangeIndex.load(table()).isSupported("6011000990139424"));
+        assertFalse(BinRangeIndex.load(table(),false).isSupported("6011000990139424"));
+        assertNull(BinRangeIndex.load(table()).brand("4X11111111111111"));
+        assertNull(BinRangeIndex.load(table()).brand(""));
+    }
+
+    @Test
+    public void shortNumbersArePadded() throws Exception {
+        BinRangeIndex bins = BinRangeIndex.load(table());
+        assertEquals(CardTypes.C,bins.type("41111"));
+        assertEquals(CardTypes.P,bins.type("411111"));
+    }
+
+    @Test
+    public void rejectsPartialOverlap() throws Exception {
+        try {
+            BinRangeIndex.load(write("4|42|V|C|Y\n41|5|M|C|Y\n"));
+            fail("overlapping ranges loaded");
+        } catch(Exception e) {
+            assertTrue(e.getMessage(),e.getMessage().contains("overlaps"));
+        }
+    }
+
+    @Test
+    public void refusesUnsupportedCardBeforeSending() throws Exception {
+        List<String> sent = new ArrayList<>();
+        Tsys tsys = tsys(sent,"001");
+        try {
+            tsys.settle(store("9911",UNSUPPORTED),"001");
+            fail("unsupported card settled");
+        } catch(ValidationException e) {
+            assertEquals(Collections.singletonList(ValidationReason.CARD_NOT_SUPPORTED),
+                         e.getReasons());
+        }
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void leavesOutMultipleBatchWithUnsupportedCard() throws Exception {
+        List<String> sent = new ArrayList<>();
+        SettleBatch refused = new SettleBatch(store("0001",UNSUPPORTED),"001");
+        SettleBatch accepted = new SettleBatch(store("0002",SUPPORTED),"002");
+        LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> results =
+            tsys(sent,"002").settle(Arrays.asList(refused,accepted));
+        assertEquals(ValidationReason.CARD_NOT_SUPPORTED.name(),
+                     results.get(refused).values().iterator().next());
+        assertEquals("002",results.get(accepted).get(SettleResponseKeys.Batch_Number.key()));
+        assertEquals(1,sent.size());
+        assertFalse(sent.get(0).contains(UNSUPPORTED));
+    }
+
+    private Tsys tsys(List<String> sent, String batchNumber) throws Exception {
+        byte[] response = response(batchNumber);
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                sent.add(new String(Tsys.removeParity(request),StandardCharsets.US_ASCII));
+                return(ResponseBuffer.wrap(response,0,response.length));
+            }
+
+            @Override
+            public void close() {}
+        });
+        AuthValidator validator = new AuthValidator();
+        validator.setBinIndex(BinRangeIndex.load(table()));
+        tsys.setValidator(validator);
+        return(tsys);
+    }
+
+    private Path table() throws Exception {
+        if(file==null)
+            write("# low|high|brand|type|supported\n"+
+                  "4|4|V|C|Y\n"+
+                  "411111|411111|V|P|N\n"+
+                  "\n"+
+                  "5|5|M|C|Y\n");
+        return(file);
+    }
+
+    private Path write(String table) throws Exception {
+        if(file!=null)
+            Files.deleteIfExists(file);
+        file = Files.createTempFile("jtsys-bins",".txt");
+        Files.write(file,table.getBytes(StandardCharsets.UTF_8));
+        return(file);
+    }
+
+    private static PendingTransactionStore store(String terminal, String card) throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(terminal),4,false);
+        s.add(SUPPORTED,"0001","Y","5","00","123456","Y",
+              "000000000000000","ABCD",1000,"INV1",System.currentTimeMillis());
+        s.add(card,"0002","Y","5","00","123457","Y",
+              "000000000000001","ABCD",500,"INV2",System.currentTimeMillis());
+        return(s);
+    }
+
+    /**
+     * Trailer response of one batch, either application type
+     */
+    private static byte[] response(String batchNumber) {
+        String record = STX+"K3.ZR@@@@0000000050000000000001500GB00"+batchNumber+
+                        " ACCEPTED                "+ETX;
+        char lrc = 0;
+        for(int i=1;i<record.length();i++)
+            lrc ^= record.charAt(i);
+        return(Tsys.getEvenParity(record+lrc));
+    }
+
+    private static Merchant merchant(String terminal) {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal(terminal);
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
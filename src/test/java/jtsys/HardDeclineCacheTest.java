@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * HardDeclineCache card wide and merchant specific declines
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class HardDeclineCacheTest {
+
+    private static final String CARD = "4111111111111111";
+    private static final String EXP = "1230";
+
+    @Test
+    public void cardDeclinesApplyToEveryMerchant() {
+        HardDeclineCache c = new HardDeclineCache(16,1,TimeUnit.HOURS);
+        c.record(merchant("999999999911"),CARD,EXP,response("43"));
+        assertNotNull(c.check(merchant("999999999911"),CARD,EXP));
+        assertNotNull(c.check(merchant("999999999922"),CARD,EXP));
+    }
+
+    @Test
+    public void merchantDeclinesApplyToThatMerchant() {
+        HardDeclineCache c = new HardDeclineCache(16,1,TimeUnit.HOURS);
+        for(String code : HardDeclineCache.DEFAULT_MERCHANT_CODES) {
+            c.invalidateAll();
+            c.record(merchant("999999999911"),CARD,EXP,response(code));
+            LinkedHashMap<String,String> d = c.check(merchant("999999999911"),CARD,EXP);
+            assertNotNull(d);
+            assertEquals(code,d.get(AuthResponseKeys.Response_Code.key()));
+            assertNull(c.check(merchant("999999999922"),CARD,EXP));
+        }
+    }
+
+    @Test
+    public void approvalForgetsMerchantDecline() {
+        HardDeclineCache c = new HardDeclineCache(16,1,TimeUnit.HOURS);
+        c.record(merchant("999999999911"),CARD,EXP,response("R1"));
+        c.record(merchant("999999999922"),CARD,EXP,response("R1"));
+        c.record(merchant("999999999911"),CARD,EXP,response("00"));
+        assertNull(c.check(merchant("999999999911"),CARD,EXP));
+        assertNotNull(c.check(merchant("999999999922"),CARD,EXP));
+    }
+
+    @Test
+    public void invalidateForgetsEveryMerchant() {
+        HardDeclineCache c = new HardDeclineCache(16,1,TimeUnit.HOURS);
+        c.record(merchant("999999999911"),CARD,EXP,response("R1"));
+        c.record(merchant("999999999922"),CARD,EXP,response("57"));
+        c.record(merchant("999999999911"),"4000000000000002",EXP,response("R1"));
+        assertTrue(c.invalidate(CARD,EXP));
+        assertEquals(2,c.getInvalidated());
+        assertEquals(1,c.size());
+        assertNull(c.check(merchant("999999999911"),CARD,EXP));
+        assertNull(c.check(merchant("999999999922"),CARD,EXP));
+    }
+
+    private static LinkedHashMap<String,String> response(String code) {
+        LinkedHashMap<String,String> r = new LinkedHashMap<>();
+        r.put(AuthResponseKeys.Response_Code.key(),code);
+        r.put(AuthResponseKeys.Auth_Response_Text.key(),"DECLINED");
+        return(r);
+    }
+
+    private static Merchant merchant(String id) {
+        Merchant m = new Merchant();
+        m.setId(id);
+        m.setTerminal("9911");
+        return(m);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * MerchantRegistry lookups and reloads
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class MerchantRegistryTest {
+
+    private Path file;
+
+    @Before
+    public void create() throws Exception {
+        file = Files.createTempFile("jtsys-merchants",".conf");
+        write("Gloucester","Gloucester");
+    }
+
+    @After
+    public void delete() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void returnsSameReadOnlyMerchant() throws Exception {
+        MerchantRegistry r = new MerchantRegistry(file);
+        assertEquals(2,r.size());
+        Merchant m = r.get("999999999911","9911");
+        assertSame(m,r.get("999999999911","9911"));
+        assertEquals("0011",m.getStore());
+        assertEquals('D',m.getIndustryCode());
+        assertSame(m.getAgent(),r.get("999999999911","9912").getAgent());
+        assertSame(m.getCity(),r.get("999999999911","9912").getCity());
+        assertNull(r.get("999999999911","0000"));
+        try {
+            m.setZip("12345");
+            fail("registered merchant modified");
+        } catch(UnsupportedOperationException e) {
+            // read only
+        }
+        Merchant copy = new Merchant(m);
+        copy.setZip("12345");
+        assertEquals("12345",copy.getZip());
+        assertEquals("543211420",m.getZip());
+    }
+
+    @Test
+    public void keepsValidationOfRegisteredMerchant() throws Exception {
+        Merchant m = new MerchantRegistry(file).get("999999999911","9911");
+        assertTrue(new AuthValidator().validate(m,"0001","4012888888881881","1230",100L).isEmpty());
+        ValidationReason[] validated = m.getValidated();
+        assertNotNull(validated);
+        new AuthValidator().validate(m,"0002","4012888888881881","1230",100L);
+        assertSame(validated,m.getValidated());
+    }
+
+    @Test
+    public void reloadsAtomicallyWhenModified() throws Exception {
+        MerchantRegistry r = new MerchantRegistry(file);
+        Merchant before = r.get("999999999911","9911");
+        assertTrue(!r.reloadIfModified());
+        write("Richmond","Norfolk");
+        Files.setLastModifiedTime(file,FileTime.fromMillis(System.currentTimeMillis()+60000));
+        assertTrue(r.reloadIfModified());
+        Merchant after = r.get("999999999911","9911");
+        assertNotSame(before,after);
+        assertEquals("Gloucester",before.getCity());
+        assertEquals("Richmond",after.getCity());
+        assertEquals("Norfolk",r.get("999999999911","9912").getCity());
+    }
+
+    @Test
+    public void keepsSnapshotWhenReloadFails() throws Exception {
+        MerchantRegistry r = new MerchantRegistry(file);
+        Files.write(file,"999999999911|0011|9911|999995\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            r.reload();
+            fail("invalid config loaded");
+        } catch(Exception e) {
+            assertTrue(e.getMessage(),e.getMessage().contains("fields"));
+        }
+        assertEquals(2,r.size());
+        assertEquals("Gloucester",r.get("999999999911","9911").getCity());
+    }
+
+    private void write(String city1, String city2) throws Exception {
+        String line = "999999999911|0011|%s|999995|000000|000000|5999|D|"+
+                      "Internet Service Provider|%s|VA|543211420|5555551212|00000001\n";
+        Files.write(file,("# merchants\n"+
+                          String.format(line,"9911",city1)+
+                          String.format(line,"9912",city2)).getBytes(StandardCharsets.UTF_8));
+    }
+}
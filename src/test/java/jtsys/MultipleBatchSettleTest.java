@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Multiple Batch (K3) responses matched to batches by position
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class MultipleBatchSettleTest {
+
+    private static final char STX = 0x02;
+    private static final char ETX = 0x03;
+    private static final char ETB = 0x17;
+
+    @Test
+    public void matchesResponsesByPosition() throws Exception {
+        List<SettleBatch> batches = batches();
+        LinkedHashMap<SettleBatch,LinkedHashMap<String,String>> results =
+            tsys(response("001","002")).settle(batches);
+        assertEquals(2,results.size());
+        for(int i=0;i<batches.size();i++)
+            assertEquals(batches.get(i).getBatchNumber(),
+                         results.get(batches.get(i)).get(SettleResponseKeys.Batch_Number.key()));
+    }
+
+    @Test
+    public void failsOnBatchNumberMismatch() throws Exception {
+        settleFails(response("002","001"),"is for batch");
+    }
+
+    @Test
+    public void failsOnMissingResponse() throws Exception {
+        settleFails(response("001"),"1 batch responses for 2 batches");
+    }
+
+    @Test
+    public void refundsAdmittedBatchesWhenOneIsRejected() throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                sent.incrementAndGet();
+                byte[] b = response("001","002");
+                return(ResponseBuffer.wrap(b,0,b.length));
+            }
+
+            @Override
+            public void close() {}
+        });
+        AdmissionControl admission = new AdmissionControl(0.001,1,1000,100,0,TimeUnit.SECONDS);
+        tsys.setAdmissionControl(admission);
+        List<SettleBatch> sameTerminal = Arrays.asList(new SettleBatch(store("0001"),"001"),
+                                                       new SettleBatch(store("0001"),"002"));
+        try {
+            tsys.settle(sameTerminal);
+            fail("second batch admitted over the terminal burst");
+        } catch(AdmissionException e) {
+            assertEquals(0,sent.get());
+        }
+        assertEquals(0,admission.getAdmitted());
+        assertTrue(admission.tryAdmit(merchant("0001")));
+    }
+
+    private void settleFails(byte[] response, String message) throws Exception {
+        try {
+            tsys(response).settle(batches());
+            fail("settle did not fail");
+        } catch(Exception e) {
+            assertTrue(e.getMessage(),e.getMessage().contains(message));
+        }
+    }
+
+    private static Tsys tsys(byte[] response) {
+        return(new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                return(ResponseBuffer.wrap(response,0,response.length));
+            }
+
+            @Override
+            public void close() {}
+        }));
+    }
+
+    private static List<SettleBatch> batches() throws Exception {
+        return(Arrays.asList(new SettleBatch(store("0001"),"001"),
+                             new SettleBatch(store("0002"),"002")));
+    }
+
+    private static PendingTransactionStore store(String terminal) throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(terminal),4,false);
+        s.add("4111111111111111","0001","Y","5","00","123456","Y",
+              "000000000000000","ABCD",1000,"INV1",System.currentTimeMillis());
+        return(s);
+    }
+
+    /**
+     * Trailer responses for the given batch numbers, in order
+     */
+    private static byte[] response(String... numbers) {
+        StringBuilder r = new StringBuilder();
+        for(int i=0;i<numbers.length;i++) {
+            String record = STX+"K3.ZR@@@@0000000050000000000000030GB00"+numbers[i]+
+                            " ACCEPTED                "+(i==numbers.length-1 ? ETX : ETB);
+            char lrc = 0;
+            for(int j=1;j<record.length();j++)
+                lrc ^= record.charAt(j);
+            r.append(record).append(lrc);
+        }
+        return(Tsys.getEvenParity(r.toString()));
+    }
+
+    private static Merchant merchant(String terminal) {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal(terminal);
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * PendingTransactionStore columns, on and off heap, Detail Records, voids
+ * and trailer totals
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class PendingTransactionStoreTest {
+
+    @Test
+    public void readsBackFields() throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(),4,false);
+        assertEquals(0,add(s,"0007",1234));
+        assertEquals(1,s.size());
+        assertEquals(1234,s.getAmount(0));
+        assertEquals(1234,s.getAuthorizedAmount(0));
+        assertEquals("0007",s.getTransSequenceNumber(0));
+        assertEquals("123456",s.getApprovalCode(0));
+        assertEquals("012345678901234",s.getTransactionIdentifier(0));
+        assertEquals("4012888888881881",s.getCardNumber(0));
+    }
+
+    @Test
+    public void appendsDetailRecordFields() throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(),4,false);
+        add(s,"0007",1234);
+        String d = detail(s,0);
+        assertEquals(151,d.length());
+        assertEquals("K1.ZD@@`D56N@",d.substring(0,13));
+        assertEquals("4012888888881881      ",d.substring(13,35));
+        assertEquals("YA5",d.substring(35,38));
+        assertEquals("0007",d.substring(38,42));
+        assertEquals("00123456",d.substring(42,50));
+        assertEquals("1019123456",d.substring(50,60));
+        assertEquals("Y012345678901234ABCD",d.substring(60,80));
+        assertEquals(' ',d.charAt(80));
+        assertEquals("000000001234000000001234000000001234",d.substring(84,120));
+        assertEquals("INV7",d.substring(121,146).trim());
+    }
+
+    @Test
+    public void offHeapColumnsMatchHeap() throws Exception {
+        PendingTransactionStore heap = new PendingTransactionStore(merchant(),1,false);
+        PendingTransactionStore direct = new PendingTransactionStore(merchant(),1,true);
+        for(int i=1;i<=40;i++) {                            // grows past the initial 16
+            add(heap,String.format("%04d",i),i*100);
+            add(direct,String.format("%04d",i),i*100);
+        }
+        assertEquals(40,direct.size());
+        for(int i=0;i<40;i++) {
+            assertEquals(detail(heap,i),detail(direct,i));
+            assertEquals("4012888888881881",direct.getCardNumber(i));
+        }
+    }
+
+    @Test
+    public void addsFromAuthResponse() throws Exception {
+        Map<String,String> auth = new LinkedHashMap<>();
+        auth.put(AuthResponseKeys.ACI.key(),"A");
+        auth.put(AuthResponseKeys.Auth_Source_Code.key(),"5");
+        auth.put(AuthResponseKeys.Response_Code.key(),"00");
+        auth.put(AuthResponseKeys.Approval_Code.key(),"654321");
+        auth.put(AuthResponseKeys.AVS_Result_Code.key(),"Y");
+        auth.put(AuthResponseKeys.Transaction_Identifier.key(),"");
+        auth.put(AuthResponseKeys.Validation_Code.key(),"ABCD");
+        PendingTransactionStore s = new PendingTransactionStore(merchant(),4,true);
+        s.add("4012888888881881","0001",500,"INV1",auth);
+        assertEquals("654321",s.getApprovalCode(0));
+        assertEquals("000000000000000",s.getTransactionIdentifier(0));
+        try {
+            s.add("4012888888881881","0002",500,"INV2",new LinkedHashMap<>());
+            fail("error response added");
+        } catch(Exception e) {
+            assertTrue(e.getMessage(),e.getMessage().contains("error response"));
+        }
+        assertEquals(1,s.size());
+    }
+
+    @Test
+    public void rejectsInvalidFields() throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(),4,false);
+        rejects(s,"40128888888818810000000","0001",100);
+        rejects(s,"4012888888881881","10000",100);
+        rejects(s,"4012888888881881","A001",100);
+        rejects(s,"4012888888881881","0001",-1);
+        rejects(s,"4012888888881881","0001",Amounts.MAX_AMOUNT+1);
+        assertEquals(0,s.size());
+    }
+
+    @Test
+    public void sendsVoidFlaggedV() throws Exception {
+        PendingTransactionStore s = store();
+        assertTrue(s.voidTransaction("0002",false));
+        assertTrue(s.isVoided(1));
+        assertFalse(s.isOmitted(1));
+        assertEquals('V',detail(s,1).charAt(80));
+        assertEquals(' ',detail(s,0).charAt(80));
+        assertEquals(3,s.detailCount());
+        assertEquals(100+300,s.hashingTotal());
+    }
+
+    @Test
+    public void leavesOutOmittedVoid() throws Exception {
+        PendingTransactionStore s = store();
+        s.voidTransaction(2,true);
+        assertTrue(s.isVoided(2));
+        assertTrue(s.isOmitted(2));
+        assertEquals(2,s.detailCount());
+        assertEquals(100+200,s.hashingTotal());
+        try {
+            detail(s,2);
+            fail("omitted void appended");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void findsLatestTransactionNotVoided() throws Exception {
+        PendingTransactionStore s = store();
+        add(s,"0002",400);
+        assertEquals(3,s.find("0002"));
+        s.voidTransaction("0002",false);
+        assertEquals(1,s.find("0002"));
+        s.voidTransaction("0002",true);
+        assertEquals(-1,s.find("0002"));
+        assertFalse(s.voidTransaction("0002",false));
+        assertFalse(s.voidTransaction("9999",false));
+        assertEquals(-1,s.find("A002"));
+    }
+
+    @Test
+    public void trailerLeavesOutVoids() throws Exception {
+        PendingTransactionStore s = store();
+        s.voidTransaction("0002",false);
+        s.voidTransaction("0003",true);
+        AtomicReference<String> sent = new AtomicReference<>();
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                sent.set(new String(Tsys.removeParity(request),StandardCharsets.US_ASCII));
+                byte[] b = Tsys.getEvenParity("00 - TEST");
+                return(ResponseBuffer.wrap(b,0,b.length));
+            }
+
+            @Override
+            public void close() {}
+        });
+        tsys.settle(s,"001");
+        String r = sent.get();
+        assertEquals(2,r.split("K1\\.ZD@@`D",-1).length-1);
+        assertTrue(r.contains(detail(s,0)));
+        assertTrue(r.contains(detail(s,1)));                // sent flagged V
+        assertFalse(r.contains("INV3"));                    // left out
+        int t = r.indexOf(".ZT@@@@")+7;
+        assertEquals("001",r.substring(t+4,t+7));
+        assertEquals(2+3,Long.parseLong(r.substring(t+7,t+16)));
+        assertEquals(100,Long.parseLong(r.substring(t+16,t+32)));
+        assertEquals(0,Long.parseLong(r.substring(t+32,t+48)));
+        assertEquals(100,Long.parseLong(r.substring(t+48,t+64)));
+    }
+
+    /**
+     * Store of sequences 0001 - 0003 for 1.00, 2.00 and 3.00
+     */
+    private static PendingTransactionStore store() throws Exception {
+        PendingTransactionStore s = new PendingTransactionStore(merchant(),4,false);
+        for(int i=1;i<=3;i++)
+            add(s,String.format("%04d",i),i*100);
+        return(s);
+    }
+
+    private static void rejects(PendingTransactionStore s,
+                                String card,
+                                String sequence,
+                                long amount) {
+        try {
+            s.add(card,sequence,"A","5","00","123456","Y",
+                  "012345678901234","ABCD",amount,"INV",time());
+            fail("added "+card+" "+sequence+" "+amount);
+        } catch(Exception e) {
+            // expected
+        }
+    }
+
+    private static int add(PendingTransactionStore s, String sequence, long amount) throws Exception {
+        return(s.add("4012888888881881",sequence,"A","5","00","123456","Y",
+                     "012345678901234","ABCD",amount,"INV"+Integer.parseInt(sequence),time()));
+    }
+
+    private static String detail(PendingTransactionStore s, int row) {
+        StringBuilder d = new StringBuilder();
+        s.appendDetail(d,row,'1');
+        return(d.toString());
+    }
+
+    /**
+     * October 19 12:34:56 local time
+     */
+    private static long time() {
+        Calendar c = Calendar.getInstance();
+        c.set(2026,Calendar.OCTOBER,19,12,34,56);
+        return(c.getTimeInMillis());
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * ResponseBuffer pooling, parity stripping and ASCII view
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class ResponseBufferTest {
+
+    private static final int LARGE = 300*1024;                // 512 KB size class, unused elsewhere
+
+    @Test
+    public void reusesReleasedBuffers() {
+        ResponseBuffer a = ResponseBuffer.wrap(new byte[LARGE],0,LARGE);
+        byte[] array = a.array();
+        assertEquals(512*1024,array.length);
+        a.release();
+        ResponseBuffer b = ResponseBuffer.wrap(new byte[LARGE],0,LARGE);
+        assertSame(array,b.array());
+        b.release();
+    }
+
+    @Test
+    public void readsPastWrongContentLength() throws Exception {
+        byte[] src = new byte[5000];
+        for(int i=0;i<src.length;i++)
+            src[i] = (byte)('A'+i%26);
+        ResponseBuffer b = ResponseBuffer.read(new ByteArrayInputStream(src),100);
+        try {
+            assertEquals(src.length,b.length());
+            assertEquals(new String(src,StandardCharsets.US_ASCII),b.ascii().toString());
+        } finally {
+            b.release();
+        }
+    }
+
+    @Test
+    public void stripsParityInPlace() {
+        String s = "K1.ZA@@@@ 999995";
+        byte[] wire = Tsys.getEvenParity(s);
+        ResponseBuffer b = ResponseBuffer.wrap(wire,0,wire.length);
+        try {
+            byte[] array = b.array();
+            b.stripParity();
+            assertSame(array,b.array());
+            assertEquals(s,b.ascii().toString());
+        } finally {
+            b.release();
+        }
+    }
+
+    @Test
+    public void decodesThroughAsciiView() {
+        byte[] src = "xx00 - BAD REQUESTyy".getBytes(StandardCharsets.US_ASCII);
+        CharSequence view = new AsciiSequence(src,2,src.length-4);
+        assertEquals(16,view.length());
+        Matcher m = Pattern.compile("^(\\d+)\\s+\\-\\s+(\\S.*)$").matcher(view);
+        assertTrue(m.matches());
+        assertEquals("00",m.group(1));
+        assertEquals("BAD REQUEST",m.group(2));
+        assertEquals("BAD",view.subSequence(5,8).toString());
+    }
+
+    @Test
+    public void exchangeReleasesBufferWhenCaptureFails() throws Exception {
+        byte[][] sent = new byte[1][];
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                ResponseBuffer b = ResponseBuffer.wrap(new byte[LARGE],0,LARGE);
+                sent[0] = b.array();
+                return(b);
+            }
+
+            @Override
+            public void close() {}
+        });
+        Path dir = Files.createTempDirectory("jtsys-capture");
+        try (WireCapture capture = new WireCapture(dir,1<<20,1) {
+                @Override
+                public void record(String mime,
+                                   String request,
+                                   byte[] response,
+                                   int responseLength,
+                                   long time,
+                                   long nanos) {
+                    throw new IllegalStateException("capture hook");
+                }
+            }) {
+            tsys.setCapture(capture);
+            try {
+                tsys.auth(merchant(),"0001","4012888888881881","1230","8320","85284",100L);
+                fail("capture failure not thrown");
+            } catch(IllegalStateException e) {
+                assertEquals("capture hook",e.getMessage());
+            }
+        }
+        Files.delete(dir);
+        ResponseBuffer b = ResponseBuffer.wrap(new byte[LARGE],0,LARGE);
+        assertSame(sent[0],b.array());
+        b.release();
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ResultArchive lookups, segment rolling, expiry and reopening
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class ResultArchiveTest {
+
+    private static final String CARD = "4012888888881881";
+
+    private Path directory;
+
+    @Before
+    public void create() throws Exception {
+        directory = Files.createTempDirectory("jtsys-archive");
+    }
+
+    @After
+    public void delete() throws Exception {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for(Path p : ds)
+                Files.delete(p);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void findsAuthByEveryKey() throws Exception {
+        try (ResultArchive a = archive(16,1000)) {
+            assertTrue(a.appendAuth(merchant(),"0001",CARD,1234,auth("000001"),1000));
+            for(ResultArchive.Key k : ResultArchive.Key.values()) {
+                String value = k==ResultArchive.Key.RETRIEVAL_REFERENCE_NUM ? "RRN000001" :
+                               k==ResultArchive.Key.TRANSACTION_IDENTIFIER ? "TID000001" :
+                               k==ResultArchive.Key.APPROVAL_CODE ? "000001" : CARD;
+                List<ResultArchive.Record> found = a.find(k,value);
+                assertEquals(k.value(),1,found.size());
+            }
+            ResultArchive.Record r = a.find(ResultArchive.Key.MASKED_CARD_NUMBER,"401288******1881").get(0);
+            assertFalse(r.isSettle());
+            assertEquals(1000,r.getTime());
+            assertEquals("999999999911",r.getMerchantId());
+            assertEquals("0011",r.getStore());
+            assertEquals("9911",r.getTerminal());
+            assertEquals("0001",r.getSequence());
+            assertEquals("401288******1881",r.getMaskedCardNumber());
+            assertEquals("00",r.getResponseCode());
+            assertEquals("ABCD",r.getValidationCode());
+            assertEquals(1234,r.getAmount());
+            assertTrue(a.find(ResultArchive.Key.APPROVAL_CODE,"999999").isEmpty());
+            assertTrue(a.find(ResultArchive.Key.MASKED_CARD_NUMBER,"4012").isEmpty());
+        }
+    }
+
+    @Test
+    public void skipsErrorResponses() throws Exception {
+        try (ResultArchive a = archive(16,1000)) {
+            assertFalse(a.appendAuth(merchant(),"0001",CARD,100,new LinkedHashMap<>(),1000));
+            assertFalse(a.appendSettle(merchant(),"001",new LinkedHashMap<>(),1000));
+            LinkedHashMap<String,String> settle = new LinkedHashMap<>();
+            settle.put(SettleResponseKeys.Batch_Net_Deposit.key(),"0000000000001500");
+            settle.put(SettleResponseKeys.Batch_Response_Text.key(),"ACCEPTED");
+            assertTrue(a.appendSettle(merchant(),"001",settle,1000));
+            assertEquals(1,a.size());
+        }
+    }
+
+    @Test
+    public void rollsFullSegmentsAndFindsNewestFirst() throws Exception {
+        try (ResultArchive a = archive(2,1000000)) {
+            for(int i=1;i<=5;i++)
+                a.appendAuth(merchant(),String.format("%04d",i),CARD,i,auth("000001"),1000+i);
+            assertEquals(3,a.segments());
+            assertEquals(5,a.size());
+            List<ResultArchive.Record> found = a.find(ResultArchive.Key.APPROVAL_CODE,"000001");
+            assertEquals(5,found.size());
+            for(int i=0;i<5;i++)
+                assertEquals(1005-i,found.get(i).getTime());
+        }
+    }
+
+    @Test
+    public void expiresSegmentsPastRetention() throws Exception {
+        try (ResultArchive a = new ResultArchive(directory,16,10,20,TimeUnit.MILLISECONDS)) {
+            a.appendAuth(merchant(),"0001",CARD,1,auth("000001"),0);
+            a.appendAuth(merchant(),"0002",CARD,2,auth("000002"),10);
+            a.appendAuth(merchant(),"0003",CARD,3,auth("000003"),20);
+            assertEquals(3,a.segments());
+            a.appendAuth(merchant(),"0004",CARD,4,auth("000004"),40);
+            assertEquals(2,a.segments());
+            assertTrue(a.find(ResultArchive.Key.APPROVAL_CODE,"000001").isEmpty());
+            assertTrue(a.find(ResultArchive.Key.APPROVAL_CODE,"000002").isEmpty());
+            assertEquals(1,a.find(ResultArchive.Key.APPROVAL_CODE,"000003").size());
+        }
+        assertEquals(4,files());
+    }
+
+    @Test
+    public void reopensSegments() throws Exception {
+        try (ResultArchive a = archive(2,1000000)) {
+            for(int i=1;i<=3;i++)
+                a.appendAuth(merchant(),String.format("%04d",i),CARD,i,auth("00000"+i),1000+i);
+        }
+        try (ResultArchive a = archive(2,1000000)) {
+            assertEquals(2,a.segments());
+            assertEquals(3,a.size());
+            assertEquals(1002,a.find(ResultArchive.Key.APPROVAL_CODE,"000002").get(0).getTime());
+            a.appendAuth(merchant(),"0004",CARD,4,auth("000004"),1004);
+            assertEquals(2,a.segments());
+            a.force();
+        }
+        try (ResultArchive a = archive(2,1000000)) {
+            assertEquals(4,a.size());
+            assertEquals(4,a.find(ResultArchive.Key.APPROVAL_CODE,"000004").get(0).getAmount());
+        }
+    }
+
+    @Test
+    public void findsWhileSegmentsExpire() throws Exception {
+        AtomicReference<Throwable> failed = new AtomicReference<>();
+        try (ResultArchive a = new ResultArchive(directory,1,1,2,TimeUnit.MILLISECONDS)) {
+            a.appendAuth(merchant(),"0000",CARD,0,auth("000001"),0);
+            Thread reader = new Thread(() -> {
+                try {
+                    while(!Thread.currentThread().isInterrupted())
+                        a.find(ResultArchive.Key.APPROVAL_CODE,"000001");
+                } catch(Throwable t) {
+                    failed.set(t);
+                }
+            });
+            reader.start();
+            for(int i=1;i<=500;i++)
+                a.appendAuth(merchant(),String.format("%04d",i%10000),CARD,i,auth("000001"),i);
+            reader.interrupt();
+            reader.join();
+            assertEquals(3,a.segments());
+        }
+        assertNull(failed.get());
+    }
+
+    private ResultArchive archive(int segmentRecords, long segmentMillis) throws Exception {
+        return(new ResultArchive(directory,
+                                 segmentRecords,
+                                 segmentMillis,
+                                 segmentMillis*10,
+                                 TimeUnit.MILLISECONDS));
+    }
+
+    private int files() throws Exception {
+        int n = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for(Path p : ds)
+                n++;
+        }
+        return(n);
+    }
+
+    private static LinkedHashMap<String,String> auth(String approval) {
+        LinkedHashMap<String,String> m = new LinkedHashMap<>();
+        m.put(AuthResponseKeys.Response_Code.key(),"00");
+        m.put(AuthResponseKeys.Approval_Code.key(),approval);
+        m.put(AuthResponseKeys.Retrieval_Reference_Num.key(),"RRN"+approval);
+        m.put(AuthResponseKeys.Transaction_Identifier.key(),"TID"+approval);
+        m.put(AuthResponseKeys.Validation_Code.key(),"ABCD");
+        return(m);
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}
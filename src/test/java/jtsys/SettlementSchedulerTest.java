@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * SettlementScheduler cutoff handling
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class SettlementSchedulerTest {
+
+    @Test
+    public void abandonsJobsSettlingAtCutoff() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SettlementScheduler.Job stuck = new SettlementScheduler.Job(merchant("0001"),200,() -> {
+            // ignores interrupts like a blocked socket read
+            while(!release.await(10,TimeUnit.SECONDS));
+            return(settled());
+        });
+        SettlementScheduler.Job quick = new SettlementScheduler.Job(merchant("0002"),100,
+                                                                    SettlementSchedulerTest::settled);
+        SettlementScheduler s = new SettlementScheduler(2,2,1,Duration.ZERO);
+        long start = System.nanoTime();
+        List<SettlementScheduler.Job> done = s.run(Arrays.asList(stuck,quick),
+                                                   Instant.now().plusMillis(300),
+                                                   null,
+                                                   null);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+        assertTrue("run returned after "+elapsed+"ms",elapsed<2000);
+        assertEquals(SettlementScheduler.Status.ABANDONED,stuck.getStatus());
+        assertEquals(SettlementScheduler.Status.SETTLED,quick.getStatus());
+        assertEquals(2,done.size());
+
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals(SettlementScheduler.Status.ABANDONED,stuck.getStatus());
+
+        SettlementScheduler.Job next = new SettlementScheduler.Job(merchant("0001"),100,
+                                                                   SettlementSchedulerTest::settled);
+        s.run(Arrays.asList(next),Instant.now().plusSeconds(5),null,null);
+        assertEquals(SettlementScheduler.Status.SETTLED,next.getStatus());
+    }
+
+    @Test
+    public void missesJobsNotStartedByCutoff() throws Exception {
+        SettlementScheduler.Job late = new SettlementScheduler.Job(merchant("0001"),100,
+                                                                   SettlementSchedulerTest::settled);
+        SettlementScheduler s = new SettlementScheduler(1,1,1,Duration.ZERO);
+        s.run(Arrays.asList(late),Instant.now().minusMillis(1),null,null);
+        assertEquals(SettlementScheduler.Status.MISSED,late.getStatus());
+    }
+
+    private static LinkedHashMap<String,String> settled() {
+        LinkedHashMap<String,String> r = new LinkedHashMap<>();
+        r.put(SettleResponseKeys.Batch_Response_Text.key(),"ACCEPTED");
+        return(r);
+    }
+
+    private static Merchant merchant(String terminal) {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setTerminal(terminal);
+        return(m);
+    }
+}
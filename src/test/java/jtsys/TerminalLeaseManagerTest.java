@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TerminalLeaseManager leases within one manager
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class TerminalLeaseManagerTest {
+
+    private Path file;
+    private TerminalLeaseManager manager;
+
+    @Before
+    public void open() throws Exception {
+        file = Files.createTempFile("jtsys-leases",".tbl");
+        Files.delete(file);
+        manager = new TerminalLeaseManager(file,16,30,TimeUnit.SECONDS);
+    }
+
+    @After
+    public void close() throws Exception {
+        manager.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void leasesTerminalOnceWithinManager() throws Exception {
+        TerminalLeaseManager.Lease lease = manager.acquire(merchant("0001"));
+        assertNotNull(lease);
+        assertNull(manager.acquire(merchant("0001")));
+        lease.release();
+        assertNotNull(manager.acquire(merchant("0001")));
+    }
+
+    @Test
+    public void threadsGetDistinctTerminalsFromPool() throws Exception {
+        List<Merchant> pool = Arrays.asList(merchant("0001"),merchant("0002"),merchant("0003"));
+        Set<String> leased = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for(int i=0;i<pool.size();i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    TerminalLeaseManager.Lease l = manager.acquire(pool);
+                    if(l!=null)
+                        leased.add(l.getMerchant().getTerminal());
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for(Thread t : threads)
+            t.join();
+        assertEquals(3,leased.size());
+        assertNull(manager.acquire(pool));
+    }
+
+    @Test
+    public void sequenceNumbersAreUniqueAcrossThreads() throws Exception {
+        TerminalLeaseManager.Lease lease = manager.acquire(merchant("0001"));
+        Set<String> numbers = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for(int i=0;i<8;i++) {
+            Thread t = new Thread(() -> {
+                for(int n=0;n<1000;n++)
+                    numbers.add(lease.nextTransSequenceNumber());
+            });
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t : threads)
+            t.join();
+        assertEquals(8000,numbers.size());
+        Set<String> batches = new HashSet<>();
+        for(int n=0;n<999;n++)
+            batches.add(lease.nextBatchNumber());
+        assertEquals(999,batches.size());
+        assertTrue(batches.contains("001") && batches.contains("999"));
+    }
+
+    private static Merchant merchant(String terminal) {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setStore("0011");
+        m.setTerminal(terminal);
+        return(m);
+    }
+}
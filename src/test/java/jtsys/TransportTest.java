@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * HttpsTransport and NioTransport against local stand-in gateways
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class TransportTest {
+
+    private static final char STX = 0x02;
+    private static final char ETX = 0x03;
+    private static final char ETB = 0x17;
+    private static final String MIME = "x-Visa-II/x-settle";
+
+    private ServerSocket socket;
+    private HttpServer http;
+
+    @After
+    public void stop() throws IOException {
+        if(socket!=null)
+            socket.close();
+        if(http!=null)
+            http.stop(0);
+    }
+
+    @Test
+    public void nioReadsMultipleRecords() throws Exception {
+        byte[] response = multipleRecords();
+        standIn(response,1);
+        try (NioTransport t = nio(2000)) {
+            assertArrayEquals(response,bytes(t.exchange(MIME,request())));
+        }
+    }
+
+    @Test
+    public void nioReusesConnection() throws Exception {
+        byte[] response = multipleRecords();
+        standIn(response,2);
+        try (NioTransport t = nio(2000)) {
+            ResponseBuffer first = t.exchange(MIME,request());
+            assertFalse(first.isReused());
+            first.release();
+            ResponseBuffer second = t.exchange(MIME,request());
+            assertTrue(second.isReused());
+            assertArrayEquals(response,bytes(second));
+        }
+    }
+
+    @Test(expected=SocketTimeoutException.class)
+    public void nioTimesOut() throws Exception {
+        standIn(null,1);
+        try (NioTransport t = nio(200)) {
+            t.exchange(MIME,request());
+        }
+    }
+
+    @Test
+    public void nioFinishesUnframedError() throws Exception {
+        byte[] response = Tsys.getEvenParity("00 - INVALID REQUEST");
+        standIn(response,1);
+        try (NioTransport t = nio(5000)) {
+            long start = System.currentTimeMillis();
+            assertArrayEquals(response,bytes(t.exchange(MIME,request())));
+            assertTrue(System.currentTimeMillis()-start<2000);
+        }
+    }
+
+    @Test
+    public void nioFinishesWhenGatewayCloses() throws Exception {
+        byte[] response = Tsys.getEvenParity(STX+"K1.ZR@@@@ PARTIAL");
+        standIn(response,1,true);
+        try (NioTransport t = nio(5000)) {
+            long start = System.currentTimeMillis();
+            assertArrayEquals(response,bytes(t.exchange(MIME,request())));
+            assertTrue(System.currentTimeMillis()-start<2000);
+        }
+    }
+
+    @Test
+    public void httpsReadsMultipleRecords() throws Exception {
+        byte[] response = multipleRecords();
+        URL url = httpStandIn(response,0);
+        try (HttpsTransport t = new HttpsTransport(url,2000,TimeUnit.MILLISECONDS)) {
+            assertArrayEquals(response,bytes(t.exchange(MIME,request())));
+        }
+    }
+
+    @Test(expected=SocketTimeoutException.class)
+    public void httpsTimesOut() throws Exception {
+        URL url = httpStandIn(multipleRecords(),5000);
+        try (HttpsTransport t = new HttpsTransport(url,200,TimeUnit.MILLISECONDS)) {
+            t.exchange(MIME,request());
+        }
+    }
+
+    /**
+     * Response of three records, the first record's LRC is ETX and the
+     * second's is ETB, only the third record ends the response
+     */
+    private static byte[] multipleRecords() {
+        String r = record("K3.ZR@@@@0000000050000000000000030GB00001 ACCEPTED ",ETB,ETX)
+                 + record("K3.ZR@@@@0000000050000000000000030GB00002 ACCEPTED ",ETB,ETB)
+                 + record("K3.ZR@@@@0000000050000000000000030GB00003 ACCEPTED ",ETX,'A');
+        byte[] b = Tsys.getEvenParity(r);
+        assertEquals(ETX,b[b.length/3-1] & 0x7f);
+        return(b);
+    }
+
+    private static byte[] request() {
+        return(Tsys.getEvenParity(record("K1.ZH@@@@999995",ETX,'A')));
+    }
+
+    /**
+     * Framed record, body padded until its LRC is the given value
+     */
+    private static String record(String body, char end, char lrc) {
+        StringBuilder b = new StringBuilder(body);
+        for(;;) {
+            char c = (char)(lrc(b+""+end)^lrc);
+            if(c>=' ' && c<0x7f)
+                return(STX+b.append(c).toString()+end+lrc);
+            b.append(' ');
+        }
+    }
+
+    private static char lrc(String s) {
+        char lrc = 0;
+        for(int i=0;i<s.length();i++)
+            lrc ^= s.charAt(i);
+        return(lrc);
+    }
+
+    private static byte[] bytes(ResponseBuffer b) {
+        try {
+            return(Arrays.copyOf(b.array(),b.length()));
+        } finally {
+            b.release();
+        }
+    }
+
+    private NioTransport nio(long timeout) {
+        return(new NioTransport(InetAddress.getLoopbackAddress().getHostAddress(),
+                                socket.getLocalPort(),
+                                null,
+                                timeout,
+                                TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Stand-in answering framed requests on one connection, never answers
+     * if response is null
+     */
+    private void standIn(byte[] response, int requests) throws IOException {
+        standIn(response,requests,false);
+    }
+
+    /**
+     * Stand-in answering framed requests on one connection, closing it after
+     * the last response if hangUp
+     */
+    private void standIn(byte[] response, int requests, boolean hangUp) throws IOException {
+        socket = new ServerSocket(0,1,InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            try (Socket s = socket.accept()) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                for(int i=0;i<requests;i++) {
+                    int b;
+                    while((b = in.read())!=-1 && (b & 0x7f)!=ETX);
+                    in.read();
+                    if(response==null) {
+                        Thread.sleep(5000);
+                        return;
+                    }
+                    out.write(response);
+                    out.flush();
+                }
+                if(!hangUp)
+                    in.read();
+            } catch(IOException | InterruptedException e) {
+                // test over
+            }
+        },"transport-test-stand-in");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private URL httpStandIn(byte[] response, long delay) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+        http.setExecutor(Executors.newCachedThreadPool());
+        http.createContext("/",x -> {
+            try (InputStream in = x.getRequestBody()) {
+                while(in.read()!=-1);
+                Thread.sleep(delay);
+                x.sendResponseHeaders(200,response.length);
+                x.getResponseBody().write(response);
+            } catch(InterruptedException e) {
+                // stopped
+            } finally {
+                x.close();
+            }
+        });
+        http.start();
+        return(new URL("http://"+InetAddress.getLoopbackAddress().getHostAddress()+":"+
+                       http.getAddress().getPort()+"/"));
+    }
+}
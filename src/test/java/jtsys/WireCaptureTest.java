@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Obsidian-Studios, Inc.
+ * Distributed under the terms of the GNU General Public License v3
+ *
+ */
+
+package jtsys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * WireCapture masking and WireReplay of captured traffic
+ *
+ * @author William L. Thomson Jr. <wlt@o-sinc.com>
+ */
+public class WireCaptureTest {
+
+    private static final char STX = 0x02;
+    private static final char ETX = 0x03;
+    private static final char FS = 0x1c;
+    private static final String CARD = "4012888888881881";
+
+    private Path dir;
+
+    @Before
+    public void create() throws Exception {
+        dir = Files.createTempDirectory("jtsys-capture");
+    }
+
+    @After
+    public void delete() throws Exception {
+        for(Path p : WireCapture.files(dir))
+            Files.delete(p);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void masksCardExpirationAndAddress() throws Exception {
+        capture(1);
+        List<Path> files = WireCapture.files(dir);
+        assertEquals(1,files.size());
+        try (WireCapture.Reader r = new WireCapture.Reader(files.get(0))) {
+            WireCapture.Record rec = r.next();
+            assertEquals("x-Visa-II/x-auth",rec.getMime());
+            String req = new String(rec.getRequest(),StandardCharsets.US_ASCII);
+            assertFalse(req.contains(CARD));
+            assertTrue(req.contains("401288******1881"+FS+"****"+FS+FS+"********** *****"+FS+FS+"100"+FS));
+            assertFalse(req.contains("8320"));
+            assertFalse(req.contains("85284"));
+            int etx = req.indexOf(ETX);
+            char lrc = 0;
+            for(int i=1;i<=etx;i++)
+                lrc ^= req.charAt(i);
+            assertEquals(lrc,req.charAt(etx+1));
+            assertEquals("00 - BAD REQUEST",new String(rec.getResponse(),StandardCharsets.US_ASCII));
+            assertNull(r.next());
+        }
+    }
+
+    @Test
+    public void rollsFilesKeepingNewest() throws Exception {
+        capture(20);
+        List<Path> files = WireCapture.files(dir);
+        assertEquals(3,files.size());
+        int records = 0;
+        for(Path f : files)
+            try (WireCapture.Reader r = new WireCapture.Reader(f)) {
+                while(r.next()!=null)
+                    records++;
+            }
+        assertTrue(records>=3 && records<20);
+    }
+
+    @Test
+    public void decodesCapturedResponses() throws Exception {
+        capture(3);
+        WireReplay.Stats s = new WireReplay().decode(WireCapture.files(dir));
+        assertEquals(3,s.getRecords());
+        assertEquals(3,s.getMatched());
+        assertEquals(0,s.getFailed());
+    }
+
+    @Test
+    public void replaysCapturedRequests() throws Exception {
+        capture(2);
+        AtomicReference<String> received = new AtomicReference<>();
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),0),0);
+        http.createContext("/",x -> {
+            try (InputStream in = x.getRequestBody()) {
+                byte[] b = new byte[4096];
+                int n = 0;
+                int r;
+                while((r = in.read(b,n,b.length-n))>0)
+                    n += r;
+                received.set(new String(Tsys.removeParity(Arrays.copyOf(b,n)),
+                                        StandardCharsets.US_ASCII));
+                byte[] response = Tsys.getEvenParity("00 - BAD REQUEST");
+                x.sendResponseHeaders(200,response.length);
+                x.getResponseBody().write(response);
+            } finally {
+                x.close();
+            }
+        });
+        http.start();
+        try {
+            URL url = new URL("http://"+InetAddress.getLoopbackAddress().getHostAddress()+":"+
+                              http.getAddress().getPort()+"/");
+            WireReplay.Stats s = new WireReplay().replay(WireCapture.files(dir),url,0);
+            assertEquals(2,s.getRecords());
+            assertEquals(2,s.getMatched());
+            assertTrue(received.get().contains("401288******1881"));
+        } finally {
+            http.stop(0);
+        }
+    }
+
+    /**
+     * Capture authorizations answered with an error response
+     */
+    private void capture(int n) throws Exception {
+        Tsys tsys = new Tsys(false,new Transport() {
+            @Override
+            public ResponseBuffer exchange(String mime, byte[] request) {
+                byte[] b = Tsys.getEvenParity("00 - BAD REQUEST");
+                return(ResponseBuffer.wrap(b,0,b.length));
+            }
+
+            @Override
+            public void close() {}
+        });
+        try (WireCapture c = new WireCapture(dir,n>1 ? 600 : 1<<20,3)) {
+            tsys.setCapture(c);
+            for(int i=0;i<n;i++)
+                tsys.auth(merchant(),String.format("%04d",i+1),CARD,"1230","8320 Main St.","85284",100L);
+        }
+    }
+
+    private static Merchant merchant() {
+        Merchant m = new Merchant();
+        m.setId("999999999911");
+        m.setBin("999995");
+        m.setAgent("000000");
+        m.setChain("000000");
+        m.setStore("0011");
+        m.setTerminal("9911");
+        m.setMcc("5999");
+        m.setIndustryCode('D');
+        m.setName("Internet Service Provider");
+        m.setCity("Gloucester");
+        m.setState("VA");
+        m.setZip("543211420");
+        m.setV("00000001");
+        return(m);
+    }
+}